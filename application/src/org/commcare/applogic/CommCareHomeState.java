@@ -5,6 +5,7 @@ package org.commcare.applogic;
 
 import org.commcare.api.transitions.CommCareHomeTransitions;
 import org.commcare.cases.model.Case;
+import org.commcare.cases.util.CaseStorageHooks;
 import org.commcare.core.properties.CommCareProperties;
 import org.commcare.entity.RecentFormEntity;
 import org.commcare.suite.model.Entry;
@@ -153,6 +154,7 @@ public class CommCareHomeState implements CommCareHomeTransitions, State {
 
         });
         StorageManager.getStorage(Case.STORAGE_KEY).removeAll();
+        CaseStorageHooks.wiped(StorageManager.getStorage(Case.STORAGE_KEY));
     }
 
     public void newUser() {
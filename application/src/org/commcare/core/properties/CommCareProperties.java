@@ -111,6 +111,24 @@ public class CommCareProperties implements IPropertyRules {
 
     public final static String INSTALL_RETRY_ATTEMPTS = "cc-in-retry-attempts";
 
+    /**
+     * A space separated list of case properties which should be indexed in
+     * case storage.
+     */
+    public final static String INDEXED_CASE_PROPERTIES = "cc-indexed-case-props";
+
+    /**
+     * The running state hash of case storage, kept so it doesn't need to be
+     * recomputed from every case on each sync.
+     */
+    public final static String CASE_STATE_HASH = "cc-casedb-hash";
+
+    /**
+     * How far the restore from the cached payload had gotten, if it was
+     * interrupted before finishing.
+     */
+    public final static String RESTORE_CHECKPOINT = "cc-restore-checkpoint";
+
 
     /**
      * Creates the JavaRosa set of property rules
@@ -231,6 +249,14 @@ public class CommCareProperties implements IPropertyRules {
 
         rules.put(INSTALL_RETRY_ATTEMPTS, new Vector());
 
+        rules.put(INDEXED_CASE_PROPERTIES, new Vector());
+
+        rules.put(CASE_STATE_HASH, new Vector());
+        readOnlyProperties.addElement(CASE_STATE_HASH);
+
+        rules.put(RESTORE_CHECKPOINT, new Vector());
+        readOnlyProperties.addElement(RESTORE_CHECKPOINT);
+
 
         readOnlyProperties.addElement(CONTENT_VALIDATED);
         readOnlyProperties.addElement(ENTRY_MODE);
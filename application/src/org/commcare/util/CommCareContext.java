@@ -14,10 +14,16 @@ import javax.microedition.midlet.MIDlet;
 
 import org.commcare.applogic.CommCareUpgradeState;
 import org.commcare.cases.CaseManagementModule;
+import org.commcare.cases.fixture.FixtureItem;
 import org.commcare.cases.ledger.Ledger;
 import org.commcare.cases.ledger.LedgerPurgeFilter;
 import org.commcare.cases.model.Case;
+import org.commcare.cases.util.CaseIndexGraph;
 import org.commcare.cases.util.CasePurgeFilter;
+import org.commcare.cases.util.CasePurgeState;
+import org.commcare.cases.util.CaseStateHash;
+import org.commcare.cases.util.CaseStorageHooks;
+import org.commcare.cases.util.IndexResultCache;
 import org.commcare.core.properties.CommCareProperties;
 import org.commcare.model.PeriodicEvent;
 import org.commcare.model.PeriodicEventRecord;
@@ -452,6 +458,7 @@ public class CommCareContext {
     protected void registerAddtlStorage () {
         //do nothing
         StorageManager.registerStorage("fixture", FormInstance.class);
+        StorageManager.registerStorage(FixtureItem.STORAGE_KEY, FixtureItem.class);
     }
 
     protected void initReferences() {
@@ -510,6 +517,27 @@ public class CommCareContext {
         PropertyUtils.initializeProperty(CommCareProperties.USER_REG_TYPE, CommCareProperties.USER_REG_REQUIRED);
 
         PropertyUtils.initializeProperty(CommCareProperties.AUTO_UPDATE_FREQUENCY, CommCareProperties.FREQUENCY_NEVER);
+
+        registerIndexedCaseProperties();
+        CaseStateHash.attachPersistence(inDemoMode ? null : CommCareProperties.CASE_STATE_HASH);
+        CasePurgeState.attachPersistence(inDemoMode ? null : CasePurgeState.STORAGE_KEY);
+    }
+
+    /**
+     * Declares the case properties which the profile has asked to be indexed,
+     * so that they're maintained in case storage as cases are written.
+     */
+    private void registerIndexedCaseProperties() {
+        String properties = PropertyManager._().getSingularProperty(CommCareProperties.INDEXED_CASE_PROPERTIES);
+        if (properties == null) {
+            return;
+        }
+        Vector<String> names = DateUtils.split(properties.trim(), " ", true);
+        for (int i = 0; i < names.size(); ++i) {
+            if (!"".equals(names.elementAt(i))) {
+                Case.registerIndexedProperty(names.elementAt(i));
+            }
+        }
     }
 
     public static void init(MIDlet m, InitializationListener listener) {
@@ -584,6 +612,10 @@ public class CommCareContext {
 
     public void toggleDemoMode(boolean demoOn) {
         if (demoOn != inDemoMode) {
+            CaseIndexGraph.invalidate();
+            //Demo cases are thrown away, so their hash shouldn't be kept
+            CaseStateHash.attachPersistence(demoOn ? null : CommCareProperties.CASE_STATE_HASH);
+            CasePurgeState.attachPersistence(demoOn ? null : CasePurgeState.STORAGE_KEY);
             CommCareUtil.cycleDemoStyles(demoOn);
             inDemoMode = demoOn;
             if (demoOn) {
@@ -612,6 +644,7 @@ public class CommCareContext {
         }
 
         StorageManager.getStorage(Case.STORAGE_KEY).removeAll();
+        CaseStorageHooks.wiped(StorageManager.getStorage(Case.STORAGE_KEY));
         StorageManager.getStorage(FormInstance.STORAGE_KEY).removeAll();
         StorageManager.getStorage(TransportMessageStore.Q_STORENAME).removeAll();
         StorageManager.getStorage(TransportMessageStore.RECENTLY_SENT_STORENAME).removeAll();
@@ -664,7 +697,17 @@ public class CommCareContext {
 
 
         //3) cases (delete cases that are closed AND have no open cases which index them)
-        purgeRMS(Case.STORAGE_KEY, caseFilter(), deletedLog);
+        CasePurgeFilter caseFilter = caseFilter();
+        Vector<Integer> purgedRecords = purgeRMS(Case.STORAGE_KEY, caseFilter, deletedLog);
+        CaseIndexGraph.invalidate();
+        IStorageUtility caseStorage = StorageManager.getStorage(Case.STORAGE_KEY);
+        CasePurgeState.casesPurged(caseStorage, purgedRecords);
+        CasePurgeState.flush();
+        Vector<String> purgedCases = caseFilter.getCaseIdsToRemove();
+        for (int i = 0; i < purgedCases.size(); ++i) {
+            CaseStateHash.caseRemoved(caseStorage, purgedCases.elementAt(i));
+        }
+        CaseStateHash.flush();
 
         //4) Ledger models (ledger database objects with no matching case)
         purgeRMS(Ledger.STORAGE_KEY, new LedgerPurgeFilter((IStorageUtilityIndexed)StorageManager.getStorage(Ledger.STORAGE_KEY),
@@ -679,7 +722,7 @@ public class CommCareContext {
         return deletedLog;
     }
 
-    private EntityFilter<Case> caseFilter() {
+    private CasePurgeFilter caseFilter() {
         //We need to determine if we're using ownership for purging. For right now, only in sync mode
         Vector<String> owners = null;
         if(CommCareProperties.TETHER_SYNC.equals(PropertyManager._().getSingularProperty(CommCareProperties.TETHER_MODE))) {
@@ -707,16 +750,18 @@ public class CommCareContext {
         }
 
 
-        return new CasePurgeFilter((RMSStorageUtilityIndexed<Case>)StorageManager.getStorage(Case.STORAGE_KEY), owners);
+        //Only the cases which changed since the last purge need their liveness re-evaluated
+        return CasePurgeState.getState((RMSStorageUtilityIndexed<Case>)StorageManager.getStorage(Case.STORAGE_KEY), owners).getPurgeFilter();
 
     }
 
-    private void purgeRMS (String key, EntityFilter filt, Hashtable<String, Hashtable<Integer, String>> deletedLog) {
+    private Vector<Integer> purgeRMS (String key, EntityFilter filt, Hashtable<String, Hashtable<Integer, String>> deletedLog) {
         RMSStorageUtility rms = (RMSStorageUtility)StorageManager.getStorage(key);
         //TODO: Reimplement the printout here.
         //Hashtable<Integer, RMSRecordLoc> index = rms.getIDIndexRecord();
 
         Vector<Integer> deletedIDs = rms.removeAll(filt);
+        IndexResultCache.storageWritten();
 
         Hashtable<Integer, String> deletedDetail = new Hashtable<Integer, String>();
         for (int i = 0; i < deletedIDs.size(); i++) {
@@ -726,6 +771,7 @@ public class CommCareContext {
             deletedDetail.put(new Integer(id), detail != null ? "(" + detail.rmsID + "," + detail.recID + ")" : "?");
         }
         deletedLog.put(key, deletedDetail);
+        return deletedIDs;
     }
 
     //aaaaaaaaaaaaaaaaaaaaaaaaaaaaaa
@@ -8,6 +8,8 @@ package org.commcare.util;
 import java.util.Date;
 import java.util.Vector;
 
+import org.commcare.cases.fixture.FixtureItem;
+import org.commcare.cases.fixture.instance.FixtureInstanceTreeElement;
 import org.commcare.cases.instance.CaseInstanceTreeElement;
 import org.commcare.cases.ledger.Ledger;
 import org.commcare.cases.ledger.instance.LedgerInstanceTreeElement;
@@ -138,11 +140,17 @@ public class CommCareInstanceInitializer extends InstanceInitializationFactory {
             if(u != null) {
                 userId = u.getUniqueId();
             }
-            FormInstance fixture = CommCareUtil.loadFixtureForUser(ref.substring(ref.lastIndexOf('/') + 1, ref.length()), userId);
+            FormInstance fixture = CommCareUtil.loadFixtureRecordForUser(ref.substring(ref.lastIndexOf('/') + 1, ref.length()), userId);
             if(fixture == null) {
                 throw new RuntimeException("Could not find an appropriate fixture for src: " + ref);
             }
 
+            //Fixtures stored as items are paged in as they're used
+            IStorageUtilityIndexed itemStorage = (IStorageUtilityIndexed)StorageManager.getStorage(FixtureItem.STORAGE_KEY);
+            if(FixtureInstanceTreeElement.hasItems(itemStorage, fixture.getID())) {
+                return new FixtureInstanceTreeElement(instance.getBase(), fixture.getRoot(), fixture.getID(), itemStorage);
+            }
+
             //FormInstance fixture = (FormInstance)storage.getRecordForValue(FormInstance.META_ID, refId);
             TreeElement root = fixture.getRoot();
             root.setParent(instance.getBase());
@@ -8,11 +8,22 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Date;
 import java.util.Hashtable;
+import java.util.Vector;
 
 import org.commcare.cases.model.Case;
 import org.commcare.cases.util.CaseDBUtils;
+import org.commcare.cases.util.CaseLocator;
+import org.commcare.cases.util.CasePurgeState;
+import org.commcare.cases.util.CaseStateHash;
+import org.commcare.cases.util.CaseStorageHooks;
+import org.commcare.cases.util.CaseWriteCache;
+import org.commcare.cases.util.WriteQueue;
 import org.commcare.core.properties.CommCareProperties;
 import org.commcare.data.xml.DataModelPullParser;
+import org.commcare.data.xml.RestoreCheckpoint;
+import org.commcare.data.xml.RestoreProfile;
+import org.commcare.data.xml.ShardedRestoreParser;
+import org.commcare.data.xml.TransactionParserFactory;
 import org.commcare.model.PeriodicEvent;
 import org.commcare.resources.model.CommCareOTARestoreListener;
 import org.commcare.restore.CommCareOTARestoreTransitions;
@@ -32,6 +43,7 @@ import org.javarosa.core.services.Logger;
 import org.javarosa.core.services.PropertyManager;
 import org.javarosa.core.services.locale.Localization;
 import org.javarosa.core.services.storage.IStorageUtility;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.services.storage.StorageManager;
 import org.javarosa.j2me.log.HandledThread;
 import org.javarosa.j2me.reference.HttpReference.SecurityFailureListener;
@@ -43,6 +55,7 @@ import org.javarosa.services.transport.TransportMessage;
 import org.javarosa.services.transport.TransportService;
 import org.javarosa.services.transport.impl.TransportException;
 import org.javarosa.services.transport.impl.simplehttp.StreamingHTTPMessage;
+import org.javarosa.user.model.User;
 import org.xmlpull.v1.XmlPullParserException;
 
 
@@ -56,6 +69,14 @@ public class CommCareRestorer implements Runnable {
     protected static final int RESPONSE_YES = 1;
     protected static final int RESPONSE_NO = 2;
 
+    //The number of top level blocks between saved checkpoints of a restore
+    //from the cached payload. Kept below the case write batch size, so that
+    //no case from past the last checkpoint is written before the next one.
+    private static final int CHECKPOINT_INTERVAL = CaseWriteCache.DEFAULT_BATCH_SIZE / 2;
+
+    //The most shards of a sharded restore to process at once
+    private static final int SHARD_THREADS = 2;
+
     int response = RESPONSE_NONE;
 
     CommCareOTARestoreTransitions transitions;
@@ -73,6 +94,7 @@ public class CommCareRestorer implements Runnable {
     String originalRestoreURI;
     String logSubmitURI;
     String stateHash;
+    RestoreProfile lastProfile;
 
     public void initialize(CommCareOTARestoreListener rListener, CommCareOTARestoreTransitions transitions,
             String restoreURI, HttpAuthenticator authenticator, boolean isSync, boolean noPartial, String syncToken, String logSubmitURI){
@@ -125,6 +147,10 @@ public class CommCareRestorer implements Runnable {
     }
 
     public void start() {
+        //Finish off a restore which was interrupted before starting another
+        if(resumeRestore()) {
+            return;
+        }
         Reference bypassRef = getBypassRef();
         if(bypassRef != null) {
             listener.refreshView();
@@ -249,17 +275,76 @@ public class CommCareRestorer implements Runnable {
     }
 
     public boolean startRestore(InputStream input) {
+        return startRestore(input, false, null);
+    }
+
+    /**
+     * Picks up a restore from the cached payload which was interrupted (IE:
+     * by the app being killed) before it finished, skipping over the parts
+     * of the payload which were already processed.
+     *
+     * @return False if there's no interrupted restore which can be resumed,
+     * or resuming it failed, so a normal sync should be done instead
+     */
+    public boolean resumeRestore() {
+        RestoreCheckpoint checkpoint = RestoreCheckpoint.deserialize(PropertyManager._().getSingularProperty(CommCareProperties.RESTORE_CHECKPOINT));
+        if (checkpoint == null || noPartial) {
+            return false;
+        }
+        if (!checkpoint.isFor(getUsername(), originalRestoreURI)) {
+            //The cached payload is someone else's, or from another server
+            Logger.log("restore", "not resuming, checkpoint is for a different user or restore URI");
+            clearCheckpoint();
+            return false;
+        }
+        if (checkpoint.hasWritesInFlight()) {
+            //Some of the ledgers held since the last checkpoint may have been
+            //written, and replaying their transfers would apply them twice
+            Logger.log("restore", "not resuming, interrupted while writing after " + checkpoint.getBlocks() + " blocks");
+            clearCheckpoint();
+            return false;
+        }
+        try {
+            Reference ref = ReferenceManager._().DeriveReference(getCacheRef());
+            if (!ref.doesBinaryExist()) {
+                clearCheckpoint();
+                return false;
+            }
+            Logger.log("restore", "resuming after " + checkpoint.getBlocks() + " blocks: " +
+                    (checkpoint.getRestoreId() != null ? checkpoint.getRestoreId() : "???"));
+            if (!startRestore(ref.getStream(), true, checkpoint)) {
+                //Don't keep retrying the same resume on every sync
+                clearCheckpoint();
+                return false;
+            }
+            return true;
+        } catch (InvalidReferenceException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param resumable True if the payload is the cached copy, whose
+     * progress should be saved so the restore can be resumed if it's
+     * interrupted. Only done without a transaction, since otherwise nothing
+     * is kept from an interrupted restore.
+     * @param resumeFrom The checkpoint to pick up from, or null to process
+     * the whole payload
+     */
+    private boolean startRestore(InputStream input, boolean resumable, final RestoreCheckpoint resumeFrom) {
         listener.refreshView();
         listener.statusUpdate(CommCareOTARestoreListener.RESTORE_START);
 
         final InputStream fInput = input;
 
-        if(recoveryMode) {
-            listener.statusUpdate(CommCareOTARestoreListener.RESTORE_RECOVERY_WIPE);
-            //We've downloaded our file and can now recovery state fully for this user, so we need to wipe
-            //out existing cases. Ideally we'd do this by renaming the RMS (so we could recover if needed),
-            //but for now, just go for it.
-            StorageManager.getStorage(Case.STORAGE_KEY).removeAll();
+        if (resumeFrom == null) {
+            wipeForRecovery();
+        } else {
+            //Storage has the cases from before the interruption, which the
+            //running state isn't up to date with
+            CaseStorageHooks.wiped(StorageManager.getStorage(Case.STORAGE_KEY));
         }
 
         errorsOccurred = false;
@@ -268,14 +353,61 @@ public class CommCareRestorer implements Runnable {
         String[] parseErrors = new String[0];
         String restoreID = null;
 
+        RestoreProfile profile = new RestoreProfile();
+        CommCareTransactionParserFactory factory = new CommCareTransactionParserFactory(!noPartial);
+        //Cases and ledgers touched by many transactions are written once.
+        //The payload is parsed on a separate thread, while this one (which
+        //holds the transaction) performs the reads and writes
+        final WriteQueue queue = new WriteQueue();
+        factory.deferWrites(queue, createCaseLocator());
+        final CommCareTransactionParserFactory fFactory = factory;
+        final boolean checkpointed = resumable && !noPartial;
+        if (checkpointed) {
+            //Ledgers are only written at checkpoints, so that the blocks
+            //replayed on resume haven't already been applied to them
+            factory.holdLedgersUntilFlushed();
+        }
 
         try {
             beginTransaction();
-            CommCareTransactionParserFactory factory = new CommCareTransactionParserFactory(!noPartial);
             DataModelPullParser parser = new DataModelPullParser(fInput,factory,listener);
             parser.requireRootEnvelopeType("OpenRosaResponse");
-            success = parser.parse();
+            parser.setProfile(profile);
+            if (checkpointed) {
+                parser.setCheckpointing(new DataModelPullParser.CheckpointHandler() {
+                    public void checkpoint(int blocks, int errors) throws IOException {
+                        String restoreId = fFactory.getRestoreId();
+                        if (restoreId == null && resumeFrom != null) {
+                            restoreId = resumeFrom.getRestoreId();
+                        }
+                        //The blocks so far will be skipped if the restore is
+                        //resumed from here, so they need to be in storage
+                        flushAtCheckpoint(fFactory, queue);
+                        final String checkpoint = new RestoreCheckpoint(blocks, errors, restoreId, getUsername(), originalRestoreURI).serialize();
+                        queue.run(new WriteQueue.Task() {
+                            public Object run() {
+                                PropertyManager._().setProperty(CommCareProperties.RESTORE_CHECKPOINT, checkpoint);
+                                return null;
+                            }
+                        });
+                    }
+                }, CHECKPOINT_INTERVAL, resumeFrom);
+            }
+            boolean parsed = parser.parse(queue).booleanValue();
+            //Everything needs to be written before the sync token is
+            if (checkpointed) {
+                flushAtCheckpoint(factory, queue);
+            } else {
+                factory.flushDeferredWrites();
+            }
+            //The whole payload has been processed, so there's nothing left
+            //to resume
+            clearCheckpoint();
+            success = parsed;
             restoreID = factory.getRestoreId();
+            if (restoreID == null && resumeFrom != null) {
+                restoreID = resumeFrom.getRestoreId();
+            }
             caseTallies = factory.getCaseTallies();
             //TODO: Is success here too strict?
             if (success) {
@@ -304,12 +436,212 @@ public class CommCareRestorer implements Runnable {
             listener.promptRetry(Localization.get("restore.fail.technical"));
             return false;
         } finally {
+            if (checkpointed && !success && factory.hasPendingLedgers()) {
+                //The held ledgers are about to be written without a
+                //checkpoint to go with them
+                markWritesInFlight();
+            }
+            endRestore(new CommCareTransactionParserFactory[] {factory}, success, profile);
+        }
+        return reportRestore(success, restoreID, parseErrors);
+    }
+
+    /**
+     * Writes what the factory is holding for the blocks since the last
+     * checkpoint. If there are ledgers to write, the saved checkpoint is
+     * marked as having writes in flight first (on the queue's owner), so
+     * that a restore interrupted part way through writing them, or before
+     * the next checkpoint is saved, isn't resumed.
+     */
+    private void flushAtCheckpoint(CommCareTransactionParserFactory factory, WriteQueue queue) throws IOException {
+        if (factory.hasPendingLedgers()) {
+            queue.run(new WriteQueue.Task() {
+                public Object run() {
+                    markWritesInFlight();
+                    return null;
+                }
+            });
+        }
+        factory.flushDeferredWrites();
+    }
+
+    /**
+     * Marks the saved checkpoint, if there is one, as having writes in
+     * flight
+     */
+    private void markWritesInFlight() {
+        RestoreCheckpoint checkpoint = RestoreCheckpoint.deserialize(PropertyManager._().getSingularProperty(CommCareProperties.RESTORE_CHECKPOINT));
+        if (checkpoint != null) {
+            PropertyManager._().setProperty(CommCareProperties.RESTORE_CHECKPOINT, checkpoint.withWritesInFlight().serialize());
+        }
+    }
+
+    /**
+     * Processes a restore payload which has been delivered as a set of
+     * shards, each a complete restore document, parsing shards which don't
+     * touch the same cases or ledgers at the same time. The result is the
+     * same as processing the shards one after another in order.
+     *
+     * Neither the OTA nor the offline (bypass) restore reaches this, since
+     * both deliver a single payload. It's for callers which already have
+     * a payload split into shards.
+     *
+     * @param shards The shards of the restore, in order
+     */
+    public boolean startShardedRestore(Vector<Reference> shards) {
+        listener.refreshView();
+        listener.statusUpdate(CommCareOTARestoreListener.RESTORE_START);
+
+        wipeForRecovery();
+
+        errorsOccurred = false;
+
+        boolean success = false;
+        String[] parseErrors = new String[0];
+        String restoreID = null;
+
+        RestoreProfile profile = new RestoreProfile();
+        //Each shard gets its own factory, but they all share one record of
+        //where cases are in storage so they find each other's cases, and one
+        //queue so that storage is only touched on this thread, which holds
+        //the transaction
+        final CaseLocator locator = createCaseLocator();
+        final WriteQueue queue = new WriteQueue();
+        final CommCareTransactionParserFactory[] factories = new CommCareTransactionParserFactory[shards.size()];
+        for (int i = 0; i < factories.length; ++i) {
+            factories[i] = new CommCareTransactionParserFactory(!noPartial);
+            factories[i].deferWrites(queue, locator);
+        }
+
+        try {
+            beginTransaction();
+            //Note which cases are in storage before any shard starts looking for them
+            locator.seed();
+            ShardedRestoreParser parser = new ShardedRestoreParser(shards, new ShardedRestoreParser.ShardHandler() {
+                public TransactionParserFactory getFactory(int shard) {
+                    return factories[shard];
+                }
+
+                public void shardParsed(int shard) throws IOException {
+                    //The shards which depend on this one read its records from storage
+                    factories[shard].flushDeferredWrites();
+                }
+            }, SHARD_THREADS, false);
+            parser.requireRootEnvelopeType("OpenRosaResponse");
+            parser.setProfile(profile);
+            parser.setWriteQueue(queue);
+            success = parser.parse();
+            caseTallies = new int[3];
+            for (int i = 0; i < factories.length; ++i) {
+                if (factories[i].getRestoreId() != null) {
+                    restoreID = factories[i].getRestoreId();
+                }
+                int[] tallies = factories[i].getCaseTallies();
+                for (int j = 0; j < caseTallies.length; ++j) {
+                    caseTallies[j] += tallies[j];
+                }
+            }
             if (success) {
-                commitTransaction();
-            } else {
-                rollbackTransaction();
+                transitions.commitSyncToken(restoreID);
+                PropertyManager._().setProperty(CommCareProperties.LAST_SYNC_AT, DateUtils.formatDateTime(new Date(), DateUtils.FORMAT_ISO8601));
+            }
+            parseErrors = parser.getParseErrors();
+
+        } catch (IOException e) {
+            listener.promptRetry(Localization.get("restore.fail.retry"));
+            return false;
+        } catch (InvalidStructureException e) {
+            listener.promptRetry(Localization.get("restore.fail.technical"));
+            Logger.exception(e);
+            return false;
+        } catch (XmlPullParserException e) {
+            listener.promptRetry(Localization.get("restore.fail.technical"));
+            Logger.exception(e);
+            return false;
+        } catch (UnfullfilledRequirementsException e) {
+            listener.promptRetry(Localization.get("restore.fail.technical"));
+            Logger.exception(e);
+            return false;
+        } catch (RuntimeException e) {
+            Logger.exception(e);
+            listener.promptRetry(Localization.get("restore.fail.technical"));
+            return false;
+        } finally {
+            endRestore(factories, success, profile);
+        }
+        return reportRestore(success, restoreID, parseErrors);
+    }
+
+    private void clearCheckpoint() {
+        PropertyManager._().setProperty(CommCareProperties.RESTORE_CHECKPOINT, "");
+    }
+
+    /**
+     * @return The name of the logged in user, or null if the restore is
+     * happening before anyone has logged in
+     */
+    private String getUsername() {
+        User user = CommCareContext._().getUser();
+        return user == null ? null : user.getUsername();
+    }
+
+    /**
+     * Only an initial or recovery restore is mostly new cases, which makes
+     * reading the ids of the cases already in storage worthwhile.
+     */
+    private CaseLocator createCaseLocator() {
+        return new CaseLocator((IStorageUtilityIndexed)StorageManager.getStorage(Case.STORAGE_KEY), recoveryMode || syncToken == null);
+    }
+
+    private void wipeForRecovery() {
+        if(recoveryMode) {
+            listener.statusUpdate(CommCareOTARestoreListener.RESTORE_RECOVERY_WIPE);
+            //We've downloaded our file and can now recovery state fully for this user, so we need to wipe
+            //out existing cases. Ideally we'd do this by renaming the RMS (so we could recover if needed),
+            //but for now, just go for it.
+            StorageManager.getStorage(Case.STORAGE_KEY).removeAll();
+            CaseStorageHooks.wiped(StorageManager.getStorage(Case.STORAGE_KEY));
+        }
+    }
+
+    /**
+     * Writes out or drops what the factories are holding, commits or rolls
+     * back the restore's transaction, and logs the restore's profile.
+     */
+    private void endRestore(CommCareTransactionParserFactory[] factories, boolean success, RestoreProfile profile) {
+        for (int i = 0; i < factories.length; ++i) {
+            if (!success && !noPartial) {
+                //Without a transaction, keep whatever was processed, like
+                //everything else that was parsed before the failure
+                try {
+                    factories[i].flushDeferredWrites();
+                } catch (IOException e) {
+                    Logger.exception(e);
+                }
+            }
+            factories[i].discardDeferredWrites();
+            factories[i].reportWrites(profile);
+            int[] writeCounts = factories[i].getCaseWriteCounts();
+            if (writeCounts != null) {
+                Logger.log("restore", "case commits: " + writeCounts[0] + ", records written: " + writeCounts[1] +
+                        ", lookups: " + writeCounts[2] + ", index lookups: " + writeCounts[3]);
             }
         }
+        if (success) {
+            commitTransaction();
+            CaseStateHash.flush();
+            CasePurgeState.flush();
+        } else {
+            rollbackTransaction();
+            //The running state may include cases which were rolled back
+            CaseStorageHooks.wiped(StorageManager.getStorage(Case.STORAGE_KEY));
+        }
+        profile.finish();
+        lastProfile = profile;
+        Logger.log("restore", "profile: " + profile.getReport());
+    }
+
+    private boolean reportRestore(boolean success, String restoreID, String[] parseErrors) {
         if (success) {
             listener.statusUpdate(CommCareOTARestoreListener.RESTORE_SUCCESS);
             Logger.log("restore", "successful: " + (restoreID != null ? restoreID : "???"));
@@ -379,6 +711,8 @@ public class CommCareRestorer implements Runnable {
     private void downloadRemoteData(InputStream stream) throws IOException {
         listener.refreshView();
         Reference ref;
+        //Any checkpoint is for the payload which is about to be replaced
+        clearCheckpoint();
         try {
             ref = ReferenceManager._().DeriveReference(getCacheRef());
 
@@ -450,7 +784,7 @@ public class CommCareRestorer implements Runnable {
                 }
 
                 listener.statusUpdate(CommCareOTARestoreListener.RESTORE_DOWNLOADED);
-                startRestore(ref.getStream());
+                startRestore(ref.getStream(), true, null);
             }
         } catch (InvalidReferenceException e) {
             noCache(stream);
@@ -511,6 +845,14 @@ public class CommCareRestorer implements Runnable {
 
     }
 
+    /**
+     * @return The counts and timings from the last restore which was
+     * processed, or null if there hasn't been one
+     */
+    public RestoreProfile getLastProfile() {
+        return lastProfile;
+    }
+
     public Hashtable<String, Integer> getCaseTallies() {
         Hashtable<String, Integer> tall = new Hashtable<String, Integer>();
         tall.put("create", new Integer(this.caseTallies[0]));
@@ -6,7 +6,13 @@ package org.commcare.util;
 import java.io.IOException;
 
 import org.commcare.cases.ledger.Ledger;
+import org.commcare.cases.ledger.LedgerWriteCache;
 import org.commcare.cases.model.Case;
+import org.commcare.cases.util.CaseLocator;
+import org.commcare.cases.util.CaseWriteCache;
+import org.commcare.cases.util.WriteQueue;
+import org.commcare.data.xml.DataModelPullParser;
+import org.commcare.data.xml.RestoreProfile;
 import org.commcare.data.xml.TransactionParser;
 import org.commcare.data.xml.TransactionParserFactory;
 import org.commcare.xml.AttachableCaseXMLParser;
@@ -45,6 +51,10 @@ public class CommCareTransactionParserFactory implements TransactionParserFactor
     private String message;
     private OrderedHashtable<String, String> messages = new OrderedHashtable<String,String>();
 
+    private CaseWriteCache caseCache;
+    private LedgerWriteCache ledgerCache;
+    private WriteQueue writeQueue;
+
     /**
      * Creates a new factory for processing incoming XML.
      * @param tolerant True if processing should fail in the event of conflicting data,
@@ -62,13 +72,13 @@ public class CommCareTransactionParserFactory implements TransactionParserFactor
      */
     public TransactionParser getParser(String name, String namespace, KXmlParser parser) {
         if(name.toLowerCase().equals("case")) {
-            return new AttachableCaseXMLParser(parser, caseTallies, tolerant, (IStorageUtilityIndexed)StorageManager.getStorage(Case.STORAGE_KEY));
+            return new AttachableCaseXMLParser(parser, caseTallies, tolerant, (IStorageUtilityIndexed)StorageManager.getStorage(Case.STORAGE_KEY), caseCache);
         } else if(name.toLowerCase().equals("registration")) {
             //TODO: It's possible we want to do the restoreID thing after signalling success, actually. If the
             //restore gets cut off, we don't want to be re-sending the token, since it implies that it worked.
-            return new UserXmlParser(parser, restoreId);
+            return onQueueOwner(new UserXmlParser(parser, restoreId), parser, name);
         }  else if(namespace.toLowerCase().equals(LedgerXmlParsers.STOCK_XML_NAMESPACE)) {
-            return new LedgerXmlParsers(parser, (IStorageUtilityIndexed)StorageManager.getStorage(Ledger.STORAGE_KEY));
+            return new LedgerXmlParsers(parser, (IStorageUtilityIndexed)StorageManager.getStorage(Ledger.STORAGE_KEY), ledgerCache);
         } else if(name.toLowerCase().equals("message")) {
             return new TransactionParser<String> (parser, "message", null) {
 
@@ -111,11 +121,180 @@ public class CommCareTransactionParserFactory implements TransactionParserFactor
                 }
             };
         } else if(name.toLowerCase().equals("fixture")) {
-            return new FixtureXmlParser(parser);
+            return onQueueOwner(new FixtureXmlParser(parser), parser, name);
         }
         return null;
     }
 
+    /**
+     * Parsers which read and write storage directly, rather than through the
+     * write caches, need to do so on the thread which owns the restore's
+     * transaction. When there's a write queue, the whole block is parsed on
+     * that thread while the thread reading the payload waits for it.
+     */
+    private TransactionParser onQueueOwner(final TransactionParser transaction, KXmlParser parser, String name) {
+        if(writeQueue == null) {
+            return transaction;
+        }
+        return new TransactionParser<Object> (parser, name, null) {
+            public void commit(Object parsed) throws IOException {
+                transaction.commit(parsed);
+            }
+
+            public Object parse() throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
+                final Exception[] failure = new Exception[1];
+                Object parsed = writeQueue.run(new WriteQueue.Task() {
+                    public Object run() {
+                        try {
+                            return transaction.parse();
+                        } catch (Exception e) {
+                            failure[0] = e;
+                            return null;
+                        }
+                    }
+                });
+                if(failure[0] != null) {
+                    DataModelPullParser.rethrow(failure[0]);
+                }
+                return parsed;
+            }
+        };
+    }
+
+    /**
+     * Holds cases and ledgers modified by the transactions this factory
+     * parses in memory, so that each record is only read and written once
+     * and writes happen in batches, instead of writing each record as its
+     * transaction is parsed. Once this is called, flushDeferredWrites() must
+     * be called when processing is completed (before the restore is
+     * committed), and discardDeferredWrites() once the restore is done with
+     * either way.
+     *
+     * @param pipelined True if the payload will be parsed on a separate
+     * thread from the one calling this, which will serve the factory's write
+     * queue (see getWriteQueue()) so that storage is only touched on it
+     */
+    public void deferWrites(boolean pipelined) {
+        deferWrites(pipelined ? new WriteQueue() : null, null);
+    }
+
+    /**
+     * As deferWrites(boolean), but handing storage operations to the
+     * provided queue's owner, and looking up and recording where cases are
+     * in storage through the provided locator. Several factories filling
+     * case storage at once (IE: for the shards of a restore) should share
+     * both so that they find each other's cases, and so that storage is
+     * only touched on the thread holding the restore's transaction.
+     *
+     * @param queue The queue to hand storage operations to, or null to
+     * perform them on the thread parsing the payload
+     * @param locator The locator to share, or null for this factory to use
+     * its own
+     */
+    public void deferWrites(WriteQueue queue, CaseLocator locator) {
+        if(caseCache == null) {
+            IStorageUtilityIndexed caseStorage = (IStorageUtilityIndexed)StorageManager.getStorage(Case.STORAGE_KEY);
+            if(locator == null) {
+                caseCache = new CaseWriteCache(caseStorage);
+            } else {
+                caseCache = new CaseWriteCache(caseStorage, CaseWriteCache.DEFAULT_BATCH_SIZE, locator);
+            }
+        }
+        if(ledgerCache == null) {
+            ledgerCache = new LedgerWriteCache((IStorageUtilityIndexed)StorageManager.getStorage(Ledger.STORAGE_KEY));
+        }
+        if(queue != null && writeQueue == null) {
+            writeQueue = queue;
+            caseCache.setWriteQueue(writeQueue);
+            ledgerCache.setWriteQueue(writeQueue);
+        }
+    }
+
+    /**
+     * Holds modified ledgers until flushDeferredWrites() is called, rather
+     * than writing them early once many are held, for restores which are
+     * checkpointed. A transfer from a block which is replayed when the
+     * restore is resumed would otherwise be applied again to ledgers which
+     * already include it. Must be called after deferWrites().
+     */
+    public void holdLedgersUntilFlushed() {
+        ledgerCache.setHoldUntilFlushed(true);
+    }
+
+    /**
+     * @return True if there are modified ledgers which haven't been written
+     */
+    public boolean hasPendingLedgers() {
+        return ledgerCache != null && ledgerCache.getPendingCount() > 0;
+    }
+
+    /**
+     * @return The queue storage operations are handed to, or null if they
+     * are performed on the thread parsing the payload
+     */
+    public WriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * Writes any cases and ledgers which are being held by this factory to
+     * storage.
+     */
+    public void flushDeferredWrites() throws IOException {
+        if(caseCache != null) {
+            caseCache.flush();
+        }
+        if(ledgerCache != null) {
+            ledgerCache.flush();
+        }
+    }
+
+    /**
+     * Drops any cases and ledgers which are being held by this factory
+     * without writing them, and closes the write queue if there is one.
+     */
+    public void discardDeferredWrites() {
+        if(writeQueue != null) {
+            writeQueue.close();
+        }
+        if(caseCache != null) {
+            caseCache.discard();
+        }
+        if(ledgerCache != null) {
+            ledgerCache.discard();
+        }
+    }
+
+    /**
+     * @return An int[4] array containing counts of case storage access, or
+     * null if case writes aren't being deferred.
+     * int[0]: cases committed by transactions
+     * int[1]: case records written to storage
+     * int[2]: cases looked up by transactions
+     * int[3]: case lookups which needed the storage index
+     */
+    public int[] getCaseWriteCounts() {
+        if(caseCache == null) {
+            return null;
+        }
+        return new int[] {caseCache.getCommitCount(), caseCache.getWriteCount(),
+                caseCache.getLookupCount(), caseCache.getIndexLookupCount()};
+    }
+
+    /**
+     * Adds the cases and ledgers written from this factory's write caches,
+     * and the time spent writing them, to the provided profile. Should be
+     * called once the writes are finished.
+     */
+    public void reportWrites(RestoreProfile profile) {
+        if(caseCache != null) {
+            profile.recordsWritten(caseCache.getWriteCount(), caseCache.getWriteTime());
+        }
+        if(ledgerCache != null) {
+            profile.recordsWritten(ledgerCache.getWriteCount(), ledgerCache.getWriteTime());
+        }
+    }
+
     /**
      * @return An int[3] array containing a count of Cases
      * int[0]: created
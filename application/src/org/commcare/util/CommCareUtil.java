@@ -13,7 +13,9 @@ import org.commcare.applogic.CommCareAlertState;
 import org.commcare.applogic.CommCareFirstStartState;
 import org.commcare.applogic.CommCareHomeState;
 import org.commcare.applogic.CommCareLoginState;
+import org.commcare.cases.fixture.FixtureItem;
 import org.commcare.cases.model.Case;
+import org.commcare.cases.util.RecordBitmap;
 import org.commcare.core.properties.CommCareProperties;
 import org.commcare.suite.model.Entry;
 import org.commcare.suite.model.Profile;
@@ -362,7 +364,31 @@ public class CommCareUtil {
         }
     }
 
+    /**
+     * Loads a fixture with all of its items in memory. Only suitable for
+     * small fixtures, larger ones should be read through the paged root from
+     * loadFixtureRecordForUser.
+     */
     public static FormInstance loadFixtureForUser(String refId, String userId) {
+        FormInstance fixture = loadFixtureRecordForUser(refId, userId);
+        if (fixture == null) {
+            return null;
+        }
+        IStorageUtilityIndexed itemStorage = (IStorageUtilityIndexed)StorageManager.getStorage(FixtureItem.STORAGE_KEY);
+        Vector<Integer> items = itemStorage.getIDsForValue(FixtureItem.META_FIXTURE, String.valueOf(fixture.getID()));
+        int[] ids = RecordBitmap.fromVector(items).toArray();
+        for (int i = 0; i < ids.length; ++i) {
+            fixture.getRoot().addChild(((FixtureItem)itemStorage.read(ids[i])).getItem());
+        }
+        return fixture;
+    }
+
+    /**
+     * Loads the stored record for a fixture. Fixtures which were stored as
+     * items only have their data root in this record, and their items in
+     * FixtureItem storage.
+     */
+    public static FormInstance loadFixtureRecordForUser(String refId, String userId) {
         IStorageUtilityIndexed storage = (IStorageUtilityIndexed)StorageManager.getStorage("fixture");
 
         FormInstance fixture = null;
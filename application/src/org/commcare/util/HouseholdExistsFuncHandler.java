@@ -12,6 +12,13 @@ import org.javarosa.core.services.storage.StorageManager;
 
 public class HouseholdExistsFuncHandler implements IFunctionHandler {
 
+    private static final String EXTERNAL_ID_PROPERTY = "external-id";
+
+    public HouseholdExistsFuncHandler() {
+        //Household lookups are by external id, make sure it's indexed
+        Case.registerIndexedProperty(EXTERNAL_ID_PROPERTY);
+    }
+
     public String getName() {
         return "household-exists";
     }
@@ -40,8 +47,16 @@ public class HouseholdExistsFuncHandler implements IFunctionHandler {
 
     public boolean validateHouseholdID (String hhid) {
         IStorageUtilityIndexed cases = (IStorageUtilityIndexed)StorageManager.getStorage(Case.STORAGE_KEY);
-        Vector extidIDs = cases.getIDsForValue("external-id", hhid);
-        Vector typeIDs = cases.getIDsForValue("case-type", "cc_case_house_visit");
+        String extidKey = Case.INDEX_CASE_PROPERTY_PRE + EXTERNAL_ID_PROPERTY;
+        Vector extidIDs;
+        try {
+            extidIDs = cases.getIDsForValue(extidKey, hhid);
+        } catch (IllegalArgumentException e) {
+            //Storage was opened before the property was declared
+            cases.registerIndex(extidKey);
+            extidIDs = cases.getIDsForValue(extidKey, hhid);
+        }
+        Vector typeIDs = cases.getIDsForValue(Case.INDEX_CASE_TYPE, "cc_case_house_visit");
 
         boolean found = false;
         //for each case with same ext id
@@ -6,6 +6,7 @@ package org.commcare.xml;
 import java.io.IOException;
 
 import org.commcare.cases.model.Case;
+import org.commcare.cases.util.CaseWriteCache;
 import org.javarosa.core.io.StreamsUtil;
 import org.javarosa.core.reference.InvalidReferenceException;
 import org.javarosa.core.reference.Reference;
@@ -25,6 +26,10 @@ public class AttachableCaseXMLParser extends CaseXmlParser {
         super(parser, tallies, acceptCreateOverwrites, storage);
     }
 
+    public AttachableCaseXMLParser(KXmlParser parser, int[] tallies, boolean acceptCreateOverwrites, IStorageUtilityIndexed storage, CaseWriteCache writeCache) {
+        super(parser, tallies, acceptCreateOverwrites, storage, writeCache);
+    }
+
     protected void removeAttachment(Case caseForBlock, String attachmentName) {
 
     }
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Vector;
 
+import org.commcare.cases.util.WriteQueue;
 import org.commcare.resources.model.CommCareOTARestoreListener;
 import org.commcare.xml.ElementParser;
 import org.commcare.xml.util.InvalidStructureException;
@@ -23,6 +24,24 @@ import org.xmlpull.v1.XmlPullParserException;
  */
 public class DataModelPullParser extends ElementParser<Boolean> {
 
+    /**
+     * Notified as top level blocks of the payload are processed, so that
+     * progress through it can be saved.
+     */
+    public interface CheckpointHandler {
+        /**
+         * Called after every so many top level blocks have been processed.
+         * Anything those blocks are holding to write needs to be written
+         * before the checkpoint is saved, since a restore resumed from it
+         * will skip them.
+         *
+         * @param blocks The number of top level blocks processed so far,
+         *               including any skipped over when resuming
+         * @param errors The number of those blocks which failed to parse
+         */
+        void checkpoint(int blocks, int errors) throws IOException;
+    }
+
     Vector<String> errors;
 
     TransactionParserFactory factory;
@@ -36,6 +55,16 @@ public class DataModelPullParser extends ElementParser<Boolean> {
 
     CommCareOTARestoreListener rListener;
 
+    CheckpointHandler checkpointHandler;
+    int checkpointInterval;
+    RestoreCheckpoint resumeFrom;
+
+    //Top level blocks processed or skipped so far
+    int blocks;
+
+    RestoreProfile profile;
+    ByteCountingInput counter;
+
     public DataModelPullParser(InputStream is, TransactionParserFactory factory) throws InvalidStructureException, IOException {
         this(is, factory, false);
     }
@@ -53,8 +82,9 @@ public class DataModelPullParser extends ElementParser<Boolean> {
     }
 
     public DataModelPullParser(InputStream is, TransactionParserFactory factory, boolean failfast, boolean deep, CommCareOTARestoreListener rListener) throws InvalidStructureException, IOException {
-        super(is);
+        super(is = new ByteCountingInput(is));
         this.is = is;
+        this.counter = (ByteCountingInput)is;
         this.failfast = failfast;
         this.factory = factory;
         errors = new Vector<String>();
@@ -91,7 +121,7 @@ public class DataModelPullParser extends ElementParser<Boolean> {
             //them using the appropriate CommCare Model data parser.
 
             //Go through each child of the root element
-            parseBlock(rootName);
+            parseBlock(rootName, true);
         } finally {
             //kxmlparser might close the stream, but we can't be sure, especially if
             //we bail early due to schema errors
@@ -100,16 +130,74 @@ public class DataModelPullParser extends ElementParser<Boolean> {
             } catch (IOException ioe) {
                 //swallow
             }
+            if (profile != null) {
+                profile.bytesRead(counter.count);
+            }
         }
 
-        if (errors.size() == 0) {
+        if (errors.size() == 0 && getSkippedErrors() == 0) {
             return Boolean.TRUE;
         } else {
             return Boolean.FALSE;
         }
     }
 
-    private void parseBlock(String root) throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
+    /**
+     * Parses the payload on a separate thread while the calling thread, which
+     * must own the provided queue, performs the storage operations which the
+     * transactions hand to the queue. Used when storage may only be touched
+     * on the thread holding the restore's transaction.
+     */
+    public Boolean parse(final WriteQueue queue) throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
+        final Boolean[] result = new Boolean[1];
+        final Exception[] failure = new Exception[1];
+        Thread parsing = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    result[0] = parse();
+                } catch (Exception e) {
+                    failure[0] = e;
+                } finally {
+                    queue.stopServing();
+                }
+            }
+        });
+        parsing.start();
+        queue.serve();
+        try {
+            parsing.join();
+        } catch (InterruptedException e) {
+            //serve() only returns once the parsing thread is finishing
+        }
+        if (failure[0] != null) {
+            rethrow(failure[0]);
+        }
+        if (result[0] == null) {
+            throw new RuntimeException("Parsing thread stopped without finishing the payload");
+        }
+        return result[0];
+    }
+
+    /**
+     * Throws an exception which was caught from parsing on another thread
+     * as the type it was originally thrown as.
+     */
+    public static void rethrow(Exception e) throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
+        if (e instanceof InvalidStructureException) {
+            throw (InvalidStructureException)e;
+        } else if (e instanceof IOException) {
+            throw (IOException)e;
+        } else if (e instanceof XmlPullParserException) {
+            throw (XmlPullParserException)e;
+        } else if (e instanceof UnfullfilledRequirementsException) {
+            throw (UnfullfilledRequirementsException)e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException)e;
+        }
+        throw new WrappedException(e);
+    }
+
+    private void parseBlock(String root, boolean top) throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
         int parsedCounter = 0;
         while (this.nextTagInBlock(root)) {
 
@@ -126,11 +214,21 @@ public class DataModelPullParser extends ElementParser<Boolean> {
                 continue;
             }
 
+            if (top && resumeFrom != null && blocks < resumeFrom.getBlocks()) {
+                //Already processed before the restore was interrupted
+                this.skipBlock(name);
+                blocks++;
+                continue;
+            }
+
+            long start = profile == null ? 0 : System.currentTimeMillis();
+            boolean failed = false;
+
             TransactionParser transaction = factory.getParser(name, namespace, parser);
             if (transaction == null) {
                 //nothing to be done for this element, recurse?
                 if (deep) {
-                    parseBlock(name);
+                    parseBlock(name, false);
                 } else {
                     this.skipBlock(name);
                 }
@@ -140,15 +238,33 @@ public class DataModelPullParser extends ElementParser<Boolean> {
                         transaction.parse();
                     } catch (Exception e) {
                         e.printStackTrace();
+                        failed = true;
                         deal(e, depth, name);
                     }
                 } else {
                     transaction.parse();
                 }
             }
+
+            //Elements which were recursed into have had their children
+            //recorded instead
+            if (profile != null && (transaction != null || !deep)) {
+                profile.blockParsed(name, System.currentTimeMillis() - start, failed);
+            }
+
+            if (top) {
+                blocks++;
+                if (checkpointHandler != null && blocks % checkpointInterval == 0) {
+                    checkpointHandler.checkpoint(blocks, getSkippedErrors() + errors.size());
+                }
+            }
         }
     }
 
+    private int getSkippedErrors() {
+        return resumeFrom == null ? 0 : resumeFrom.getErrors();
+    }
+
     private void deal(Exception e, int depth, String parentTag) throws XmlPullParserException, IOException {
         errors.addElement(WrappedException.printException(e));
         this.skipBlock(parentTag);
@@ -176,4 +292,64 @@ public class DataModelPullParser extends ElementParser<Boolean> {
     public void requireRootEnvelopeType(String string) {
         requiredRootEnvelope = string;
     }
+
+    /**
+     * Records the counts and timings of the elements parsed, and the bytes
+     * read, in the provided profile.
+     */
+    public void setProfile(RestoreProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Reports progress through the payload to the provided handler every
+     * interval top level blocks, and optionally picks up from where an
+     * earlier attempt at parsing the same payload got to.
+     *
+     * @param resumeFrom A checkpoint saved while parsing this same payload,
+     *                   whose blocks will be skipped, or null to parse the
+     *                   whole payload. If any of the skipped blocks failed
+     *                   to parse, parse() will return false.
+     */
+    public void setCheckpointing(CheckpointHandler handler, int interval, RestoreCheckpoint resumeFrom) {
+        this.checkpointHandler = handler;
+        this.checkpointInterval = interval;
+        this.resumeFrom = resumeFrom;
+    }
+
+    /**
+     * Counts the bytes read from the payload
+     */
+    private static class ByteCountingInput extends InputStream {
+        private final InputStream in;
+        long count;
+
+        ByteCountingInput(InputStream in) {
+            this.in = in;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package org.commcare.data.xml;
+
+/**
+ * How far processing of a restore payload had gotten when its progress was
+ * last saved: the number of top level blocks of the payload which had been
+ * processed and written to storage, how many of those failed to parse, and
+ * the restore id from the payload (if it had been read yet). The checkpoint
+ * also records whose payload it is (the user and the restore URI), since
+ * the cached payload is replaced by whoever syncs next.
+ *
+ * A restore which was interrupted part way through (IE: by the app being
+ * killed) can be picked up from its last checkpoint by parsing the same
+ * payload again with the checkpoint, which skips over the blocks which were
+ * already processed.
+ *
+ * Replaying blocks isn't always harmless (a ledger transfer applied twice
+ * moves the stock twice), so the saved checkpoint is marked as having
+ * writes in flight while the records held for the blocks since it are
+ * being written. A restore interrupted while it's marked that way can't
+ * safely be resumed.
+ */
+public class RestoreCheckpoint {
+
+    private final int blocks;
+    private final int errors;
+    private final String restoreId;
+    private final String username;
+    private final String restoreUri;
+    private final boolean writing;
+
+    public RestoreCheckpoint(int blocks, int errors, String restoreId, String username, String restoreUri) {
+        this(blocks, errors, restoreId, username, restoreUri, false);
+    }
+
+    /**
+     * @param username   The user the payload was restored for, or null if
+     *                   no user was logged in
+     * @param restoreUri The URI the payload was restored from
+     * @param writing    True if the records held for the blocks before this
+     *                   checkpoint are being written
+     */
+    public RestoreCheckpoint(int blocks, int errors, String restoreId, String username, String restoreUri, boolean writing) {
+        this.blocks = blocks;
+        this.errors = errors;
+        this.restoreId = restoreId;
+        this.username = username == null ? "" : username;
+        this.restoreUri = restoreUri == null ? "" : restoreUri;
+        this.writing = writing;
+    }
+
+    /**
+     * @return The number of top level blocks which had been processed
+     */
+    public int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return The number of the processed blocks which failed to parse
+     */
+    public int getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return The restore id from the payload, or null if it hadn't been
+     * read yet
+     */
+    public String getRestoreId() {
+        return restoreId;
+    }
+
+    /**
+     * @return True if the checkpoint was saved for a restore by the provided
+     * user from the provided URI
+     */
+    public boolean isFor(String username, String restoreUri) {
+        return this.username.equals(username == null ? "" : username) && this.restoreUri.equals(restoreUri == null ? "" : restoreUri);
+    }
+
+    /**
+     * @return A copy of this checkpoint, marked as having writes in flight
+     */
+    public RestoreCheckpoint withWritesInFlight() {
+        return new RestoreCheckpoint(blocks, errors, restoreId, username, restoreUri, true);
+    }
+
+    /**
+     * @return True if the checkpoint was saved while records were being
+     * written, so that some of them may be in storage and some not
+     */
+    public boolean hasWritesInFlight() {
+        return writing;
+    }
+
+    /**
+     * @return The checkpoint as a string which can be stored as a property
+     */
+    public String serialize() {
+        return (writing ? "~" : "") + blocks + " " + errors + " " + escape(username) + " " + escape(restoreUri) +
+                (restoreId == null ? "" : " " + restoreId);
+    }
+
+    /**
+     * @return The checkpoint stored in the provided string, or null if there
+     * isn't a valid one.
+     */
+    public static RestoreCheckpoint deserialize(String serialized) {
+        if (serialized == null) {
+            return null;
+        }
+        boolean writing = serialized.startsWith("~");
+        if (writing) {
+            serialized = serialized.substring(1);
+        }
+        int first = serialized.indexOf(' ');
+        int second = first == -1 ? -1 : serialized.indexOf(' ', first + 1);
+        int third = second == -1 ? -1 : serialized.indexOf(' ', second + 1);
+        if (third == -1) {
+            return null;
+        }
+        int fourth = serialized.indexOf(' ', third + 1);
+        try {
+            int blocks = Integer.parseInt(serialized.substring(0, first));
+            int errors = Integer.parseInt(serialized.substring(first + 1, second));
+            String username = unescape(serialized.substring(second + 1, third));
+            String restoreUri = unescape(fourth == -1 ? serialized.substring(third + 1) : serialized.substring(third + 1, fourth));
+            String restoreId = fourth == -1 ? null : serialized.substring(fourth + 1);
+            return new RestoreCheckpoint(blocks, errors, restoreId, username, restoreUri, writing);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Encodes spaces (and the escape character) so the value can be one
+     * space separated field.
+     */
+    private static String escape(String value) {
+        StringBuffer escaped = new StringBuffer();
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '%') {
+                escaped.append("%25");
+            } else if (c == ' ') {
+                escaped.append("%20");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String value) {
+        StringBuffer unescaped = new StringBuffer();
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '%' && value.startsWith("%20", i)) {
+                unescaped.append(' ');
+                i += 2;
+            } else if (c == '%' && value.startsWith("%25", i)) {
+                unescaped.append('%');
+                i += 2;
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
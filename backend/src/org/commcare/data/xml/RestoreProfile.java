@@ -0,0 +1,176 @@
+/**
+ *
+ */
+package org.commcare.data.xml;
+
+import java.util.Hashtable;
+
+import org.javarosa.core.util.DataUtil;
+
+/**
+ * Where the time in a restore went: for each kind of top level element in
+ * the payload, how many there were, how many failed to parse and how long
+ * was spent parsing them (including any storage access their transactions
+ * did themselves), along with the time spent writing records which were
+ * held to be written later, the number of payload bytes read and the
+ * restore's total time.
+ *
+ * Counts are kept in flat arrays and times come from the system clock, so
+ * keeping a profile costs a couple of clock reads per block, and it can be
+ * left on for every restore. Parse times from several threads (IE: for a
+ * sharded restore) are added together, so they can add up to more than
+ * the total time.
+ */
+public class RestoreProfile {
+
+    //element name -> index into the arrays below
+    private final Hashtable<String, Integer> elements = new Hashtable<String, Integer>();
+
+    private String[] names = new String[8];
+    private int[] counts = new int[8];
+    private int[] failures = new int[8];
+    private long[] parseTimes = new long[8];
+    private int size;
+
+    private int recordsWritten;
+    private long writeTime;
+    private long bytesRead;
+
+    private final long started;
+    private long finished = -1;
+
+    public RestoreProfile() {
+        started = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that a top level element was processed.
+     *
+     * @param time   How long it took, in milliseconds
+     * @param failed Whether it failed to parse
+     */
+    public synchronized void blockParsed(String name, long time, boolean failed) {
+        int index = indexOf(name);
+        counts[index]++;
+        parseTimes[index] += time;
+        if (failed) {
+            failures[index]++;
+        }
+    }
+
+    /**
+     * Records writes of records which were held to be written after the
+     * blocks which modified them were parsed.
+     *
+     * @param time How long the writes took, in milliseconds
+     */
+    public synchronized void recordsWritten(int records, long time) {
+        recordsWritten += records;
+        writeTime += time;
+    }
+
+    public synchronized void bytesRead(long bytes) {
+        bytesRead += bytes;
+    }
+
+    /**
+     * Marks the end of the restore.
+     */
+    public synchronized void finish() {
+        finished = System.currentTimeMillis();
+    }
+
+    /**
+     * @return The names of the elements which were processed, in the order
+     * they were first seen
+     */
+    public synchronized String[] getElementNames() {
+        String[] copy = new String[size];
+        System.arraycopy(names, 0, copy, 0, size);
+        return copy;
+    }
+
+    public synchronized int getCount(String name) {
+        Integer index = elements.get(name);
+        return index == null ? 0 : counts[index.intValue()];
+    }
+
+    public synchronized int getFailures(String name) {
+        Integer index = elements.get(name);
+        return index == null ? 0 : failures[index.intValue()];
+    }
+
+    /**
+     * @return The total time spent on elements with the given name, in
+     * milliseconds
+     */
+    public synchronized long getParseTime(String name) {
+        Integer index = elements.get(name);
+        return index == null ? 0 : parseTimes[index.intValue()];
+    }
+
+    public synchronized int getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    public synchronized long getWriteTime() {
+        return writeTime;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return The time from the profile being created to finish() being
+     * called (or now, if it hasn't been), in milliseconds
+     */
+    public synchronized long getTotalTime() {
+        return (finished == -1 ? System.currentTimeMillis() : finished) - started;
+    }
+
+    /**
+     * @return The profile as a single line of space separated fields, each
+     * a name and value separated by '=', with the elements in the order
+     * they were first seen. Element values are
+     * count/failures/milliseconds.
+     *
+     * IE: "total=5210 bytes=1048576 written=2000 write=840 case=1900/0/3900 fixture=2/0/310"
+     */
+    public synchronized String getReport() {
+        StringBuffer report = new StringBuffer();
+        report.append("total=").append(getTotalTime());
+        report.append(" bytes=").append(bytesRead);
+        report.append(" written=").append(recordsWritten);
+        report.append(" write=").append(writeTime);
+        for (int i = 0; i < size; ++i) {
+            report.append(' ').append(names[i]).append('=').append(counts[i]).append('/').append(failures[i]).append('/').append(parseTimes[i]);
+        }
+        return report.toString();
+    }
+
+    private int indexOf(String name) {
+        Integer index = elements.get(name);
+        if (index != null) {
+            return index.intValue();
+        }
+        if (size == names.length) {
+            int capacity = size * 2;
+            String[] newNames = new String[capacity];
+            System.arraycopy(names, 0, newNames, 0, size);
+            names = newNames;
+            int[] newCounts = new int[capacity];
+            System.arraycopy(counts, 0, newCounts, 0, size);
+            counts = newCounts;
+            int[] newFailures = new int[capacity];
+            System.arraycopy(failures, 0, newFailures, 0, size);
+            failures = newFailures;
+            long[] newTimes = new long[capacity];
+            System.arraycopy(parseTimes, 0, newTimes, 0, size);
+            parseTimes = newTimes;
+        }
+        names[size] = name;
+        elements.put(name, DataUtil.integer(size));
+        return size++;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package org.commcare.data.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+
+import org.commcare.xml.ElementParser;
+import org.commcare.xml.LedgerXmlParsers;
+import org.commcare.xml.util.InvalidStructureException;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Makes a quick pass over one shard of a restore payload to find the keys
+ * of the records it writes and refers to, for ShardDependencies. Nothing
+ * is parsed into models or written.
+ *
+ * Cases are keyed by case id, and a case's index targets are recorded as
+ * references. Ledgers are keyed by the entity ids that balances and
+ * transfers touch. Fixtures are keyed by their id and user, and user
+ * registrations by the user's id. Other top level elements (message, Sync)
+ * don't write records, so they don't tie shards together.
+ */
+public class RestoreShardScanner extends ElementParser<Boolean> {
+
+    private final Hashtable<String, String> written;
+    private final Hashtable<String, String> referenced;
+
+    /**
+     * @param written    Filled with the keys of the records the shard writes
+     * @param referenced Filled with the keys of the records the shard refers
+     *                   to
+     */
+    public RestoreShardScanner(InputStream is, Hashtable<String, String> written, Hashtable<String, String> referenced) throws IOException {
+        super(is);
+        this.written = written;
+        this.referenced = referenced;
+    }
+
+    public Boolean parse() throws InvalidStructureException, IOException, XmlPullParserException {
+        String rootName = parser.getName();
+        while (this.nextTagInBlock(rootName)) {
+            String name = parser.getName();
+            if (name == null) {
+                continue;
+            }
+            if (name.toLowerCase().equals("case")) {
+                scanCase();
+            } else if (LedgerXmlParsers.STOCK_XML_NAMESPACE.equals(parser.getNamespace())) {
+                addLedger(parser.getAttributeValue(null, "entity-id"));
+                addLedger(parser.getAttributeValue(null, "src"));
+                addLedger(parser.getAttributeValue(null, "dest"));
+                this.skipBlock(name);
+            } else if (name.toLowerCase().equals("fixture")) {
+                String id = parser.getAttributeValue(null, "id");
+                String userId = parser.getAttributeValue(null, "user_id");
+                add(written, "fixture:" + (id == null ? "" : id) + ":" + (userId == null ? "" : userId));
+                this.skipBlock(name);
+            } else if (name.toLowerCase().equals("registration")) {
+                scanRegistration();
+            } else {
+                this.skipBlock(name);
+            }
+        }
+        return Boolean.TRUE;
+    }
+
+    private void scanCase() throws InvalidStructureException, IOException, XmlPullParserException {
+        String caseId = parser.getAttributeValue(null, "case_id");
+        if (caseId != null) {
+            add(written, getCaseKey(caseId));
+        }
+        while (this.nextTagInBlock("case")) {
+            String action = parser.getName();
+            if (action == null) {
+                continue;
+            }
+            if (action.toLowerCase().equals("index")) {
+                while (this.nextTagInBlock("index")) {
+                    String target = parser.nextText().trim();
+                    if (target.length() > 0) {
+                        add(referenced, getCaseKey(target));
+                    }
+                }
+            } else {
+                this.skipBlock(action);
+            }
+        }
+    }
+
+    private void scanRegistration() throws InvalidStructureException, IOException, XmlPullParserException {
+        String rootName = parser.getName();
+        String uuid = "";
+        while (this.nextTagInBlock(rootName)) {
+            String tag = parser.getName();
+            if (tag == null) {
+                continue;
+            }
+            if (tag.toLowerCase().equals("uuid")) {
+                uuid = parser.nextText().trim();
+            } else {
+                this.skipBlock(tag);
+            }
+        }
+        add(written, "registration:" + uuid);
+    }
+
+    private void addLedger(String entityId) {
+        if (entityId != null) {
+            add(written, "ledger:" + entityId);
+        }
+    }
+
+    private static void add(Hashtable<String, String> keys, String key) {
+        keys.put(key, key);
+    }
+
+    /**
+     * @return The key a case with the provided id is recorded under
+     */
+    public static String getCaseKey(String caseId) {
+        return "case:" + caseId;
+    }
+}
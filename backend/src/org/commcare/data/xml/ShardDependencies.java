@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package org.commcare.data.xml;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Works out which shards of a restore have to be processed before which
+ * others, for the result to be the same as processing all of them in order
+ * on one stream.
+ *
+ * Each shard is described by the keys of the records it writes (IE:
+ * "case:" followed by the case id) and the keys of records it refers to
+ * (IE: the targets of case indices). A shard has to wait for the last
+ * earlier shard which wrote each key it writes or refers to. Shards which
+ * share no keys can be processed at the same time.
+ */
+public class ShardDependencies {
+
+    /**
+     * @param written    For each shard, in order, the keys it writes
+     * @param referenced For each shard, in order, the keys it refers to
+     * @return For each shard, the indices of the shards which must be
+     * finished before it starts
+     */
+    public static int[][] compute(Vector<Hashtable<String, String>> written, Vector<Hashtable<String, String>> referenced) {
+        int count = written.size();
+        int[][] dependencies = new int[count][];
+
+        //key -> index of the last shard so far which wrote it
+        Hashtable<String, Integer> lastWriter = new Hashtable<String, Integer>();
+
+        for (int shard = 0; shard < count; ++shard) {
+            boolean[] waitsFor = new boolean[shard];
+            collect(written.elementAt(shard), lastWriter, waitsFor);
+            collect(referenced.elementAt(shard), lastWriter, waitsFor);
+
+            int numDependencies = 0;
+            for (int i = 0; i < shard; ++i) {
+                if (waitsFor[i]) {
+                    numDependencies++;
+                }
+            }
+            dependencies[shard] = new int[numDependencies];
+            int next = 0;
+            for (int i = 0; i < shard; ++i) {
+                if (waitsFor[i]) {
+                    dependencies[shard][next++] = i;
+                }
+            }
+
+            Integer index = new Integer(shard);
+            for (Enumeration en = written.elementAt(shard).keys(); en.hasMoreElements(); ) {
+                lastWriter.put((String)en.nextElement(), index);
+            }
+        }
+        return dependencies;
+    }
+
+    private static void collect(Hashtable<String, String> keys, Hashtable<String, Integer> lastWriter, boolean[] waitsFor) {
+        for (Enumeration en = keys.keys(); en.hasMoreElements(); ) {
+            Integer writer = lastWriter.get(en.nextElement());
+            if (writer != null) {
+                waitsFor[writer.intValue()] = true;
+            }
+        }
+    }
+}
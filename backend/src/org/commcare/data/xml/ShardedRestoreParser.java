@@ -0,0 +1,327 @@
+/**
+ *
+ */
+package org.commcare.data.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.commcare.cases.util.WriteQueue;
+import org.commcare.xml.util.InvalidStructureException;
+import org.commcare.xml.util.UnfullfilledRequirementsException;
+import org.javarosa.core.reference.Reference;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Processes a restore payload which has been delivered as a set of shards
+ * (each one a complete restore document covering part of the data) on
+ * several threads at once.
+ *
+ * The shards are first scanned to find which records each one writes and
+ * refers to, and then parsed with a DataModelPullParser each. A shard isn't
+ * started until every earlier shard which touches the same records (or
+ * writes a case which one of its cases indexes) has finished, so the result
+ * is the same as parsing the shards one after another in order. Shards
+ * which are independent of each other are parsed at the same time.
+ *
+ * Each shard is parsed with its own factory, and the handler is told when
+ * each shard has finished so that anything the factory is holding can be
+ * written out before the shards which depend on it start.
+ *
+ * Storage is only safe to use from the thread holding the restore's
+ * transaction, so the factories should hand their storage operations to a
+ * WriteQueue owned by the thread calling parse(), and that queue should be
+ * provided with setWriteQueue(). The calling thread then performs those
+ * operations while the shards are parsed, rather than parsing shards.
+ */
+public class ShardedRestoreParser {
+
+    /**
+     * Provides the factories used to parse each shard and is notified when
+     * they're done. Called from the parsing threads.
+     */
+    public interface ShardHandler {
+        /**
+         * @return The factory to parse the given shard with
+         */
+        TransactionParserFactory getFactory(int shard);
+
+        /**
+         * Called once a shard has been parsed, before any shard which
+         * depends on it is started.
+         */
+        void shardParsed(int shard) throws IOException;
+    }
+
+    private static final int SCANNING = 0;
+    private static final int PARSING = 1;
+
+    private final Vector<Reference> shards;
+    private final ShardHandler handler;
+    private final int threads;
+    private final boolean failfast;
+
+    private String requiredRootEnvelope = null;
+    private RestoreProfile profile;
+    private WriteQueue queue;
+
+    private Vector<Hashtable<String, String>> written;
+    private Vector<Hashtable<String, String>> referenced;
+    private int[][] dependencies;
+    private String[][] errors;
+
+    //Scheduling state for the current phase, guarded by this
+    private int phase;
+    private boolean[] started;
+    private boolean[] finished;
+    private int running;
+    private Exception failure;
+
+    //Threads still taking shards while the calling thread serves the queue
+    private int workers;
+
+    /**
+     * @param shards   The shards of the restore, in the order they would be
+     *                 processed in one at a time
+     * @param threads  The largest number of shards to process at once
+     * @param failfast Whether a transaction which fails to parse should stop
+     *                 the restore, rather than being recorded as an error
+     */
+    public ShardedRestoreParser(Vector<Reference> shards, ShardHandler handler, int threads, boolean failfast) {
+        this.shards = shards;
+        this.handler = handler;
+        this.threads = Math.max(1, threads);
+        this.failfast = failfast;
+    }
+
+    public void requireRootEnvelopeType(String string) {
+        requiredRootEnvelope = string;
+    }
+
+    /**
+     * Records the counts and timings of the elements parsed from every
+     * shard in the provided profile.
+     */
+    public void setProfile(RestoreProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Serves the provided queue on the calling thread while shards are
+     * being parsed. The queue must be owned by the thread which calls
+     * parse().
+     */
+    public void setWriteQueue(WriteQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * @return True if every shard was parsed without errors
+     */
+    public boolean parse() throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
+        int count = shards.size();
+        written = new Vector<Hashtable<String, String>>();
+        referenced = new Vector<Hashtable<String, String>>();
+        for (int i = 0; i < count; ++i) {
+            written.addElement(new Hashtable<String, String>());
+            referenced.addElement(new Hashtable<String, String>());
+        }
+        errors = new String[count][];
+
+        runPhase(SCANNING);
+        dependencies = ShardDependencies.compute(written, referenced);
+        runPhase(PARSING);
+
+        for (int i = 0; i < count; ++i) {
+            if (errors[i] != null && errors[i].length > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The errors from every shard, in shard order
+     */
+    public String[] getParseErrors() {
+        Vector<String> all = new Vector<String>();
+        if (errors != null) {
+            for (int i = 0; i < errors.length; ++i) {
+                if (errors[i] != null) {
+                    for (int j = 0; j < errors[i].length; ++j) {
+                        all.addElement(errors[i][j]);
+                    }
+                }
+            }
+        }
+        String[] errorBuf = new String[all.size()];
+        all.copyInto(errorBuf);
+        return errorBuf;
+    }
+
+    /**
+     * @return For each shard, the shards which had to finish before it
+     * started, once parsing has begun
+     */
+    public int[][] getDependencies() {
+        return dependencies;
+    }
+
+    private void runPhase(int phase) throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
+        int count = shards.size();
+        //While parsing, the storage operations handed to the queue need this
+        //thread, so it serves the queue instead of parsing its own share
+        final boolean serving = phase == PARSING && queue != null && count > 0;
+        int helpers = Math.min(threads, count) - (serving ? 0 : 1);
+        synchronized (this) {
+            this.phase = phase;
+            started = new boolean[count];
+            finished = new boolean[count];
+            running = 0;
+            workers = helpers;
+        }
+
+        for (int i = 0; i < helpers; ++i) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        work();
+                    } finally {
+                        if (workerDone() && serving) {
+                            queue.stopServing();
+                        }
+                    }
+                }
+            }).start();
+        }
+        if (serving) {
+            queue.serve();
+        } else {
+            work();
+        }
+
+        synchronized (this) {
+            while (running > 0) {
+                waitForChange();
+            }
+        }
+
+        if (failure != null) {
+            DataModelPullParser.rethrow(failure);
+        }
+    }
+
+    private void work() {
+        int shard;
+        while ((shard = takeShard()) != -1) {
+            try {
+                if (phase == SCANNING) {
+                    scan(shard);
+                } else {
+                    parse(shard);
+                }
+            } catch (Exception e) {
+                fail(e);
+            } finally {
+                finish(shard);
+            }
+        }
+    }
+
+    private void scan(int shard) throws InvalidStructureException, IOException, XmlPullParserException {
+        InputStream is = shards.elementAt(shard).getStream();
+        try {
+            new RestoreShardScanner(is, written.elementAt(shard), referenced.elementAt(shard)).parse();
+        } finally {
+            is.close();
+        }
+    }
+
+    private void parse(int shard) throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
+        DataModelPullParser parser = new DataModelPullParser(shards.elementAt(shard).getStream(), handler.getFactory(shard), failfast, false);
+        if (requiredRootEnvelope != null) {
+            parser.requireRootEnvelopeType(requiredRootEnvelope);
+        }
+        if (profile != null) {
+            parser.setProfile(profile);
+        }
+        parser.parse();
+        errors[shard] = parser.getParseErrors();
+        handler.shardParsed(shard);
+    }
+
+    /**
+     * Waits for the first shard which hasn't been started and has nothing
+     * left to wait for.
+     *
+     * @return The shard, or -1 if there are none left to start or a shard
+     * has failed
+     */
+    private synchronized int takeShard() {
+        while (true) {
+            if (failure != null) {
+                return -1;
+            }
+            boolean remaining = false;
+            for (int i = 0; i < started.length; ++i) {
+                if (!started[i]) {
+                    remaining = true;
+                    if (isReady(i)) {
+                        started[i] = true;
+                        running++;
+                        return i;
+                    }
+                }
+            }
+            if (!remaining) {
+                return -1;
+            }
+            waitForChange();
+        }
+    }
+
+    private boolean isReady(int shard) {
+        if (phase == SCANNING) {
+            return true;
+        }
+        int[] waitsFor = dependencies[shard];
+        for (int i = 0; i < waitsFor.length; ++i) {
+            if (!finished[waitsFor[i]]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized void finish(int shard) {
+        finished[shard] = true;
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * @return True if this was the last of the threads started for the
+     * phase to finish
+     */
+    private synchronized boolean workerDone() {
+        workers--;
+        return workers == 0;
+    }
+
+    private synchronized void fail(Exception e) {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    private void waitForChange() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            //Just check the condition again
+        }
+    }
+}
@@ -9,6 +9,8 @@ import java.util.NoSuchElementException;
 
 import org.commcare.cases.model.Case;
 import org.commcare.cases.model.CaseIndex;
+import org.commcare.cases.util.CaseStorageHooks;
+import org.commcare.cases.util.CaseWriteCache;
 import org.commcare.data.xml.TransactionParser;
 import org.commcare.xml.util.InvalidStructureException;
 import org.javarosa.core.model.utils.DateUtils;
@@ -36,6 +38,7 @@ public class CaseXmlParser extends TransactionParser<Case> {
     IStorageUtilityIndexed storage;
     int[] tallies;
     boolean acceptCreateOverwrites;
+    CaseWriteCache writeCache;
 
 
     public CaseXmlParser(KXmlParser parser, IStorageUtilityIndexed storage) {
@@ -51,10 +54,41 @@ public class CaseXmlParser extends TransactionParser<Case> {
      *                               contains create actions for cases which already exist.
      */
     public CaseXmlParser(KXmlParser parser, int[] tallies, boolean acceptCreateOverwrites, IStorageUtilityIndexed storage) {
+        this(parser, tallies, acceptCreateOverwrites, storage, null);
+    }
+
+    /**
+     * Creates a Parser for case blocks in the XML stream provided, which
+     * reads and writes cases through a cache rather than directly.
+     *
+     * @param writeCache The cache which modified cases should be held in
+     *                   until the caller flushes it, or null to write each
+     *                   case as soon as its block is parsed.
+     */
+    public CaseXmlParser(KXmlParser parser, int[] tallies, boolean acceptCreateOverwrites, IStorageUtilityIndexed storage, CaseWriteCache writeCache) {
         super(parser, "case", null);
         this.tallies = tallies;
         this.acceptCreateOverwrites = acceptCreateOverwrites;
         this.storage = storage;
+        this.writeCache = writeCache;
+        registerPropertyIndices();
+    }
+
+    /**
+     * Makes sure storage maintains an index for each of the case properties
+     * the app has declared as indexed. Once an index is registered, storage
+     * updates it as each case is committed, so lookups on those properties
+     * never need to rebuild it from scratch. A write cache registers them
+     * itself, on the thread which owns storage.
+     */
+    private void registerPropertyIndices() {
+        if (storage == null || writeCache != null) {
+            return;
+        }
+        String[] keys = Case.getIndexedPropertyKeys();
+        for (int i = 0; i < keys.length; ++i) {
+            storage.registerIndex(keys[i]);
+        }
     }
 
     public Case parse() throws InvalidStructureException, IOException, XmlPullParserException {
@@ -158,8 +192,8 @@ public class CaseXmlParser extends TransactionParser<Case> {
                 if (caseForBlock == null) {
                     throw new InvalidStructureException("No case found for update. Skipping ID: " + caseId, parser);
                 }
+                //This is committed along with the rest of the block below
                 caseForBlock.setClosed(true);
-                commit(caseForBlock);
                 //Logger.log("case-close", PropertyUtils.trim(c.getCaseId(), 12));
                 close = true;
             } else if (action.equals("index")) {
@@ -242,8 +276,14 @@ public class CaseXmlParser extends TransactionParser<Case> {
     }
 
     public void commit(Case parsed) throws IOException {
+        if (writeCache != null) {
+            writeCache.modified(parsed);
+            return;
+        }
         try {
+            boolean added = parsed.getID() == -1;
             storage().write(parsed);
+            CaseStorageHooks.written(storage(), parsed, added);
         } catch (StorageFullException e) {
             e.printStackTrace();
             throw new IOException("Storage full while writing case!");
@@ -251,6 +291,9 @@ public class CaseXmlParser extends TransactionParser<Case> {
     }
 
     public Case retrieve(String entityId) {
+        if (writeCache != null) {
+            return writeCache.retrieve(entityId);
+        }
         try {
             return (Case)storage().getRecordForValue(Case.INDEX_CASE_ID, entityId);
         } catch (NoSuchElementException nsee) {
@@ -4,16 +4,21 @@
 package org.commcare.xml;
 
 import java.io.IOException;
+import java.util.Hashtable;
 import java.util.Vector;
 
+import org.commcare.cases.fixture.FixtureItem;
+import org.commcare.cases.util.IndexResultCache;
 import org.commcare.data.xml.TransactionParser;
 import org.commcare.xml.util.InvalidStructureException;
 import org.commcare.xml.util.UnfullfilledRequirementsException;
+import org.javarosa.core.model.data.UncastData;
 import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.services.storage.StorageFullException;
 import org.javarosa.core.services.storage.StorageManager;
+import org.javarosa.core.util.DataUtil;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.kxml2.io.KXmlParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -54,18 +59,11 @@ public class FixtureXmlParser extends TransactionParser<FormInstance> {
         //Get to the data root
         parser.nextTag();
 
-        //TODO: We need to overwrite any matching records here.
-        TreeElement root = new TreeElementParser(parser, 0, fixtureId).parse();
-        FormInstance instance = new FormInstance(root, fixtureId);
-
-        //This is a terrible hack and clayton should feeel terrible about it
-        if (userId != null) {
-            instance.schema = userId;
-        }
+        int recordId = -1;
 
         //If we're using storage, deal properly
         if (storage() != null) {
-            int recordId = -1;
+            Vector<Integer> existing = new Vector<Integer>();
             Vector<Integer> matchingFixtures = storage().getIDsForValue(FormInstance.META_ID, fixtureId);
             if (matchingFixtures.size() > 0) {
                 //find all fixtures with the same user
@@ -73,24 +71,129 @@ public class FixtureXmlParser extends TransactionParser<FormInstance> {
                 for (Integer i : matchingFixtures) {
                     if (matchingUsers.indexOf(i) != -1) {
                         recordId = i.intValue();
+                        existing.addElement(i);
                     }
                 }
             }
 
-            if (recordId != -1) {
-                if (!overwrite) {
-                    //parse it out, but don't write anything to memory if one already exists
-                    return instance;
-                }
-                instance.setID(recordId);
+            if (recordId == -1 || overwrite) {
+                return parseItems(fixtureId, userId, existing);
             }
         }
 
+        TreeElement root = new TreeElementParser(parser, 0, fixtureId).parse();
+        FormInstance instance = buildInstance(root, fixtureId, userId);
+
+        if (recordId != -1) {
+            //parse it out, but don't write anything to memory if one already exists
+            return instance;
+        }
+
+        commit(instance);
+
+        return instance;
+    }
+
+    private FormInstance buildInstance(TreeElement root, String fixtureId, String userId) {
+        FormInstance instance = new FormInstance(root, fixtureId);
+
+        //This is a terrible hack and clayton should feeel terrible about it
+        if (userId != null) {
+            instance.schema = userId;
+        }
+        return instance;
+    }
+
+    /**
+     * Writes the fixture as a descriptor holding just the data root, and a
+     * FixtureItem record for each of the root's children, which are written
+     * as soon as they've been parsed so that only one of them is in memory
+     * at a time.
+     *
+     * The new fixture is written under a new descriptor alongside the one
+     * it replaces, which is only removed (with its items) once the whole
+     * fixture has been parsed. If parsing fails, the new descriptor and the
+     * items written so far are removed instead, so the existing fixture is
+     * left as it was.
+     *
+     * @param existing The record ids of the existing fixtures to replace
+     * @return The descriptor
+     */
+    private FormInstance parseItems(String fixtureId, String userId, Vector<Integer> existing) throws InvalidStructureException, IOException, XmlPullParserException, UnfullfilledRequirementsException {
+        IStorageUtilityIndexed<FixtureItem> items = itemStorage();
+
+        int depth = parser.getDepth();
+        TreeElement root = new TreeElement(parser.getName(), 0);
+        root.setInstanceName(fixtureId);
+        for (int i = 0; i < parser.getAttributeCount(); ++i) {
+            root.setAttribute(parser.getAttributeNamespace(i), parser.getAttributeName(i), parser.getAttributeValue(i));
+        }
+
+        FormInstance instance = buildInstance(root, fixtureId, userId);
+
+        //The descriptor is written first, since the items refer to its id
         commit(instance);
 
+        boolean complete = false;
+        try {
+            Hashtable<String, Integer> multiplicities = new Hashtable<String, Integer>();
+            //NOTE: We never expect this to be the exit condition
+            while (parser.getDepth() >= depth) {
+                switch (this.nextNonWhitespace()) {
+                    case KXmlParser.START_TAG:
+                        String name = parser.getName();
+                        int val;
+                        if (multiplicities.containsKey(name)) {
+                            val = multiplicities.get(name).intValue() + 1;
+                        } else {
+                            val = 0;
+                        }
+                        multiplicities.put(name, DataUtil.integer(val));
+
+                        TreeElement item = new TreeElementParser(parser, val, fixtureId).parse();
+                        items.write(new FixtureItem(instance.getID(), item));
+                        break;
+                    case KXmlParser.END_TAG:
+                        if (root.getValue() != null) {
+                            commit(instance);
+                        }
+                        //Now that the new fixture is complete, swap it in
+                        for (Integer i : existing) {
+                            remove(i.intValue(), items);
+                        }
+                        complete = true;
+                        return instance;
+                    case KXmlParser.TEXT:
+                        root.setValue(new UncastData(parser.getText().trim()));
+                        break;
+                    default:
+                        throw new InvalidStructureException("Exception while trying to parse an XML Tree, got something other than tags and text", parser);
+                }
+            }
+        } catch (StorageFullException e) {
+            e.printStackTrace();
+            throw new IOException("Storage full while writing fixture!");
+        } finally {
+            if (!complete) {
+                remove(instance.getID(), items);
+            }
+            IndexResultCache.storageWritten();
+        }
+
         return instance;
     }
 
+    /**
+     * Removes a fixture descriptor and its items
+     */
+    private void remove(int recordId, IStorageUtilityIndexed<FixtureItem> items) {
+        Vector<Integer> fixtureItems = items.getIDsForValue(FixtureItem.META_FIXTURE, String.valueOf(recordId));
+        for (Integer i : fixtureItems) {
+            items.remove(i.intValue());
+        }
+        storage().remove(recordId);
+    }
+
     public void commit(FormInstance parsed) throws IOException {
         try {
             storage().write(parsed);
@@ -109,4 +212,8 @@ public class FixtureXmlParser extends TransactionParser<FormInstance> {
         }
         return storage;
     }
+
+    public IStorageUtilityIndexed<FixtureItem> itemStorage() {
+        return (IStorageUtilityIndexed<FixtureItem>)StorageManager.getStorage(FixtureItem.STORAGE_KEY);
+    }
 }
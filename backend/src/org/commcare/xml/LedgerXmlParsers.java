@@ -9,6 +9,8 @@ import java.util.NoSuchElementException;
 import java.util.Vector;
 
 import org.commcare.cases.ledger.Ledger;
+import org.commcare.cases.ledger.LedgerWriteCache;
+import org.commcare.cases.util.IndexResultCache;
 import org.commcare.data.xml.TransactionParser;
 import org.commcare.xml.util.InvalidStructureException;
 import org.javarosa.core.model.utils.DateUtils;
@@ -43,14 +45,30 @@ public class LedgerXmlParsers extends TransactionParser<Ledger[]> {
 
     IStorageUtilityIndexed<Ledger> storage;
 
+    LedgerWriteCache writeCache;
+
     /**
      * Creates a Parser for case blocks in the XML stream provided.
      *
      * @param parser The parser for incoming XML.
      */
     public LedgerXmlParsers(KXmlParser parser, IStorageUtilityIndexed<Ledger> storage) {
+        this(parser, storage, null);
+    }
+
+    /**
+     * Creates a Parser for ledger blocks in the XML stream provided, which
+     * reads and writes ledgers through a cache rather than directly.
+     *
+     * @param parser     The parser for incoming XML.
+     * @param writeCache The cache which modified ledgers should be held in
+     *                   until the caller flushes it, or null to write each
+     *                   block's ledgers as soon as they are parsed.
+     */
+    public LedgerXmlParsers(KXmlParser parser, IStorageUtilityIndexed<Ledger> storage, LedgerWriteCache writeCache) {
         super(parser, null, null);
         this.storage = storage;
+        this.writeCache = writeCache;
     }
 
     public Ledger[] parse() throws InvalidStructureException, IOException, XmlPullParserException {
@@ -214,10 +232,15 @@ public class LedgerXmlParsers extends TransactionParser<Ledger[]> {
     }
 
     public void commit(Ledger[] parsed) throws IOException {
+        if (writeCache != null) {
+            writeCache.modified(parsed);
+            return;
+        }
         try {
             for (Ledger s : parsed) {
                 storage().write(s);
             }
+            IndexResultCache.storageWritten();
         } catch (StorageFullException e) {
             e.printStackTrace();
             throw new IOException("Storage full while writing case!");
@@ -225,6 +248,9 @@ public class LedgerXmlParsers extends TransactionParser<Ledger[]> {
     }
 
     public Ledger retrieveOrCreate(String entityId) {
+        if (writeCache != null) {
+            return writeCache.retrieveOrCreate(entityId);
+        }
         try {
             return (Ledger)storage().getRecordForValue(Ledger.INDEX_ENTITY_ID, entityId);
         } catch (NoSuchElementException nsee) {
@@ -21,6 +21,7 @@ package org.commcare.cases;
 
 import org.commcare.cases.ledger.Ledger;
 import org.commcare.cases.model.Case;
+import org.commcare.cases.util.CasePurgeState;
 import org.javarosa.core.api.IModule;
 import org.javarosa.core.services.storage.StorageManager;
 
@@ -36,6 +37,7 @@ public class CaseManagementModule implements IModule {
     public void registerModule() {
         StorageManager.registerStorage(Case.STORAGE_KEY, Case.class);
         StorageManager.registerStorage(Ledger.STORAGE_KEY, Ledger.class);
+        StorageManager.registerStorage(CasePurgeState.STORAGE_KEY, CasePurgeState.Chunk.class);
     }
 
 }
@@ -0,0 +1,139 @@
+/**
+ *
+ */
+package org.commcare.cases.fixture;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.services.storage.IMetaData;
+import org.javarosa.core.services.storage.Persistable;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+
+/**
+ * One top level item of a fixture (IE: a single <item> row of a lookup
+ * table), stored as its own record.
+ *
+ * Fixtures are stored as a small descriptor FormInstance holding the data
+ * root's name, attributes and value, and one of these records for each of
+ * the root's children, which point back at the descriptor's record id. That
+ * way fixtures can be written one item at a time as they're parsed, and
+ * read one item at a time as they're used, rather than the whole tree
+ * having to be in memory at once.
+ *
+ * Items are written in document order, so ordering them by record id gives
+ * their order in the fixture.
+ */
+public class FixtureItem implements Persistable, IMetaData {
+
+    public static final String STORAGE_KEY = "fixture-item";
+
+    /**
+     * The record id of the fixture's descriptor, as a string
+     */
+    public static final String META_FIXTURE = "fixture";
+
+    /**
+     * The item's element name
+     */
+    public static final String META_NAME = "name";
+
+    /**
+     * The item's id attribute, or an empty string if it doesn't have one
+     */
+    public static final String META_ITEM_ID = "item-id";
+
+    int recordId = -1;
+    int fixtureId;
+    TreeElement item;
+
+    public FixtureItem() {
+
+    }
+
+    /**
+     * @param fixtureId The record id of the descriptor of the fixture the
+     *                  item belongs to
+     * @param item      The item's element and everything under it
+     */
+    public FixtureItem(int fixtureId, TreeElement item) {
+        this.fixtureId = fixtureId;
+        this.item = item;
+    }
+
+    /**
+     * @return The record id of the descriptor of the fixture this item
+     * belongs to
+     */
+    public int getFixtureId() {
+        return fixtureId;
+    }
+
+    public TreeElement getItem() {
+        return item;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.javarosa.core.util.externalizable.Externalizable#readExternal(java.io.DataInputStream, org.javarosa.core.util.externalizable.PrototypeFactory)
+     */
+    public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        recordId = ExtUtil.readInt(in);
+        fixtureId = ExtUtil.readInt(in);
+        item = (TreeElement)ExtUtil.read(in, TreeElement.class, pf);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.javarosa.core.util.externalizable.Externalizable#writeExternal(java.io.DataOutputStream)
+     */
+    public void writeExternal(DataOutputStream out) throws IOException {
+        ExtUtil.writeNumeric(out, recordId);
+        ExtUtil.writeNumeric(out, fixtureId);
+        ExtUtil.write(out, item);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.javarosa.core.services.storage.Persistable#setID(int)
+     */
+    public void setID(int ID) {
+        recordId = ID;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.javarosa.core.services.storage.Persistable#getID()
+     */
+    public int getID() {
+        return recordId;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IMetaData#getMetaDataFields()
+     */
+    public String[] getMetaDataFields() {
+        return new String[]{META_FIXTURE, META_NAME, META_ITEM_ID};
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IMetaData#getMetaData(java.lang.String)
+     */
+    public Object getMetaData(String fieldName) {
+        if (fieldName.equals(META_FIXTURE)) {
+            return String.valueOf(fixtureId);
+        } else if (fieldName.equals(META_NAME)) {
+            return item.getName();
+        } else if (fieldName.equals(META_ITEM_ID)) {
+            return ExtUtil.emptyIfNull(item.getAttributeValue(null, "id"));
+        } else {
+            throw new IllegalArgumentException("No metadata field " + fieldName + " in the fixture item storage system");
+        }
+    }
+}
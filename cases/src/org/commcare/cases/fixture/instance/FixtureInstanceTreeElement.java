@@ -0,0 +1,378 @@
+/**
+ *
+ */
+package org.commcare.cases.fixture.instance;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.commcare.cases.fixture.FixtureItem;
+import org.commcare.cases.util.BoundedRecordCache;
+import org.commcare.cases.util.IntIntMap;
+import org.commcare.cases.util.RecordBitmap;
+import org.commcare.cases.util.StorageBackedTreeRoot;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.AbstractTreeElement;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.model.instance.utils.ITreeVisitor;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.model.xform.XPathReference;
+import org.javarosa.xpath.expr.XPathPathExpr;
+
+/**
+ * The data root of a fixture which was stored as a descriptor and a set of
+ * item records. The root's own name, attributes and value come from the
+ * descriptor, and its children are read from item storage as they're asked
+ * for, with only a bounded number of them held in memory at once.
+ *
+ * Lookups of children by their id attribute (IE: item[@id = 'x']) are
+ * answered from the item storage's index.
+ */
+public class FixtureInstanceTreeElement extends StorageBackedTreeRoot<TreeElement> {
+
+    /**
+     * The default number of items to keep in memory at once
+     */
+    public static final int DEFAULT_ITEM_CACHE_SIZE = 500;
+
+    private AbstractTreeElement instanceRoot;
+
+    private final TreeElement descriptor;
+    private final int fixtureRecordId;
+
+    IStorageUtilityIndexed<FixtureItem> storage;
+
+    //The record ids of the items, in document order
+    private int[] itemIds;
+
+    //element name -> the record ids of the items with that name, in order
+    private Hashtable<String, int[]> idsByName = new Hashtable<String, int[]>();
+
+    protected BoundedRecordCache<TreeElement> itemCache = new BoundedRecordCache<TreeElement>(DEFAULT_ITEM_CACHE_SIZE);
+
+    /**
+     * @param descriptor      The root of the fixture's stored descriptor
+     * @param fixtureRecordId The record id of the fixture's descriptor
+     * @param storage         Fixture item storage
+     */
+    public FixtureInstanceTreeElement(AbstractTreeElement instanceRoot, TreeElement descriptor, int fixtureRecordId, IStorageUtilityIndexed storage) {
+        this.instanceRoot = instanceRoot;
+        this.descriptor = descriptor;
+        this.fixtureRecordId = fixtureRecordId;
+        this.storage = storage;
+        descriptor.setParent(instanceRoot);
+    }
+
+    /**
+     * @return Whether the fixture with the provided descriptor record id
+     * has its items in the provided item storage, rather than in the
+     * descriptor itself
+     */
+    public static boolean hasItems(IStorageUtilityIndexed storage, int fixtureRecordId) {
+        return storage.getIDsForValue(FixtureItem.META_FIXTURE, String.valueOf(fixtureRecordId)).size() > 0;
+    }
+
+    /**
+     * Rebase assigns this tree element to a new root instance node.
+     *
+     * @param instanceRoot The root of the new tree that this element should be a part of
+     */
+    public void rebase(AbstractTreeElement instanceRoot) {
+        this.instanceRoot = instanceRoot;
+        descriptor.setParent(instanceRoot);
+        expireCachedRef();
+        itemCache.clear();
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#isLeaf()
+     */
+    public boolean isLeaf() {
+        return getNumChildren() == 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#isChildable()
+     */
+    public boolean isChildable() {
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getInstanceName()
+     */
+    public String getInstanceName() {
+        return descriptor.getInstanceName();
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getChild(java.lang.String, int)
+     */
+    public TreeElement getChild(String name, int multiplicity) {
+        if (multiplicity < 0) {
+            return null;
+        }
+        int[] ids = getIdsForName(name);
+        if (multiplicity >= ids.length) {
+            return null;
+        }
+        return getItem(ids[multiplicity]);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getChildrenWithName(java.lang.String)
+     */
+    public Vector getChildrenWithName(String name) {
+        int[] ids = getIdsForName(name);
+        Vector<TreeElement> children = new Vector<TreeElement>(ids.length);
+        for (int i = 0; i < ids.length; ++i) {
+            children.addElement(getItem(ids[i]));
+        }
+        return children;
+    }
+
+    public boolean hasChildren() {
+        return getNumChildren() > 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getNumChildren()
+     */
+    public int getNumChildren() {
+        return getItemIds().length;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getChildAt(int)
+     */
+    public TreeElement getChildAt(int i) {
+        return getItem(getItemIds()[i]);
+    }
+
+    private synchronized int[] getItemIds() {
+        if (itemIds == null) {
+            itemIds = RecordBitmap.fromVector(storage.getIDsForValue(FixtureItem.META_FIXTURE, String.valueOf(fixtureRecordId))).toArray();
+        }
+        return itemIds;
+    }
+
+    private synchronized int[] getIdsForName(String name) {
+        int[] ids = idsByName.get(name);
+        if (ids == null) {
+            ids = RecordBitmap.fromArray(getItemIds()).and(getIDsForValue(storage, FixtureItem.META_NAME, name)).toArray();
+            idsByName.put(name, ids);
+        }
+        return ids;
+    }
+
+    private TreeElement getItem(int recordId) {
+        TreeElement item = itemCache.retrieve(recordId);
+        if (item == null) {
+            item = storage.read(recordId).getItem();
+            item.setParent(this);
+            itemCache.register(recordId, item);
+        }
+        return item;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#isRepeatable()
+     */
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#isAttribute()
+     */
+    public boolean isAttribute() {
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getChildMultiplicity(java.lang.String)
+     */
+    public int getChildMultiplicity(String name) {
+        return getIdsForName(name).length;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#isRelevant()
+     */
+    public boolean isRelevant() {
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#accept(org.javarosa.core.model.instance.utils.ITreeVisitor)
+     */
+    public void accept(ITreeVisitor visitor) {
+        visitor.visit(this);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getAttributeCount()
+     */
+    public int getAttributeCount() {
+        return descriptor.getAttributeCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getAttributeNamespace(int)
+     */
+    public String getAttributeNamespace(int index) {
+        return descriptor.getAttributeNamespace(index);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getAttributeName(int)
+     */
+    public String getAttributeName(int index) {
+        return descriptor.getAttributeName(index);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getAttributeValue(int)
+     */
+    public String getAttributeValue(int index) {
+        return descriptor.getAttributeValue(index);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getAttribute(java.lang.String, java.lang.String)
+     */
+    public TreeElement getAttribute(String namespace, String name) {
+        return descriptor.getAttribute(namespace, name);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getAttributeValue(java.lang.String, java.lang.String)
+     */
+    public String getAttributeValue(String namespace, String name) {
+        return descriptor.getAttributeValue(namespace, name);
+    }
+
+    TreeReference cachedRef = null;
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getRef()
+     */
+    public TreeReference getRef() {
+        if (cachedRef == null) {
+            cachedRef = TreeElement.BuildRef(this);
+        }
+        return cachedRef;
+    }
+
+    private void expireCachedRef() {
+        cachedRef = null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getDepth()
+     */
+    public int getDepth() {
+        return TreeElement.CalculateDepth(this);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getName()
+     */
+    public String getName() {
+        return descriptor.getName();
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getMult()
+     */
+    public int getMult() {
+        return 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getParent()
+     */
+    public AbstractTreeElement getParent() {
+        return instanceRoot;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getValue()
+     */
+    public IAnswerData getValue() {
+        return descriptor.getValue();
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.model.instance.AbstractTreeElement#getDataType()
+     */
+    public int getDataType() {
+        return descriptor.getDataType();
+    }
+
+    public void clearCaches() {
+        itemCache.clear();
+        clearSortedIndices();
+    }
+
+    public String getNamespace() {
+        return descriptor.getNamespace();
+    }
+
+    /**
+     * Batch lookups are only done over the children which share the first
+     * item's name, which covers the usual fixture of one kind of repeated
+     * item.
+     */
+    protected String getChildHintName() {
+        int[] ids = getItemIds();
+        if (ids.length == 0) {
+            return null;
+        }
+        return getItem(ids[0]).getName();
+    }
+
+    final static private XPathPathExpr ID_EXPR = XPathReference.getPathExpr("@id");
+    final static private XPathPathExpr ID_EXPR_TWO = XPathReference.getPathExpr("./@id");
+
+    protected Hashtable<XPathPathExpr, String> getStorageIndexMap() {
+        Hashtable<XPathPathExpr, String> indices = new Hashtable<XPathPathExpr, String>();
+        indices.put(ID_EXPR, FixtureItem.META_ITEM_ID);
+        indices.put(ID_EXPR_TWO, FixtureItem.META_ITEM_ID);
+        return indices;
+    }
+
+    /**
+     * Item storage holds the items of every fixture, so index matches are
+     * narrowed to this fixture's items before they're mapped to children.
+     */
+    protected RecordBitmap getNextIndexMatch(Vector<String> keys, Vector<Object> values, IStorageUtilityIndexed<?> storage) throws IllegalArgumentException {
+        return super.getNextIndexMatch(keys, values, storage).and(getAllRecordIds());
+    }
+
+    /**
+     * The mapping only holds this fixture's items, which is all that index
+     * matches are narrowed to.
+     */
+    protected boolean isMappingCurrent() {
+        return true;
+    }
+
+    protected IStorageUtilityIndexed<?> getStorage() {
+        return storage;
+    }
+
+    protected synchronized void initStorageCache() {
+        if (objectIdMapping != null) {
+            return;
+        }
+        String hintName = getChildHintName();
+        int[] ids = hintName == null ? new int[0] : getIdsForName(hintName);
+        IntIntMap mapping = new IntIntMap(ids.length);
+        for (int i = 0; i < ids.length; ++i) {
+            mapping.put(ids[i], i);
+        }
+        objectIdMapping = mapping;
+    }
+}
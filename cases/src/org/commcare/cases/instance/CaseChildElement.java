@@ -4,10 +4,12 @@
 package org.commcare.cases.instance;
 
 import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Vector;
 
 import org.commcare.cases.model.Case;
 import org.commcare.cases.model.CaseIndex;
+import org.commcare.cases.util.StripedRecordCache;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.data.DateData;
 import org.javarosa.core.model.data.IAnswerData;
@@ -25,7 +27,7 @@ import org.javarosa.xpath.expr.XPathExpression;
 /**
  * @author ctsims
  */
-public class CaseChildElement implements AbstractTreeElement<TreeElement> {
+public class CaseChildElement implements AbstractTreeElement<TreeElement>, StripedRecordCache.RecordBuilder<TreeElement> {
 
     CaseInstanceTreeElement parent;
     int recordId;
@@ -104,22 +106,26 @@ public class CaseChildElement implements AbstractTreeElement<TreeElement> {
      * @see org.javarosa.core.model.instance.AbstractTreeElement#getChild(java.lang.String, int)
      */
     public TreeElement getChild(String name, int multiplicity) {
-        TreeElement cached = cache();
-        TreeElement child = cached.getChild(name, multiplicity);
-        if (multiplicity >= 0 && child == null) {
-            TreeElement emptyNode = new TreeElement(name);
-            cached.addChild(emptyNode);
-            emptyNode.setParent(cached);
-            return emptyNode;
+        TreeElement cached = cache(name);
+        //The cached tree is shared between threads, don't let two of them
+        //add the same placeholder
+        synchronized (cached) {
+            TreeElement child = cached.getChild(name, multiplicity);
+            if (multiplicity >= 0 && child == null) {
+                TreeElement emptyNode = new TreeElement(name);
+                cached.addChild(emptyNode);
+                emptyNode.setParent(cached);
+                return emptyNode;
+            }
+            return child;
         }
-        return child;
     }
 
     /* (non-Javadoc)
      * @see org.javarosa.core.model.instance.AbstractTreeElement#getChildrenWithName(java.lang.String)
      */
     public Vector getChildrenWithName(String name) {
-        return cache().getChildrenWithName(name);
+        return cache(name).getChildrenWithName(name);
     }
 
     public boolean hasChildren() {
@@ -131,7 +137,7 @@ public class CaseChildElement implements AbstractTreeElement<TreeElement> {
      */
     public int getNumChildren() {
         if (numChildren == -1) {
-            numChildren = cache().getNumChildren();
+            numChildren = cacheFull().getNumChildren();
         }
         return numChildren;
     }
@@ -140,7 +146,7 @@ public class CaseChildElement implements AbstractTreeElement<TreeElement> {
      * @see org.javarosa.core.model.instance.AbstractTreeElement#getChildAt(int)
      */
     public TreeElement getChildAt(int i) {
-        return cache().getChildAt(i);
+        return cacheFull().getChildAt(i);
     }
 
     /* (non-Javadoc)
@@ -161,7 +167,7 @@ public class CaseChildElement implements AbstractTreeElement<TreeElement> {
      * @see org.javarosa.core.model.instance.AbstractTreeElement#getChildMultiplicity(java.lang.String)
      */
     public int getChildMultiplicity(String name) {
-        return cache().getChildMultiplicity(name);
+        return cache(name).getChildMultiplicity(name);
     }
 
     /* (non-Javadoc)
@@ -208,11 +214,8 @@ public class CaseChildElement implements AbstractTreeElement<TreeElement> {
         if (name.equals("case_id")) {
             if (recordId != TreeReference.INDEX_TEMPLATE) {
                 //if we're already cached, don't bother with this nonsense
-                synchronized (parent.treeCache) {
-                    TreeElement element = parent.treeCache.retrieve(recordId);
-                    if (element != null) {
-                        return cache().getAttribute(namespace, name);
-                    }
+                if (parent.treeCache.isCached(recordId)) {
+                    return cache().getAttribute(namespace, name);
                 }
             }
 
@@ -303,76 +306,171 @@ public class CaseChildElement implements AbstractTreeElement<TreeElement> {
     }
 
     static final String LAST_MODIFIED_KEY = "last_modified";
-
-    //TODO: THIS IS NOT THREAD SAFE
+    static final String CASE_NAME_KEY = "case_name";
+    static final String DATE_OPENED_KEY = "date_opened";
+    static final String INDEX_KEY = "index";
+    static final String ATTACHMENT_KEY = "attachment";
+
+    /**
+     * Retrieves the fully hydrated tree for this case. The parent's cache is
+     * bounded, so if this case has been evicted since it was last read it is
+     * rebuilt from storage here.
+     *
+     * Safe to call from multiple threads. Only one thread will build the
+     * tree for a given case at a time, and builds for different cases don't
+     * block each other.
+     */
     private TreeElement cache() {
         if (recordId == TreeReference.INDEX_TEMPLATE) {
             return empty;
         }
-        synchronized (parent.treeCache) {
-            TreeElement element = parent.treeCache.retrieve(recordId);
-            if (element != null) {
-                return element;
-            }
-            //For now this seems impossible
-            if (recordId == -1) {
-                Vector<Integer> ids = parent.storage.getIDsForValue("case_id", caseId);
-                recordId = ids.elementAt(0).intValue();
+        if (recordId == -1) {
+            //Elements created from a list of case ids need to find their
+            //record before they can be cached. Racing threads will resolve
+            //the same id, so there's no need to lock here.
+            Vector<Integer> ids = parent.storage.getIDsForValue(Case.INDEX_CASE_ID, caseId);
+            recordId = ids.elementAt(0).intValue();
+        }
+        return parent.treeCache.retrieve(recordId, this);
+    }
+
+    /**
+     * Retrieves a tree for this case which is guaranteed to include the
+     * provided child. If the cached tree was built with a projection that
+     * doesn't include the child, the parent's projection is widened to
+     * include it and the tree is rebuilt.
+     */
+    private TreeElement cache(String childName) {
+        TreeElement tree = cache();
+        if (tree instanceof ProjectedTreeElement && !((ProjectedTreeElement)tree).includes(childName)) {
+            if (TreeReference.NAME_WILDCARD.equals(childName)) {
+                return cacheFull();
             }
+            tree = rebuild(parent.widenProjection(childName));
+        }
+        return tree;
+    }
 
-            TreeElement cacheBuilder = new TreeElement("case");
-            Case c = parent.getCase(recordId);
-            caseId = c.getCaseId();
-            cacheBuilder = new TreeElement("case");
-            cacheBuilder.setMult(this.mult);
+    /**
+     * Retrieves a tree for this case with every child present, for
+     * operations which walk all of the children.
+     */
+    private TreeElement cacheFull() {
+        TreeElement tree = cache();
+        if (tree instanceof ProjectedTreeElement) {
+            tree = rebuild(null);
+        }
+        return tree;
+    }
 
-            cacheBuilder.setAttribute(null, "case_id", c.getCaseId());
-            cacheBuilder.setAttribute(null, "case_type", c.getTypeId());
-            cacheBuilder.setAttribute(null, "status", c.isClosed() ? "closed" : "open");
+    private TreeElement rebuild(Hashtable<String, String> projection) {
+        TreeElement tree = buildTree(recordId, projection);
+        parent.treeCache.register(recordId, tree);
+        return tree;
+    }
 
-            //Don't set anything to null
-            cacheBuilder.setAttribute(null, "owner_id", c.getUserId() == null ? "" : c.getUserId());
+    /**
+     * A case tree which only contains some of the case's children
+     */
+    private static class ProjectedTreeElement extends TreeElement {
+        private final Hashtable<String, String> projection;
 
-            final boolean[] done = new boolean[]{false};
+        ProjectedTreeElement(Hashtable<String, String> projection) {
+            super("case");
+            this.projection = projection;
+        }
 
-            //If we're not in report node, fill in all of this data
-            if (!parent.reportMode) {
+        boolean includes(String childName) {
+            return projection.containsKey(childName);
+        }
+    }
+
+    private static boolean includes(Hashtable<String, String> projection, String childName) {
+        return projection == null || projection.containsKey(childName);
+    }
 
-                TreeElement scratch = new TreeElement("case_name");
+    /**
+     * Reads the case for the provided record from storage and builds the
+     * tree representation of it, with the children in the parent's current
+     * projection. Called by the parent's cache on a miss, this doesn't
+     * register the result anywhere itself.
+     *
+     * @see org.commcare.cases.util.StripedRecordCache.RecordBuilder#build(int)
+     */
+    public TreeElement build(int recordId) {
+        return buildTree(recordId, parent.getProjection());
+    }
+
+    /**
+     * @param projection The names of the children to build, or null to
+     *                   build all of them. Attributes are always built.
+     */
+    private TreeElement buildTree(int recordId, Hashtable<String, String> projection) {
+        Case c = parent.getCase(recordId, projection);
+        caseId = c.getCaseId();
+        TreeElement cacheBuilder = projection == null ? new TreeElement("case") : new ProjectedTreeElement(projection);
+        cacheBuilder.setMult(this.mult);
+
+        cacheBuilder.setAttribute(null, "case_id", c.getCaseId());
+        cacheBuilder.setAttribute(null, "case_type", c.getTypeId());
+        cacheBuilder.setAttribute(null, "status", c.isClosed() ? "closed" : "open");
+
+        //Don't set anything to null
+        cacheBuilder.setAttribute(null, "owner_id", c.getUserId() == null ? "" : c.getUserId());
+
+        final boolean[] done = new boolean[]{false};
+
+        //If we're not in report node, fill in all of this data
+        if (!parent.reportMode) {
+            TreeElement scratch;
+
+            if (includes(projection, CASE_NAME_KEY)) {
+                scratch = new TreeElement(CASE_NAME_KEY);
                 String name = c.getName();
                 //This shouldn't be possible
                 scratch.setAnswer(new StringData(name == null ? "" : name));
                 cacheBuilder.addChild(scratch);
+            }
 
-
-                scratch = new TreeElement("date_opened");
+            if (includes(projection, DATE_OPENED_KEY)) {
+                scratch = new TreeElement(DATE_OPENED_KEY);
                 scratch.setAnswer(new DateData(c.getDateOpened()));
                 cacheBuilder.addChild(scratch);
+            }
 
+            if (includes(projection, LAST_MODIFIED_KEY)) {
                 scratch = new TreeElement(LAST_MODIFIED_KEY);
                 scratch.setAnswer(new DateData(c.getLastModified()));
                 cacheBuilder.addChild(scratch);
+            }
 
-                for (Enumeration en = c.getProperties().keys(); en.hasMoreElements(); ) {
-                    String key = (String)en.nextElement();
+            Enumeration en = projection == null ? c.getProperties().keys() : projection.keys();
+            while (en.hasMoreElements()) {
+                String key = (String)en.nextElement();
 
-                    //this is an unfortunate complication of our internal model
-                    if (LAST_MODIFIED_KEY.equals(key)) {
-                        continue;
-                    }
+                //this is an unfortunate complication of our internal model
+                if (LAST_MODIFIED_KEY.equals(key)) {
+                    continue;
+                }
 
-                    scratch = new TreeElement(parent.intern(key));
-                    Object temp = c.getProperty(key);
-                    if (temp instanceof String) {
-                        scratch.setValue(new UncastData((String)temp));
-                    } else {
-                        scratch.setValue(PreloadUtils.wrapIndeterminedObject(temp));
-                    }
-                    cacheBuilder.addChild(scratch);
+                Object temp = c.getProperties().get(key);
+                if (temp == null) {
+                    //Only possible for projected names which aren't properties
+                    continue;
                 }
+                scratch = new TreeElement(parent.intern(key));
+                if (temp instanceof String) {
+                    scratch.setValue(new UncastData((String)temp));
+                } else {
+                    scratch.setValue(PreloadUtils.wrapIndeterminedObject(temp));
+                }
+                cacheBuilder.addChild(scratch);
+            }
+
+            if (includes(projection, INDEX_KEY)) {
                 //TODO: Extract this pattern
                 TreeElement index = new TreeElement("index") {
-                    public TreeElement getChild(String name, int multiplicity) {
+                    public synchronized TreeElement getChild(String name, int multiplicity) {
                         TreeElement child = super.getChild(CaseChildElement.this.parent.intern(name), multiplicity);
 
                         //TODO: Skeeeetchy, this is not a good way to do this,
@@ -405,9 +503,11 @@ public class CaseChildElement implements AbstractTreeElement<TreeElement> {
                     index.addChild(scratch);
                 }
                 cacheBuilder.addChild(index);
+            }
 
+            if (includes(projection, ATTACHMENT_KEY)) {
                 TreeElement attachments = new TreeElement("attachment") {
-                    public TreeElement getChild(String name, int multiplicity) {
+                    public synchronized TreeElement getChild(String name, int multiplicity) {
                         TreeElement child = super.getChild(CaseChildElement.this.parent.intern(name), multiplicity);
 
                         //TODO: Skeeeetchy, this is not a good way to do this,
@@ -436,14 +536,12 @@ public class CaseChildElement implements AbstractTreeElement<TreeElement> {
                 }
                 cacheBuilder.addChild(attachments);
             }
+        }
 
-            cacheBuilder.setParent(this.parent);
-            done[0] = true;
-
-            parent.treeCache.register(recordId, cacheBuilder);
+        cacheBuilder.setParent(this.parent);
+        done[0] = true;
 
-            return cacheBuilder;
-        }
+        return cacheBuilder;
     }
 
     public boolean isRelevant() {
@@ -3,11 +3,20 @@
  */
 package org.commcare.cases.instance;
 
+import java.io.IOException;
+import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
 import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseRecordFormat;
+import org.commcare.cases.util.BoundedRecordCache;
+import org.commcare.cases.util.CaseIndexGraph;
+import org.commcare.cases.util.IntIntMap;
+import org.commcare.cases.util.RecordBitmap;
 import org.commcare.cases.util.StorageBackedTreeRoot;
+import org.commcare.cases.util.StripedRecordCache;
+import org.javarosa.core.api.Constants;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.instance.AbstractTreeElement;
@@ -16,10 +25,12 @@ import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.ITreeVisitor;
 import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
-import org.javarosa.core.util.DataUtil;
 import org.javarosa.core.util.Interner;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.model.xform.XPathReference;
 import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.javarosa.xpath.expr.XPathPathExpr;
 
 /**
@@ -38,12 +49,47 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
     protected IStorageUtilityIndexed storage;
     private String[] caseRecords;
 
-    protected Vector<CaseChildElement> cases;
+    /**
+     * The storage record id of the case at each multiplicity. Only
+     * populated when this casedb is backed by the full storage.
+     */
+    protected int[] multiplicityRecords;
+
+    /**
+     * The default number of case elements to keep around for reuse
+     */
+    public static final int DEFAULT_ELEMENT_CACHE_SIZE = 1000;
+
+    /**
+     * Recently requested case elements, keyed by multiplicity. Elements are
+     * only created when something asks for them, and are cheap to create
+     * again (they're just a record id until they are read), so only a
+     * bounded number are kept.
+     */
+    protected BoundedRecordCache<CaseChildElement> cases;
 
-    protected Interner<TreeElement> treeCache = new Interner<TreeElement>();
+    /**
+     * The default number of hydrated cases to keep in memory at once
+     */
+    public static final int DEFAULT_TREE_CACHE_SIZE = 1000;
+
+    /**
+     * Hydrated case elements. Safe to read and populate from multiple
+     * evaluation threads at once.
+     */
+    protected StripedRecordCache<TreeElement> treeCache = new StripedRecordCache<TreeElement>(DEFAULT_TREE_CACHE_SIZE);
 
     protected Interner<String> stringCache;
 
+    /**
+     * The names of the children which are built when a case is hydrated,
+     * or null to build all of them. Starts empty and widens as evaluation
+     * asks for children, so after the first few cases, each case only has
+     * the children that expressions actually read. Never modified once
+     * published, widening replaces it.
+     */
+    private Hashtable<String, String> projection = new Hashtable<String, String>();
+
     String syncToken;
     String stateHash;
 
@@ -62,6 +108,10 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
         this.instanceRoot = instanceRoot;
         this.storage = storage;
         this.reportMode = reportMode;
+        if (reportMode) {
+            //No children are built in report mode
+            projection = null;
+        }
         storage.setReadOnly();
     }
 
@@ -104,6 +154,71 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
         this.stringCache = stringCache;
     }
 
+    /**
+     * Sets the maximum number of cases which will be held fully hydrated in
+     * memory. Cases which fall out of the cache are rebuilt from storage the
+     * next time they are read.
+     *
+     * @param maxEntries The number of cases to keep
+     */
+    public void setTreeCacheSize(int maxEntries) {
+        treeCache.setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Sets which children are built when cases are hydrated. Children
+     * outside of the projection are still available, but asking for one
+     * rebuilds the case with it (and adds it to the projection).
+     *
+     * @param childNames The names of the case children (properties, or
+     *                   case_name, index, etc) which expressions will read.
+     *                   Null to always build every child.
+     */
+    public synchronized void setProjection(String[] childNames) {
+        if (childNames == null || reportMode) {
+            projection = null;
+        } else {
+            Hashtable<String, String> names = new Hashtable<String, String>();
+            for (int i = 0; i < childNames.length; ++i) {
+                names.put(childNames[i], childNames[i]);
+            }
+            projection = names;
+        }
+        //Anything cached was built for a different projection
+        treeCache.clear();
+    }
+
+    synchronized Hashtable<String, String> getProjection() {
+        return projection;
+    }
+
+    /**
+     * Adds a child name to the projection.
+     *
+     * @return The new projection
+     */
+    synchronized Hashtable<String, String> widenProjection(String childName) {
+        if (projection == null || projection.containsKey(childName)) {
+            return projection;
+        }
+        Hashtable<String, String> widened = new Hashtable<String, String>();
+        for (Enumeration en = projection.keys(); en.hasMoreElements(); ) {
+            String name = (String)en.nextElement();
+            widened.put(name, name);
+        }
+        widened.put(childName, childName);
+        projection = widened;
+        return projection;
+    }
+
+    /**
+     * @return The cache of hydrated case elements, for inspecting its hit
+     * rate and size.
+     */
+    public StripedRecordCache<TreeElement> getTreeCache() {
+        return treeCache;
+    }
+
     /* (non-Javadoc)
      * @see org.javarosa.core.model.instance.AbstractTreeElement#getChild(java.lang.String, int)
      */
@@ -115,12 +230,12 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
         //name is always "case", so multiplicities are the only relevant component here
         if (name.equals("case")) {
             getCases();
-            if (cases.size() == 0) {
+            if (getNumChildren() == 0) {
                 //If we have no cases, we still need to be able to return a template element so as to not
                 //break xpath evaluation
                 return CaseChildElement.TemplateElement(this);
             }
-            return cases.elementAt(multiplicity);
+            return getCaseAt(multiplicity);
         }
         return null;
     }
@@ -131,7 +246,14 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
     public Vector getChildrenWithName(String name) {
         if (name.equals("case")) {
             getCases();
-            return cases;
+            //The case elements are lazy, so this won't read anything from
+            //storage until something is requested from one of them.
+            int count = getNumChildren();
+            Vector<CaseChildElement> all = new Vector<CaseChildElement>(count);
+            for (int i = 0; i < count; ++i) {
+                all.addElement(getCaseAt(i));
+            }
+            return all;
         } else {
             return new Vector();
         }
@@ -166,31 +288,65 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
      */
     public CaseChildElement getChildAt(int i) {
         getCases();
-        return cases.elementAt(i);
+        return getCaseAt(i);
     }
 
+    /**
+     * Retrieves the case element at the provided multiplicity, creating it
+     * if it isn't in the element cache.
+     */
+    private synchronized CaseChildElement getCaseAt(int mult) {
+        CaseChildElement element = cases.retrieve(mult);
+        if (element == null) {
+            element = createCaseAt(mult);
+            cases.register(mult, element);
+        }
+        return element;
+    }
+
+    private CaseChildElement createCaseAt(int mult) {
+        if (caseRecords != null) {
+            return new CaseChildElement(this, -1, caseRecords[mult], mult);
+        } else {
+            return new CaseChildElement(this, multiplicityRecords[mult], null, mult);
+        }
+    }
+
+    /**
+     * Builds the multiplicity index of the cases in this casedb. This only
+     * walks the record ids in storage, it does not read or create any of the
+     * case elements themselves.
+     */
     protected synchronized void getCases() {
         if (cases != null) {
             return;
         }
-        objectIdMapping = new Hashtable<Integer, Integer>();
-        cases = new Vector<CaseChildElement>();
-        if (caseRecords != null) {
-            int i = 0;
-            for (String id : caseRecords) {
-                cases.addElement(new CaseChildElement(this, -1, id, i));
-                ++i;
-            }
-        } else {
+        if (caseRecords == null) {
+            multiplicityRecords = new int[getNumChildren()];
+            objectIdMapping = new IntIntMap(multiplicityRecords.length);
             int mult = 0;
             for (IStorageIterator i = storage.iterate(); i.hasMore(); ) {
                 int id = i.nextID();
-                cases.addElement(new CaseChildElement(this, id, null, mult));
-                objectIdMapping.put(DataUtil.integer(id), DataUtil.integer(mult));
+                if (mult == multiplicityRecords.length) {
+                    //Storage grew since we counted it
+                    int[] grown = new int[mult * 2 + 1];
+                    System.arraycopy(multiplicityRecords, 0, grown, 0, mult);
+                    multiplicityRecords = grown;
+                }
+                multiplicityRecords[mult] = id;
+                objectIdMapping.put(id, mult);
                 mult++;
             }
-
+            if (mult != multiplicityRecords.length) {
+                int[] trimmed = new int[mult];
+                System.arraycopy(multiplicityRecords, 0, trimmed, 0, mult);
+                multiplicityRecords = trimmed;
+            }
+            numRecords = mult;
+        } else {
+            objectIdMapping = new IntIntMap();
         }
+        cases = new BoundedRecordCache<CaseChildElement>(DEFAULT_ELEMENT_CACHE_SIZE);
     }
 
     public void setState(String syncToken, String stateHash) {
@@ -360,7 +516,7 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
     }
 
     public void clearCaches() {
-        // TODO Auto-generated method stub
+        clearSortedIndices();
     }
 
     //Xpath parsing is sllllllloooooooowwwwwww
@@ -369,6 +525,17 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
     final static private XPathPathExpr CASE_TYPE_EXPR = XPathReference.getPathExpr("@case_type");
     final static private XPathPathExpr CASE_STATUS_EXPR = XPathReference.getPathExpr("@status");
     final static private XPathPathExpr CASE_INDEX_EXPR = XPathReference.getPathExpr("index/*");
+    final static private XPathPathExpr DATE_OPENED_EXPR = XPathReference.getPathExpr("date_opened");
+    final static private XPathPathExpr LAST_MODIFIED_EXPR = XPathReference.getPathExpr("last_modified");
+
+    /**
+     * Parsed path expressions for indexed case properties, keyed by property
+     * name.
+     */
+    final static private Hashtable<String, XPathPathExpr> propertyExprs = new Hashtable<String, XPathPathExpr>();
+
+    final static private String SORT_KEY_DATE_OPENED = "date_opened";
+    final static private String SORT_KEY_LAST_MODIFIED = "last_modified";
 
 
     protected String translateFilterExpr(XPathPathExpr expressionTemplate, XPathPathExpr matchingExpr, Hashtable<XPathPathExpr, String> indices) {
@@ -391,7 +558,10 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
         if (stringCache == null) {
             return s;
         } else {
-            return stringCache.intern(s);
+            //Cases can be hydrated from more than one thread
+            synchronized (stringCache) {
+                return stringCache.intern(s);
+            }
         }
     }
 
@@ -399,6 +569,42 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
         return (Case)storage.read(recordId);
     }
 
+    /**
+     * Reads a case with only the properties needed to build the provided
+     * projection of its tree, without decoding the rest of its record. The
+     * case returned should never be written back to storage.
+     *
+     * @param projection The names of the children being built, or null if
+     *                   all of them are.
+     */
+    Case getCase(int recordId, Hashtable<String, String> projection) {
+        //Attachments are spread across properties with unknown names
+        if (projection == null || projection.containsKey(CaseChildElement.ATTACHMENT_KEY)) {
+            return getCase(recordId);
+        }
+        byte[] record = storage.readBytes(recordId);
+        if (!CaseRecordFormat.isCurrentFormat(record)) {
+            return getCase(recordId);
+        }
+
+        //The attributes and fixed children are backed by these properties
+        Hashtable<String, String> keys = new Hashtable<String, String>();
+        for (Enumeration en = projection.keys(); en.hasMoreElements(); ) {
+            String key = (String)en.nextElement();
+            keys.put(key, key);
+        }
+        keys.put(Constants.USER_ID_KEY, Constants.USER_ID_KEY);
+        keys.put(CaseChildElement.LAST_MODIFIED_KEY, CaseChildElement.LAST_MODIFIED_KEY);
+
+        try {
+            return CaseRecordFormat.readPartial(record, keys, projection.containsKey(CaseChildElement.INDEX_KEY), ExtUtil.defaultPrototypes());
+        } catch (IOException e) {
+            return getCase(recordId);
+        } catch (DeserializationException e) {
+            return getCase(recordId);
+        }
+    }
+
     protected String getChildHintName() {
         return "case";
     }
@@ -413,9 +619,142 @@ public class CaseInstanceTreeElement extends StorageBackedTreeRoot<CaseChildElem
         indices.put(CASE_STATUS_EXPR, Case.INDEX_CASE_STATUS);
         indices.put(CASE_INDEX_EXPR, Case.INDEX_CASE_INDEX_PRE);
 
+        //Report mode cases don't have their property nodes
+        if (!reportMode) {
+            String[] properties = Case.getIndexedProperties();
+            for (int i = 0; i < properties.length; ++i) {
+                indices.put(getPropertyExpr(properties[i]), Case.INDEX_CASE_PROPERTY_PRE + properties[i]);
+            }
+        }
+
+        return indices;
+    }
+
+    private static XPathPathExpr getPropertyExpr(String property) {
+        synchronized (propertyExprs) {
+            XPathPathExpr expr = propertyExprs.get(property);
+            if (expr == null) {
+                expr = XPathReference.getPathExpr(property);
+                propertyExprs.put(property, expr);
+            }
+            return expr;
+        }
+    }
+
+    /**
+     * Cases without an index are stored with a blank value for it, so the
+     * complement of an index lookup would include them even though they
+     * don't have the node being compared. Cases without an indexed property
+     * are stored the same way, and a property can also be present but blank,
+     * so neither != nor a match against a blank value can be answered for
+     * properties.
+     */
+    protected boolean isAnswerableFromIndex(String key, Object value) {
+        boolean property = key.startsWith(Case.INDEX_CASE_PROPERTY_PRE);
+        if (!property && !key.startsWith(Case.INDEX_CASE_INDEX_PRE)) {
+            return true;
+        }
+        if (!(value instanceof IndexedPredicate)) {
+            return !property || !"".equals(XPathFuncExpr.toString(value));
+        }
+        IndexedPredicate predicate = (IndexedPredicate)value;
+        if (predicate.op == IndexedPredicate.NOT_EQUAL) {
+            return false;
+        } else if (predicate.op == IndexedPredicate.ANY_OF && property) {
+            return !((Vector<String>)predicate.value).contains("");
+        }
+        return true;
+    }
+
+    protected boolean containsAllRecords() {
+        return caseRecords == null;
+    }
+
+    protected RecordBitmap getNextIndexMatch(Vector<String> keys, Vector<Object> values, IStorageUtilityIndexed<?> storage) throws IllegalArgumentException {
+        RecordBitmap graphMatches = getIndexGraphMatch(keys.elementAt(0), values.elementAt(0));
+        if (graphMatches != null) {
+            keys.removeElementAt(0);
+            values.removeElementAt(0);
+            return graphMatches;
+        }
+
+        //Case properties are indexed by their string value, but the value
+        //being matched can be any XPath type (case[dob_year = 1990]), so
+        //compare it the way XPath would.
+        if (keys.elementAt(0).startsWith(Case.INDEX_CASE_PROPERTY_PRE)) {
+            Object o = values.elementAt(0);
+            if (o instanceof IndexedPredicate) {
+                IndexedPredicate predicate = (IndexedPredicate)o;
+                if (predicate.op == IndexedPredicate.NOT_EQUAL && !(predicate.value instanceof String)) {
+                    values.setElementAt(new IndexedPredicate(IndexedPredicate.NOT_EQUAL, XPathFuncExpr.toString(predicate.value)), 0);
+                }
+            } else if (!(o instanceof String)) {
+                values.setElementAt(XPathFuncExpr.toString(o), 0);
+            }
+        }
+        return super.getNextIndexMatch(keys, values, storage);
+    }
+
+    /**
+     * Answers case index lookups (index/parent = X) from the in-memory index
+     * graph rather than from storage.
+     *
+     * @return The matching records, or null if the lookup isn't one the graph
+     * can answer.
+     */
+    private RecordBitmap getIndexGraphMatch(String key, Object value) {
+        if (!key.startsWith(Case.INDEX_CASE_INDEX_PRE)) {
+            return null;
+        }
+
+        Vector<String> targets;
+        if (value instanceof IndexedPredicate) {
+            IndexedPredicate predicate = (IndexedPredicate)value;
+            if (predicate.op != IndexedPredicate.ANY_OF) {
+                return null;
+            }
+            targets = (Vector<String>)predicate.value;
+        } else {
+            targets = new Vector<String>();
+            targets.addElement(XPathFuncExpr.toString(value));
+        }
+
+        CaseIndexGraph graph = CaseIndexGraph.getGraph(storage);
+        String indexName = key.substring(Case.INDEX_CASE_INDEX_PRE.length());
+        RecordBitmap matches = new RecordBitmap();
+        for (int i = 0; i < targets.size(); ++i) {
+            String target = targets.elementAt(i);
+            if ("".equals(target)) {
+                //Cases without the index are only in storage's index
+                return null;
+            }
+            matches = matches.or(graph.getIndexingRecords(indexName, target));
+        }
+        return matches;
+    }
+
+    protected Hashtable<XPathPathExpr, String> getSortedIndexMap() {
+        Hashtable<XPathPathExpr, String> indices = super.getSortedIndexMap();
+
+        //Report mode cases don't have any of their data nodes, so comparisons
+        //against them can't match anything
+        if (!reportMode) {
+            indices.put(DATE_OPENED_EXPR, SORT_KEY_DATE_OPENED);
+            indices.put(LAST_MODIFIED_EXPR, SORT_KEY_LAST_MODIFIED);
+        }
         return indices;
     }
 
+    protected Object getIndexSortValue(Object record, String key) {
+        Case c = (Case)record;
+        if (SORT_KEY_DATE_OPENED.equals(key)) {
+            return c.getDateOpened();
+        } else if (SORT_KEY_LAST_MODIFIED.equals(key)) {
+            return c.getLastModified();
+        }
+        return super.getIndexSortValue(record, key);
+    }
+
     protected IStorageUtilityIndexed<?> getStorage() {
         return storage;
     }
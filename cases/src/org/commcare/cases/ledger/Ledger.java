@@ -6,15 +6,11 @@ package org.commcare.cases.ledger;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector;
 
 import org.javarosa.core.services.storage.IMetaData;
 import org.javarosa.core.services.storage.Persistable;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
-import org.javarosa.core.util.externalizable.ExtWrapMap;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 
 /**
@@ -35,7 +31,88 @@ public class Ledger implements Persistable, IMetaData {
 
     String entityId;
     int recordId = -1;
-    Hashtable<String, Hashtable<String, Integer>> sections;
+
+    //Sections, in the order they were added. Most ledgers only have a few.
+    Section[] sections = new Section[2];
+    int sectionCount;
+
+    /**
+     * The entries in one section of a ledger, stored as parallel arrays of
+     * ids and values (in the order they were added) with an open addressing
+     * table over the ids, so reads and updates don't box or allocate.
+     */
+    static class Section {
+        final String id;
+        String[] entryIds;
+        int[] values;
+        int count;
+
+        //(index of the entry + 1) for each slot, 0 if the slot is empty
+        int[] slots;
+
+        Section(String id, int expectedEntries) {
+            this.id = id;
+            int capacity = Math.max(4, expectedEntries);
+            entryIds = new String[capacity];
+            values = new int[capacity];
+            int slotCount = 8;
+            while (slotCount < capacity * 2) {
+                slotCount *= 2;
+            }
+            slots = new int[slotCount];
+        }
+
+        int indexOf(String entryId) {
+            int mask = slots.length - 1;
+            for (int slot = entryId.hashCode() & mask; ; slot = (slot + 1) & mask) {
+                int index = slots[slot] - 1;
+                if (index < 0) {
+                    return -1;
+                }
+                if (entryIds[index].equals(entryId)) {
+                    return index;
+                }
+            }
+        }
+
+        void set(String entryId, int value) {
+            int index = indexOf(entryId);
+            if (index >= 0) {
+                values[index] = value;
+                return;
+            }
+            if (count == entryIds.length) {
+                String[] grownIds = new String[count * 2];
+                System.arraycopy(entryIds, 0, grownIds, 0, count);
+                entryIds = grownIds;
+                int[] grownValues = new int[count * 2];
+                System.arraycopy(values, 0, grownValues, 0, count);
+                values = grownValues;
+            }
+            entryIds[count] = entryId;
+            values[count] = value;
+            count++;
+
+            //Keep the table at most half full
+            if (count * 2 > slots.length) {
+                slots = new int[slots.length * 2];
+                for (int i = 0; i < count; ++i) {
+                    addSlot(i);
+                }
+            } else {
+                addSlot(count - 1);
+            }
+        }
+
+        private void addSlot(int index) {
+            int mask = slots.length - 1;
+            int slot = entryIds[index].hashCode() & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index + 1;
+        }
+    }
 
     public Ledger() {
 
@@ -43,7 +120,6 @@ public class Ledger implements Persistable, IMetaData {
 
     public Ledger(String entityId) {
         this.entityId = entityId;
-        this.sections = new Hashtable<String, Hashtable<String, Integer>>();
     }
 
     /**
@@ -55,6 +131,26 @@ public class Ledger implements Persistable, IMetaData {
         return entityId;
     }
 
+    private Section getSection(String sectionId) {
+        for (int i = 0; i < sectionCount; ++i) {
+            if (sections[i].id.equals(sectionId)) {
+                return sections[i];
+            }
+        }
+        return null;
+    }
+
+    private Section addSection(String sectionId, int expectedEntries) {
+        if (sectionCount == sections.length) {
+            Section[] grown = new Section[sectionCount * 2];
+            System.arraycopy(sections, 0, grown, 0, sectionCount);
+            sections = grown;
+        }
+        Section section = new Section(sectionId, expectedEntries);
+        sections[sectionCount++] = section;
+        return section;
+    }
+
     /**
      * Retrieve an entry from a specific section of the ledger.
      *
@@ -65,21 +161,37 @@ public class Ledger implements Persistable, IMetaData {
      * @return the entry value. '0' if no entry exists.
      */
     public int getEntry(String sectionId, String entryId) {
-        if (!sections.containsKey(sectionId) || !sections.get(sectionId).containsKey(entryId)) {
+        Section section = getSection(sectionId);
+        if (section == null) {
             return 0;
         }
-        return sections.get(sectionId).get(entryId).intValue();
+        int index = section.indexOf(entryId);
+        return index == -1 ? 0 : section.values[index];
+    }
+
+    /**
+     * Finds the position of an entry in the list of entries for a section
+     *
+     * @param sectionId The section containing the entry
+     * @param entryId   The Id of the entry to find
+     * @return The index of the entry in getListOfEntries(sectionId), or -1
+     * if no entry exists.
+     */
+    public int getEntryIndex(String sectionId, String entryId) {
+        Section section = getSection(sectionId);
+        if (section == null) {
+            return -1;
+        }
+        return section.indexOf(entryId);
     }
 
     /**
      * @return The list of sections available in this ledger
      */
     public String[] getSectionList() {
-        String[] sectionList = new String[sections.size()];
-        int i = 0;
-        for (Enumeration e = sections.keys(); e.hasMoreElements(); ) {
-            sectionList[i] = (String)e.nextElement();
-            ++i;
+        String[] sectionList = new String[sectionCount];
+        for (int i = 0; i < sectionCount; ++i) {
+            sectionList[i] = sections[i].id;
         }
         return sectionList;
 
@@ -93,13 +205,12 @@ public class Ledger implements Persistable, IMetaData {
      * @return The IDs of all entries defined in the provided section
      */
     public String[] getListOfEntries(String sectionId) {
-        Hashtable<String, Integer> entries = sections.get(sectionId);
-        String[] entryList = new String[entries.size()];
-        int i = 0;
-        for (Enumeration e = entries.keys(); e.hasMoreElements(); ) {
-            entryList[i] = (String)e.nextElement();
-            ++i;
+        Section section = getSection(sectionId);
+        if (section == null) {
+            return new String[0];
         }
+        String[] entryList = new String[section.count];
+        System.arraycopy(section.entryIds, 0, entryList, 0, section.count);
         return entryList;
     }
 
@@ -110,7 +221,22 @@ public class Ledger implements Persistable, IMetaData {
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
         recordId = ExtUtil.readInt(in);
         entityId = ExtUtil.readString(in);
-        sections = (Hashtable<String, Hashtable<String, Integer>>)ExtUtil.read(in, new ExtWrapMap(String.class, new ExtWrapMap(String.class, Integer.class)));
+
+        //This is the layout that ExtWrapMap(String, ExtWrapMap(String, Integer))
+        //produces, which is how ledgers used to be written, so existing records
+        //read the same way. Ids are interned by ExtUtil.readString.
+        int count = ExtUtil.readInt(in);
+        sections = new Section[Math.max(2, count)];
+        sectionCount = 0;
+        for (int i = 0; i < count; ++i) {
+            String sectionId = ExtUtil.readString(in);
+            int entryCount = ExtUtil.readInt(in);
+            Section section = addSection(sectionId, entryCount);
+            for (int j = 0; j < entryCount; ++j) {
+                String entryId = ExtUtil.readString(in);
+                section.set(entryId, ExtUtil.readInt(in));
+            }
+        }
     }
 
     /*
@@ -120,7 +246,17 @@ public class Ledger implements Persistable, IMetaData {
     public void writeExternal(DataOutputStream out) throws IOException {
         ExtUtil.writeNumeric(out, recordId);
         ExtUtil.writeString(out, entityId);
-        ExtUtil.write(out, new ExtWrapMap(sections, new ExtWrapMap(String.class, Integer.class)));
+
+        ExtUtil.writeNumeric(out, sectionCount);
+        for (int i = 0; i < sectionCount; ++i) {
+            Section section = sections[i];
+            ExtUtil.writeString(out, section.id);
+            ExtUtil.writeNumeric(out, section.count);
+            for (int j = 0; j < section.count; ++j) {
+                ExtUtil.writeString(out, section.entryIds[j]);
+                ExtUtil.writeNumeric(out, section.values[j]);
+            }
+        }
     }
 
     /*
@@ -147,10 +283,11 @@ public class Ledger implements Persistable, IMetaData {
      * @param quantity
      */
     public void setEntry(String sectionId, String entryId, int quantity) {
-        if (!sections.containsKey(sectionId)) {
-            sections.put(sectionId, new Hashtable<String, Integer>());
+        Section section = getSection(sectionId);
+        if (section == null) {
+            section = addSection(sectionId, 4);
         }
-        sections.get(sectionId).put(entryId, new Integer(quantity));
+        section.set(entryId, quantity);
     }
 
     /*
@@ -4,20 +4,19 @@
 package org.commcare.cases.ledger;
 
 import java.util.Hashtable;
-import java.util.NoSuchElementException;
-import java.util.Vector;
 
 import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseRecordFormat;
+import org.commcare.cases.util.RecordBitmap;
 import org.javarosa.core.services.storage.EntityFilter;
 import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
-import org.javarosa.core.util.DataUtil;
 
 /**
  * @author ctsims
  */
 public class LedgerPurgeFilter extends EntityFilter<Ledger> {
-    Vector<Integer> idsToRemove = new Vector<Integer>();
+    RecordBitmap idsToRemove = new RecordBitmap();
 
     /**
      * Create a filter for purging ledgers which should no longer be on the phone from
@@ -28,12 +27,19 @@ public class LedgerPurgeFilter extends EntityFilter<Ledger> {
      * @param caseStorage   The case storage database for reference
      */
     public LedgerPurgeFilter(IStorageUtilityIndexed<Ledger> ledgerStorage, IStorageUtilityIndexed<Case> caseStorage) {
+        //One pass over each storage, rather than a case lookup per ledger
+        Hashtable<String, String> caseIds = new Hashtable<String, String>();
+        for (IStorageIterator<Case> i = caseStorage.iterate(); i.hasMore(); ) {
+            String caseId = CaseRecordFormat.readCaseId(caseStorage, i.nextID());
+            if (caseId != null) {
+                caseIds.put(caseId, caseId);
+            }
+        }
+
         for (IStorageIterator<Ledger> i = ledgerStorage.iterate(); i.hasMore(); ) {
             Ledger s = i.nextRecord();
-            try {
-                caseStorage.getRecordForValue(Case.INDEX_CASE_ID, s.getEntiyId());
-            } catch (NoSuchElementException nsee) {
-                idsToRemove.addElement(new Integer(s.getID()));
+            if (s.getEntiyId() == null || !caseIds.containsKey(s.getEntiyId())) {
+                idsToRemove.add(s.getID());
             }
         }
     }
@@ -42,7 +48,7 @@ public class LedgerPurgeFilter extends EntityFilter<Ledger> {
      * @see org.javarosa.core.services.storage.EntityFilter#preFilter(int, java.util.Hashtable)
      */
     public int preFilter(int id, Hashtable<String, Object> metaData) {
-        if (idsToRemove.contains(DataUtil.integer(id))) {
+        if (idsToRemove.contains(id)) {
             return PREFILTER_INCLUDE;
         } else {
             return PREFILTER_EXCLUDE;
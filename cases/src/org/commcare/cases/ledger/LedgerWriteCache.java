@@ -0,0 +1,272 @@
+/**
+ *
+ */
+package org.commcare.cases.ledger;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+
+import org.commcare.cases.util.IndexResultCache;
+import org.commcare.cases.util.WriteQueue;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.services.storage.StorageFullException;
+import org.javarosa.core.util.DataUtil;
+
+/**
+ * Holds the ledgers which have been modified while processing a restore so
+ * that each one is read from storage once and written back once, rather
+ * than once for every balance or transfer block which touches it.
+ *
+ * Modified ledgers are written to storage when flush() is called (at the
+ * end of the restore), or as soon as the ledgers being held contain more
+ * than a set number of entries. The owner of the cache is responsible for
+ * flushing it before the restore's transaction is committed (or its sync
+ * token saved), and for discarding it if the transaction is rolled back.
+ * Ledgers written early because of the size limit are written inside the
+ * same transaction, so they are rolled back with everything else. Without
+ * a transaction, a restore which is checkpointed should hold its ledgers
+ * until it flushes them at a checkpoint (see setHoldUntilFlushed()), since
+ * blocks replayed after an interruption would otherwise apply transfers to
+ * ledgers which already include them.
+ *
+ * As with CaseWriteCache, a WriteQueue can be attached so that ledgers are
+ * read and written on the thread which owns the restore's transaction,
+ * rather than on the thread modifying them.
+ */
+public class LedgerWriteCache {
+
+    /**
+     * The default number of ledger entries to hold in memory before writing
+     * the modified ledgers out.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 20000;
+
+    private final IStorageUtilityIndexed<Ledger> storage;
+    private final int maxEntries;
+    private WriteQueue queue;
+    private boolean holdUntilFlushed;
+
+    //entity id -> ledger, for every ledger read or created through the cache
+    private Hashtable<String, Ledger> ledgers = new Hashtable<String, Ledger>();
+
+    //The modified ledgers, in the order they were first modified
+    private Vector<Ledger> dirty = new Vector<Ledger>();
+
+    //entity id -> number of entries in each modified ledger when it was last
+    //marked, and the running total of those
+    private Hashtable<String, Integer> dirtyEntries = new Hashtable<String, Integer>();
+    private int entryCount;
+
+    private int writes;
+    private long writeTime;
+
+    public LedgerWriteCache(IStorageUtilityIndexed<Ledger> storage) {
+        this(storage, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries The number of entries the held ledgers can contain
+     *                   before they are written out
+     */
+    public LedgerWriteCache(IStorageUtilityIndexed<Ledger> storage, int maxEntries) {
+        this.storage = storage;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param hold True if modified ledgers should only be written when
+     *             flush() is called, however many entries they contain
+     */
+    public synchronized void setHoldUntilFlushed(boolean hold) {
+        this.holdUntilFlushed = hold;
+    }
+
+    /**
+     * Reads and writes ledgers on the provided queue's owner, rather than on
+     * the thread which modifies them.
+     */
+    public synchronized void setWriteQueue(WriteQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Gets the ledger for the provided entity, from the cache if it has
+     * already been read during this restore.
+     *
+     * @return The ledger for the entity, or a new (unsaved) ledger if the
+     * entity doesn't have one yet.
+     */
+    public Ledger retrieveOrCreate(final String entityId) {
+        synchronized (this) {
+            Ledger ledger = ledgers.get(entityId);
+            if (ledger != null) {
+                return ledger;
+            }
+        }
+        Ledger ledger;
+        if (queue == null) {
+            ledger = read(entityId);
+        } else {
+            //Don't hold the lock while waiting for the owner. The read is
+            //queued behind any ledgers waiting to be written.
+            ledger = (Ledger)queue.run(new WriteQueue.Task() {
+                public Object run() {
+                    return read(entityId);
+                }
+            });
+        }
+        synchronized (this) {
+            ledgers.put(entityId, ledger);
+        }
+        return ledger;
+    }
+
+    private Ledger read(String entityId) {
+        try {
+            return (Ledger)storage.getRecordForValue(Ledger.INDEX_ENTITY_ID, entityId);
+        } catch (NoSuchElementException nsee) {
+            return new Ledger(entityId);
+        }
+    }
+
+    /**
+     * Notes that the provided ledgers (which must have been retrieved from
+     * this cache) have been modified and need to be written. If the cache
+     * has grown past its limit, everything modified so far is written out,
+     * unless the cache is holding ledgers until it's flushed.
+     */
+    public void modified(Ledger[] modified) throws IOException {
+        Vector<Ledger> batch = null;
+        synchronized (this) {
+            for (int i = 0; i < modified.length; ++i) {
+                Ledger ledger = modified[i];
+                Integer previous = dirtyEntries.get(ledger.getEntiyId());
+                if (previous == null) {
+                    dirty.addElement(ledger);
+                } else {
+                    entryCount -= previous.intValue();
+                }
+                int entries = countEntries(ledger);
+                dirtyEntries.put(ledger.getEntiyId(), DataUtil.integer(entries));
+                entryCount += entries;
+            }
+            if (entryCount > maxEntries && !holdUntilFlushed) {
+                batch = takeBatch();
+                //Everything left is clean, so there's no reason to hold on to it
+                ledgers.clear();
+            }
+        }
+        //Don't hold the lock while waiting for room on the queue
+        if (batch != null) {
+            write(batch);
+        }
+    }
+
+    /**
+     * Writes every modified ledger to storage, and waits for any ledgers
+     * being written on the write queue to finish.
+     */
+    public void flush() throws IOException {
+        Vector<Ledger> batch;
+        synchronized (this) {
+            batch = takeBatch();
+        }
+        if (batch != null) {
+            write(batch);
+        }
+        if (queue != null) {
+            queue.sync();
+        }
+    }
+
+    /**
+     * Drops all of the held ledgers without writing them, for when the
+     * restore they belong to is being rolled back.
+     */
+    public synchronized void discard() {
+        ledgers.clear();
+        dirty.removeAllElements();
+        dirtyEntries.clear();
+        entryCount = 0;
+    }
+
+    /**
+     * @return The number of modified ledgers which haven't been written
+     */
+    public synchronized int getPendingCount() {
+        return dirty.size();
+    }
+
+    /**
+     * @return The number of ledger records written to storage
+     */
+    public synchronized int getWriteCount() {
+        return writes;
+    }
+
+    /**
+     * @return The time spent writing batches of ledgers, in milliseconds
+     */
+    public synchronized long getWriteTime() {
+        return writeTime;
+    }
+
+    private Vector<Ledger> takeBatch() {
+        if (dirty.size() == 0) {
+            return null;
+        }
+        Vector<Ledger> batch = dirty;
+        dirty = new Vector<Ledger>();
+        dirtyEntries.clear();
+        entryCount = 0;
+        //Once written, these need to be read back from storage
+        for (int i = 0; i < batch.size(); ++i) {
+            ledgers.remove(batch.elementAt(i).getEntiyId());
+        }
+        return batch;
+    }
+
+    private void write(final Vector<Ledger> batch) throws IOException {
+        WriteQueue.Batch write = new WriteQueue.Batch() {
+            public void write() throws StorageFullException {
+                writeBatch(batch);
+            }
+
+            public String describe() {
+                Vector<String> ids = new Vector<String>();
+                for (int i = 0; i < batch.size(); ++i) {
+                    ids.addElement(batch.elementAt(i).getEntiyId());
+                }
+                return WriteQueue.describe("ledgers", ids);
+            }
+        };
+        if (queue == null) {
+            WriteQueue.write(write);
+        } else {
+            queue.submit(write);
+        }
+    }
+
+    private void writeBatch(Vector<Ledger> batch) throws StorageFullException {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < batch.size(); ++i) {
+            Ledger ledger = batch.elementAt(i);
+            storage.write(ledger);
+        }
+        IndexResultCache.storageWritten();
+        synchronized (this) {
+            writes += batch.size();
+            writeTime += System.currentTimeMillis() - start;
+        }
+    }
+
+    private static int countEntries(Ledger ledger) {
+        int count = 0;
+        for (int i = 0; i < ledger.sectionCount; ++i) {
+            count += ledger.sections[i].count;
+        }
+        return count;
+    }
+}
@@ -3,19 +3,17 @@
  */
 package org.commcare.cases.ledger.instance;
 
-import java.util.Hashtable;
 import java.util.Vector;
 
 import org.commcare.cases.ledger.Ledger;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.data.IAnswerData;
-import org.javarosa.core.model.data.IntegerData;
 import org.javarosa.core.model.data.StringData;
 import org.javarosa.core.model.instance.AbstractTreeElement;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.ITreeVisitor;
-import org.javarosa.core.model.instance.utils.TreeUtilities;
+import org.javarosa.model.xform.XPathReference;
 import org.javarosa.xpath.expr.XPathExpression;
 import org.javarosa.xpath.expr.XPathPathExpr;
 
@@ -319,36 +317,11 @@ public class LedgerChildElement implements AbstractTreeElement<TreeElement> {
 
             cacheBuilder.setAttribute(null, NAME_ID, ledger.getEntiyId());
 
-            TreeElement ledgerElement;
-
-            childAttributeHintMap = new Hashtable<XPathPathExpr, Hashtable<String, TreeElement[]>>();
-            Hashtable<String, TreeElement[]> sectionIdMap = new Hashtable<String, TreeElement[]>();
-
+            //Entries are only built as they are read, see LedgerSectionElement
             String[] sectionList = ledger.getSectionList();
             for (int i = 0; i < sectionList.length; ++i) {
-                ledgerElement = new TreeElement(SUBNAME, i);
-                ledgerElement.setAttribute(null, SUBNAME_ID, sectionList[i]);
-                cacheBuilder.addChild(ledgerElement);
-                sectionIdMap.put(sectionList[i], new TreeElement[]{ledgerElement});
-
-                TreeElement entry;
-                Hashtable<XPathPathExpr, Hashtable<String, TreeElement[]>> hintMap = new Hashtable<XPathPathExpr, Hashtable<String, TreeElement[]>>();
-                Hashtable<String, TreeElement[]> idMap = new Hashtable<String, TreeElement[]>();
-
-                String[] entryList = ledger.getListOfEntries(sectionList[i]);
-                for (int j = 0; j < entryList.length; ++j) {
-                    entry = new TreeElement(FINALNAME, j);
-                    entry.setAttribute(null, FINALNAME_ID, entryList[j]);
-                    entry.setValue(new IntegerData(ledger.getEntry(sectionList[i], entryList[j])));
-                    ledgerElement.addChild(entry);
-                    idMap.put(entryList[j], new TreeElement[]{entry});
-                }
-
-                hintMap.put(TreeUtilities.getXPathAttrExpression(FINALNAME_ID), idMap);
-                ledgerElement.addAttributeMap(hintMap);
+                cacheBuilder.addChild(new LedgerSectionElement(ledger, sectionList[i], i));
             }
-            childAttributeHintMap.put(TreeUtilities.getXPathAttrExpression(SUBNAME_ID), sectionIdMap);
-            cacheBuilder.addAttributeMap(childAttributeHintMap);
 
             cacheBuilder.setParent(this.parent);
 
@@ -367,10 +340,28 @@ public class LedgerChildElement implements AbstractTreeElement<TreeElement> {
         return template;
     }
 
-    Hashtable<XPathPathExpr, Hashtable<String, TreeElement[]>> childAttributeHintMap = null;
+    final static XPathPathExpr[] SECTION_ID_EXPRS = new XPathPathExpr[]{
+            XPathReference.getPathExpr("@" + SUBNAME_ID),
+            XPathReference.getPathExpr("./@" + SUBNAME_ID)};
 
     public Vector<TreeReference> tryBatchChildFetch(String name, int mult, Vector<XPathExpression> predicates, EvaluationContext evalContext) {
-        return TreeUtilities.tryBatchChildFetch(this, childAttributeHintMap, name, mult, predicates, evalContext);
+        if (!SUBNAME.equals(name) || recordId == TreeReference.INDEX_TEMPLATE) {
+            return null;
+        }
+        String sectionId = LedgerSectionElement.getIdPredicateValue(SECTION_ID_EXPRS, mult, predicates, evalContext);
+        if (sectionId == null) {
+            return null;
+        }
+        TreeElement cached = cache();
+        int match = -1;
+        for (int i = 0; i < cached.getNumChildren(); ++i) {
+            TreeElement section = cached.getChildAt(i);
+            if (section instanceof LedgerSectionElement && sectionId.equals(((LedgerSectionElement)section).getSectionId())) {
+                match = i;
+                break;
+            }
+        }
+        return LedgerSectionElement.matches(getRef(), name, match);
     }
 
     public String getNamespace() {
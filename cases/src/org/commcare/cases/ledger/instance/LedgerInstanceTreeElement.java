@@ -9,6 +9,7 @@ import java.util.Vector;
 
 import org.commcare.cases.ledger.Ledger;
 import org.commcare.cases.model.Case;
+import org.commcare.cases.util.IntIntMap;
 import org.commcare.cases.util.StorageBackedTreeRoot;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.data.IAnswerData;
@@ -18,7 +19,6 @@ import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.ITreeVisitor;
 import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
-import org.javarosa.core.util.DataUtil;
 import org.javarosa.core.util.Interner;
 import org.javarosa.model.xform.XPathReference;
 import org.javarosa.xpath.expr.XPathEqExpr;
@@ -163,7 +163,7 @@ public class LedgerInstanceTreeElement extends StorageBackedTreeRoot<LedgerChild
         if (ledgers != null) {
             return;
         }
-        objectIdMapping = new Hashtable<Integer, Integer>();
+        objectIdMapping = new IntIntMap(getNumChildren());
         ledgers = new Vector<LedgerChildElement>();
         if (ledgerRecords != null) {
             int i = 0;
@@ -176,7 +176,7 @@ public class LedgerInstanceTreeElement extends StorageBackedTreeRoot<LedgerChild
             for (IStorageIterator i = storage.iterate(); i.hasMore(); ) {
                 int id = i.nextID();
                 ledgers.addElement(new LedgerChildElement(this, id, null, mult));
-                objectIdMapping.put(DataUtil.integer(id), DataUtil.integer(mult));
+                objectIdMapping.put(id, mult);
                 mult++;
             }
 
@@ -330,7 +330,7 @@ public class LedgerInstanceTreeElement extends StorageBackedTreeRoot<LedgerChild
     }
 
     public void clearCaches() {
-        // TODO Auto-generated method stub
+        clearSortedIndices();
     }
 
     public String getNamespace() {
@@ -363,6 +363,10 @@ public class LedgerInstanceTreeElement extends StorageBackedTreeRoot<LedgerChild
         return indices;
     }
 
+    protected boolean containsAllRecords() {
+        return ledgerRecords == null;
+    }
+
     protected IStorageUtilityIndexed<?> getStorage() {
         return storage;
     }
@@ -0,0 +1,180 @@
+/**
+ *
+ */
+package org.commcare.cases.ledger.instance;
+
+import java.util.Vector;
+
+import org.commcare.cases.ledger.Ledger;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.model.xform.XPathReference;
+import org.javarosa.xpath.expr.XPathEqExpr;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathPathExpr;
+
+/**
+ * A section of a ledger whose entry elements are only built when they are
+ * read. Lookups of a single entry by id are answered from the ledger itself,
+ * so reading one balance out of a section with thousands of products only
+ * creates the element for that entry.
+ *
+ * Anything which needs the full list of children (IE: iterating over every
+ * entry) builds all of them.
+ */
+class LedgerSectionElement extends TreeElement {
+
+    final static XPathPathExpr[] ENTRY_ID_EXPRS = new XPathPathExpr[]{
+            XPathReference.getPathExpr("@" + LedgerChildElement.FINALNAME_ID),
+            XPathReference.getPathExpr("./@" + LedgerChildElement.FINALNAME_ID)};
+
+    private final Ledger ledger;
+    private final String sectionId;
+    private final String[] entryIds;
+
+    private final TreeElement[] entries;
+    private boolean allEntriesAdded;
+
+    LedgerSectionElement(Ledger ledger, String sectionId, int mult) {
+        super(LedgerChildElement.SUBNAME, mult);
+        this.ledger = ledger;
+        this.sectionId = sectionId;
+        this.entryIds = ledger.getListOfEntries(sectionId);
+        this.entries = new TreeElement[entryIds.length];
+        setAttribute(null, LedgerChildElement.SUBNAME_ID, sectionId);
+    }
+
+    String getSectionId() {
+        return sectionId;
+    }
+
+    private TreeElement entry(int index) {
+        if (entries[index] == null) {
+            TreeElement entry = new TreeElement(LedgerChildElement.FINALNAME, index);
+            entry.setAttribute(null, LedgerChildElement.FINALNAME_ID, entryIds[index]);
+            entry.setValue(new IntegerData(ledger.getEntry(sectionId, entryIds[index])));
+            entry.setParent(this);
+            entries[index] = entry;
+        }
+        return entries[index];
+    }
+
+    private void addAllEntries() {
+        if (!allEntriesAdded) {
+            for (int i = 0; i < entries.length; ++i) {
+                super.addChild(entry(i));
+            }
+            allEntriesAdded = true;
+        }
+    }
+
+    public synchronized TreeElement getChild(String name, int multiplicity) {
+        if (LedgerChildElement.FINALNAME.equals(name) && multiplicity >= 0 && multiplicity < entries.length) {
+            return entry(multiplicity);
+        }
+        addAllEntries();
+        return super.getChild(name, multiplicity);
+    }
+
+    public synchronized TreeElement getChildAt(int i) {
+        if (i >= 0 && i < entries.length) {
+            return entry(i);
+        }
+        addAllEntries();
+        return super.getChildAt(i);
+    }
+
+    public synchronized Vector getChildrenWithName(String name) {
+        addAllEntries();
+        return super.getChildrenWithName(name);
+    }
+
+    public synchronized int getNumChildren() {
+        if (!allEntriesAdded) {
+            return entries.length;
+        }
+        return super.getNumChildren();
+    }
+
+    public synchronized int getChildMultiplicity(String name) {
+        if (!allEntriesAdded) {
+            return LedgerChildElement.FINALNAME.equals(name) ? entries.length : 0;
+        }
+        return super.getChildMultiplicity(name);
+    }
+
+    public synchronized boolean hasChildren() {
+        return entries.length > 0;
+    }
+
+    public synchronized void addChild(TreeElement child) {
+        addAllEntries();
+        super.addChild(child);
+    }
+
+    public Vector<TreeReference> tryBatchChildFetch(String name, int mult, Vector<XPathExpression> predicates, EvaluationContext evalContext) {
+        if (!LedgerChildElement.FINALNAME.equals(name)) {
+            return null;
+        }
+        String id = getIdPredicateValue(ENTRY_ID_EXPRS, mult, predicates, evalContext);
+        if (id == null) {
+            return null;
+        }
+        return matches(getRef(), name, ledger.getEntryIndex(sectionId, id));
+    }
+
+    /**
+     * Determines whether the first of the provided predicates is a test for
+     * an id attribute of the children being equal to a value, and if so,
+     * removes it and returns the value being looked for.
+     *
+     * @return The id being looked for, or null if the first predicate isn't
+     * one which can be answered by id.
+     */
+    static String getIdPredicateValue(XPathPathExpr[] idExprs, int mult, Vector<XPathExpression> predicates, EvaluationContext evalContext) {
+        if (mult != TreeReference.INDEX_UNBOUND || predicates == null || predicates.size() == 0) {
+            return null;
+        }
+        XPathExpression xpe = predicates.elementAt(0);
+        if (!(xpe instanceof XPathEqExpr)) {
+            return null;
+        }
+        XPathEqExpr eq = (XPathEqExpr)xpe;
+        if (!eq.equal || !matchesAny(idExprs, eq.a)) {
+            return null;
+        }
+        String value = XPathFuncExpr.toString(XPathFuncExpr.unpack(eq.b.eval(evalContext)));
+        predicates.removeElementAt(0);
+        return value;
+    }
+
+    private static boolean matchesAny(XPathPathExpr[] templates, XPathExpression expr) {
+        if (!(expr instanceof XPathPathExpr)) {
+            return false;
+        }
+        for (int i = 0; i < templates.length; ++i) {
+            if (templates[i].matches(expr)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The references to return from a batch fetch of children with
+     * the provided name, given the multiplicity of the one matching child
+     * (or -1 if no child matched).
+     */
+    static Vector<TreeReference> matches(TreeReference base, String name, int mult) {
+        Vector<TreeReference> matches = new Vector<TreeReference>();
+        if (mult != -1) {
+            TreeReference ref = base.clone();
+            ref.add(name, mult);
+            matches.addElement(ref);
+        }
+        return matches;
+    }
+}
@@ -33,10 +33,6 @@ import org.javarosa.core.services.storage.IMetaData;
 import org.javarosa.core.services.storage.Persistable;
 import org.javarosa.core.services.storage.Secure;
 import org.javarosa.core.util.externalizable.DeserializationException;
-import org.javarosa.core.util.externalizable.ExtUtil;
-import org.javarosa.core.util.externalizable.ExtWrapList;
-import org.javarosa.core.util.externalizable.ExtWrapMapPoly;
-import org.javarosa.core.util.externalizable.ExtWrapNullable;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 
 /**
@@ -54,6 +50,13 @@ public class Case implements Persistable, IMetaData, Secure {
     public static String INDEX_CASE_TYPE = "case-type";
     public static String INDEX_CASE_STATUS = "case-status";
     public static String INDEX_CASE_INDEX_PRE = "case-in-";
+    public static String INDEX_CASE_PROPERTY_PRE = "case-prop-";
+
+    /**
+     * The case properties which the app has declared should be indexed in
+     * storage, in addition to the fixed metadata fields.
+     */
+    private static String[] indexedProperties = new String[0];
 
     protected String typeId;
     protected String id;
@@ -174,28 +177,15 @@ public class Case implements Persistable, IMetaData, Secure {
      * @see org.javarosa.core.util.externalizable.Externalizable#readExternal(java.io.DataInputStream, org.javarosa.core.util.externalizable.PrototypeFactory)
      */
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
-        typeId = ExtUtil.readString(in);
-        id = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
-        name = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
-        closed = ExtUtil.readBool(in);
-        dateOpened = (Date)ExtUtil.read(in, new ExtWrapNullable(Date.class), pf);
-        recordId = ExtUtil.readInt(in);
-        indices = (Vector<CaseIndex>)ExtUtil.read(in, new ExtWrapList(CaseIndex.class));
-        data = (Hashtable)ExtUtil.read(in, new ExtWrapMapPoly(String.class, true), pf);
+        //Handles both the current and legacy record formats
+        CaseRecordFormat.read(this, in, pf);
     }
 
     /* (non-Javadoc)
      * @see org.javarosa.core.util.externalizable.Externalizable#writeExternal(java.io.DataOutputStream)
      */
     public void writeExternal(DataOutputStream out) throws IOException {
-        ExtUtil.writeString(out, typeId);
-        ExtUtil.writeString(out, ExtUtil.emptyIfNull(id));
-        ExtUtil.writeString(out, ExtUtil.emptyIfNull(name));
-        ExtUtil.writeBool(out, closed);
-        ExtUtil.write(out, new ExtWrapNullable(dateOpened));
-        ExtUtil.writeNumeric(out, recordId);
-        ExtUtil.write(out, new ExtWrapList(indices));
-        ExtUtil.write(out, new ExtWrapMapPoly(data));
+        CaseRecordFormat.write(this, out);
     }
 
     public void setProperty(String key, Object value) {
@@ -249,6 +239,10 @@ public class Case implements Persistable, IMetaData, Secure {
             return typeId;
         } else if (fieldName.equals(INDEX_CASE_STATUS)) {
             return closed ? "closed" : "open";
+        } else if (fieldName.startsWith(INDEX_CASE_PROPERTY_PRE)) {
+            String property = fieldName.substring(INDEX_CASE_PROPERTY_PRE.length());
+            //Indices can't hold nulls, so missing properties are indexed as blank
+            return getProperty(property) == null ? "" : getPropertyString(property);
         } else if (fieldName.startsWith(INDEX_CASE_INDEX_PRE)) {
             String name = fieldName.substring(fieldName.lastIndexOf('-') + 1, fieldName.length());
 
@@ -264,7 +258,60 @@ public class Case implements Persistable, IMetaData, Secure {
     }
 
     public String[] getMetaDataFields() {
-        return new String[]{INDEX_CASE_ID, INDEX_CASE_TYPE, INDEX_CASE_STATUS};
+        String[] properties = indexedProperties;
+        String[] fields = new String[3 + properties.length];
+        fields[0] = INDEX_CASE_ID;
+        fields[1] = INDEX_CASE_TYPE;
+        fields[2] = INDEX_CASE_STATUS;
+        for (int i = 0; i < properties.length; ++i) {
+            fields[3 + i] = INDEX_CASE_PROPERTY_PRE + properties[i];
+        }
+        return fields;
+    }
+
+    /**
+     * Declares that a case property should be indexed in case storage, so
+     * lookups on its value don't need to read every case. The index is
+     * keyed by INDEX_CASE_PROPERTY_PRE + the property name.
+     *
+     * Indexed storage only maintains indices which have been registered
+     * with it, so storage which should serve these lookups needs to call
+     * registerIndex() for each of the getIndexedPropertyKeys().
+     *
+     * @param property The name of the case property
+     */
+    public static synchronized void registerIndexedProperty(String property) {
+        for (int i = 0; i < indexedProperties.length; ++i) {
+            if (indexedProperties[i].equals(property)) {
+                return;
+            }
+        }
+        //Copy on write, so readers never need to lock
+        String[] properties = new String[indexedProperties.length + 1];
+        System.arraycopy(indexedProperties, 0, properties, 0, indexedProperties.length);
+        properties[indexedProperties.length] = property;
+        indexedProperties = properties;
+    }
+
+    /**
+     * @return The names of the case properties which have been declared as
+     * indexed.
+     */
+    public static String[] getIndexedProperties() {
+        return indexedProperties;
+    }
+
+    /**
+     * @return The storage index keys of the case properties which have been
+     * declared as indexed.
+     */
+    public static String[] getIndexedPropertyKeys() {
+        String[] properties = indexedProperties;
+        String[] keys = new String[properties.length];
+        for (int i = 0; i < properties.length; ++i) {
+            keys[i] = INDEX_CASE_PROPERTY_PRE + properties[i];
+        }
+        return keys;
     }
 
     /**
@@ -0,0 +1,381 @@
+/**
+ *
+ */
+package org.commcare.cases.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtility;
+import org.javarosa.core.services.storage.StorageFullException;
+import org.javarosa.core.util.OrderedHashtable;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapList;
+import org.javarosa.core.util.externalizable.ExtWrapMapPoly;
+import org.javarosa.core.util.externalizable.ExtWrapNullable;
+import org.javarosa.core.util.externalizable.ExtWrapTagged;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+
+/**
+ * The serialized form of a Case.
+ *
+ * Records start with a marker and a format version, followed by a table of
+ * the offsets of each field in the record. Properties are stored as a
+ * directory of (key, offset) pairs followed by the values, so a single
+ * field or property can be read out of a record's bytes without decoding
+ * the rest of it.
+ *
+ * Property keys are read with ExtUtil.readString(), which interns them when
+ * the app has attached a string cache, so the keys shared by every case are
+ * only held in memory once.
+ *
+ * Records written before this format existed (which start directly with
+ * the case type) are still read. They're migrated to the current format
+ * the next time they're written, or all at once with migrate().
+ */
+public class CaseRecordFormat {
+
+    /**
+     * Written where legacy records have the length of the case type, which
+     * can never be this long.
+     */
+    private static final int MARKER = 0xFFFF;
+
+    public static final int VERSION = 1;
+
+    public static final int FIELD_TYPE_ID = 0;
+    public static final int FIELD_CASE_ID = 1;
+    public static final int FIELD_NAME = 2;
+    public static final int FIELD_CLOSED = 3;
+    public static final int FIELD_DATE_OPENED = 4;
+    public static final int FIELD_RECORD_ID = 5;
+    public static final int FIELD_INDICES = 6;
+    public static final int FIELD_PROPERTIES = 7;
+
+    private static final int FIELD_COUNT = 8;
+
+    //marker (2) + version (1) + offset table
+    private static final int HEADER_SIZE = 3 + 4 * FIELD_COUNT;
+
+    public static void write(Case c, DataOutputStream out) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        int[] offsets = new int[FIELD_COUNT];
+
+        offsets[FIELD_TYPE_ID] = bodyOut.size();
+        ExtUtil.writeString(bodyOut, c.typeId);
+        offsets[FIELD_CASE_ID] = bodyOut.size();
+        ExtUtil.writeString(bodyOut, ExtUtil.emptyIfNull(c.id));
+        offsets[FIELD_NAME] = bodyOut.size();
+        ExtUtil.writeString(bodyOut, ExtUtil.emptyIfNull(c.name));
+        offsets[FIELD_CLOSED] = bodyOut.size();
+        ExtUtil.writeBool(bodyOut, c.closed);
+        offsets[FIELD_DATE_OPENED] = bodyOut.size();
+        ExtUtil.write(bodyOut, new ExtWrapNullable(c.dateOpened));
+        offsets[FIELD_RECORD_ID] = bodyOut.size();
+        ExtUtil.writeNumeric(bodyOut, c.recordId);
+        offsets[FIELD_INDICES] = bodyOut.size();
+        ExtUtil.write(bodyOut, new ExtWrapList(c.indices));
+        offsets[FIELD_PROPERTIES] = bodyOut.size();
+        writeProperties(c.data, bodyOut);
+
+        out.writeShort(MARKER);
+        out.writeByte(VERSION);
+        for (int i = 0; i < FIELD_COUNT; ++i) {
+            out.writeInt(offsets[i]);
+        }
+        out.write(body.toByteArray());
+    }
+
+    private static void writeProperties(Hashtable data, DataOutputStream out) throws IOException {
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        DataOutputStream valuesOut = new DataOutputStream(values);
+
+        out.writeInt(data.size());
+        for (Enumeration en = data.keys(); en.hasMoreElements(); ) {
+            String key = (String)en.nextElement();
+            ExtUtil.writeString(out, key);
+            out.writeInt(valuesOut.size());
+            ExtUtil.write(valuesOut, new ExtWrapTagged(data.get(key)));
+        }
+        out.write(values.toByteArray());
+    }
+
+    /**
+     * Reads a full case from either the current or the legacy format.
+     */
+    public static void read(Case c, DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        //Legacy records start with the (short) length of the case type
+        int first = in.readUnsignedShort();
+        if (first != MARKER) {
+            readLegacy(c, first, in, pf);
+            return;
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new DeserializationException("Unknown case record version " + version);
+        }
+        //The fields are in order, so a full read doesn't need the offsets
+        skipFully(in, 4 * FIELD_COUNT);
+
+        c.typeId = ExtUtil.readString(in);
+        c.id = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
+        c.name = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
+        c.closed = ExtUtil.readBool(in);
+        c.dateOpened = (Date)ExtUtil.read(in, new ExtWrapNullable(Date.class), pf);
+        c.recordId = ExtUtil.readInt(in);
+        c.indices = (Vector<CaseIndex>)ExtUtil.read(in, new ExtWrapList(CaseIndex.class), pf);
+
+        int count = in.readInt();
+        String[] keys = new String[count];
+        for (int i = 0; i < count; ++i) {
+            keys[i] = ExtUtil.readString(in);
+            in.readInt();
+        }
+        //Legacy records read their properties into an ordered table, so
+        //they're enumerated in the order they were written
+        Hashtable data = new OrderedHashtable();
+        for (int i = 0; i < count; ++i) {
+            data.put(keys[i], ExtUtil.read(in, new ExtWrapTagged(), pf));
+        }
+        c.data = data;
+    }
+
+    /**
+     * Skips exactly the provided number of bytes. InputStream.skip() is free
+     * to skip fewer than it's asked to, even before the end of the stream.
+     *
+     * @throws EOFException If the stream ends first
+     */
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                //Either the end of the stream, or a stream which won't skip
+                //right now. Reading tells the two apart.
+                if (in.read() == -1) {
+                    throw new EOFException("Case record ended " + count + " bytes early");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void readLegacy(Case c, int typeLength, DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        //We've already consumed the length of the type string
+        byte[] utf = new byte[typeLength + 2];
+        utf[0] = (byte)(typeLength >> 8);
+        utf[1] = (byte)typeLength;
+        in.readFully(utf, 2, typeLength);
+        c.typeId = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+
+        c.id = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
+        c.name = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
+        c.closed = ExtUtil.readBool(in);
+        c.dateOpened = (Date)ExtUtil.read(in, new ExtWrapNullable(Date.class), pf);
+        c.recordId = ExtUtil.readInt(in);
+        c.indices = (Vector<CaseIndex>)ExtUtil.read(in, new ExtWrapList(CaseIndex.class));
+        c.data = (Hashtable)ExtUtil.read(in, new ExtWrapMapPoly(String.class, true), pf);
+    }
+
+    /**
+     * @return True if the provided record bytes are in the current format
+     * (and so support single field reads)
+     */
+    public static boolean isCurrentFormat(byte[] record) {
+        return record.length >= HEADER_SIZE && ((record[0] & 0xFF) << 8 | (record[1] & 0xFF)) == MARKER && record[2] == VERSION;
+    }
+
+    private static DataInputStream openField(byte[] record, int field) throws IOException {
+        if (!isCurrentFormat(record)) {
+            throw new IOException("Case record isn't in the current format");
+        }
+        int pos = 3 + 4 * field;
+        int offset = (record[pos] & 0xFF) << 24 | (record[pos + 1] & 0xFF) << 16 | (record[pos + 2] & 0xFF) << 8 | (record[pos + 3] & 0xFF);
+        return new DataInputStream(new ByteArrayInputStream(record, HEADER_SIZE + offset, record.length - HEADER_SIZE - offset));
+    }
+
+    /**
+     * Reads a single field from a case record's bytes without decoding the
+     * rest of the record.
+     *
+     * @param field One of the FIELD_ constants, other than FIELD_PROPERTIES
+     * @throws IOException If the record isn't in the current format
+     */
+    public static Object readField(byte[] record, int field, PrototypeFactory pf) throws IOException, DeserializationException {
+        DataInputStream in = openField(record, field);
+        switch (field) {
+            case FIELD_TYPE_ID:
+                return ExtUtil.readString(in);
+            case FIELD_CASE_ID:
+            case FIELD_NAME:
+                return ExtUtil.nullIfEmpty(ExtUtil.readString(in));
+            case FIELD_CLOSED:
+                return new Boolean(ExtUtil.readBool(in));
+            case FIELD_DATE_OPENED:
+                return ExtUtil.read(in, new ExtWrapNullable(Date.class), pf);
+            case FIELD_RECORD_ID:
+                return new Integer(ExtUtil.readInt(in));
+            case FIELD_INDICES:
+                return ExtUtil.read(in, new ExtWrapList(CaseIndex.class), pf);
+            default:
+                throw new IllegalArgumentException("Can't read field " + field + " on its own");
+        }
+    }
+
+    /**
+     * Reads a single property from a case record's bytes, decoding only
+     * that property's value.
+     *
+     * @return The value of the property, or null if the case doesn't have it
+     * @throws IOException If the record isn't in the current format
+     */
+    public static Object readProperty(byte[] record, String key, PrototypeFactory pf) throws IOException, DeserializationException {
+        Hashtable<String, String> keys = new Hashtable<String, String>();
+        keys.put(key, key);
+        return readProperties(record, keys, pf).get(key);
+    }
+
+    /**
+     * Reads the case id of a case in storage, without decoding the rest of
+     * its record if it's in the current format.
+     */
+    public static String readCaseId(IStorageUtility storage, int recordId) {
+        byte[] record = storage.readBytes(recordId);
+        if (isCurrentFormat(record)) {
+            try {
+                return (String)readField(record, FIELD_CASE_ID, ExtUtil.defaultPrototypes());
+            } catch (IOException e) {
+                //Fall through to a full read
+            } catch (DeserializationException e) {
+                //Fall through to a full read
+            }
+        }
+        return ((Case)storage.read(recordId)).getCaseId();
+    }
+
+    /**
+     * Reads the provided properties from a case record's bytes, decoding
+     * only those properties' values.
+     *
+     * @param keys The properties to read (as the keys of the table)
+     * @return The properties which the case has
+     * @throws IOException If the record isn't in the current format
+     */
+    public static Hashtable readProperties(byte[] record, Hashtable<String, String> keys, PrototypeFactory pf) throws IOException, DeserializationException {
+        DataInputStream in = openField(record, FIELD_PROPERTIES);
+        int count = in.readInt();
+
+        //Find the values we want in the directory
+        String[] wanted = new String[count];
+        int[] offsets = new int[count];
+        int found = 0;
+        for (int i = 0; i < count; ++i) {
+            String key = ExtUtil.readString(in);
+            int offset = in.readInt();
+            if (keys.containsKey(key)) {
+                wanted[found] = key;
+                offsets[found] = offset;
+                found++;
+            }
+        }
+
+        //Values start right after the directory, and are in ascending order
+        Hashtable values = new OrderedHashtable();
+        int position = 0;
+        for (int i = 0; i < found; ++i) {
+            skipFully(in, offsets[i] - position);
+            ByteCountingInput counted = new ByteCountingInput(in);
+            values.put(wanted[i], ExtUtil.read(new DataInputStream(counted), new ExtWrapTagged(), pf));
+            position = offsets[i] + counted.count;
+        }
+        return values;
+    }
+
+    /**
+     * Reads a case's fixed fields, and only the provided properties, from
+     * its record's bytes. The result is for reading only, it should never be
+     * written back to storage.
+     *
+     * @param keys          The properties to read, or null to read all of them
+     * @param includeIndices Whether to decode the case's indices
+     * @throws IOException If the record isn't in the current format
+     */
+    public static Case readPartial(byte[] record, Hashtable<String, String> keys, boolean includeIndices, PrototypeFactory pf) throws IOException, DeserializationException {
+        Case c = new Case();
+        if (keys == null) {
+            read(c, new DataInputStream(new ByteArrayInputStream(record)), pf);
+            return c;
+        }
+        DataInputStream in = openField(record, FIELD_TYPE_ID);
+        c.typeId = ExtUtil.readString(in);
+        c.id = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
+        c.name = ExtUtil.nullIfEmpty(ExtUtil.readString(in));
+        c.closed = ExtUtil.readBool(in);
+        c.dateOpened = (Date)ExtUtil.read(in, new ExtWrapNullable(Date.class), pf);
+        c.recordId = ExtUtil.readInt(in);
+        if (includeIndices) {
+            c.indices = (Vector<CaseIndex>)ExtUtil.read(in, new ExtWrapList(CaseIndex.class), pf);
+        }
+        c.data = readProperties(record, keys, pf);
+        return c;
+    }
+
+    /**
+     * Rewrites every case in the provided storage which is still in the
+     * legacy format.
+     *
+     * @return The number of cases migrated
+     */
+    public static int migrate(IStorageUtility storage) throws StorageFullException {
+        int migrated = 0;
+        for (IStorageIterator i = storage.iterate(); i.hasMore(); ) {
+            int id = i.nextID();
+            if (!isCurrentFormat(storage.readBytes(id))) {
+                storage.write((Case)storage.read(id));
+                migrated++;
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Counts the bytes read through it, so we know where a value ended
+     */
+    private static class ByteCountingInput extends InputStream {
+        private final InputStream in;
+        int count;
+
+        ByteCountingInput(InputStream in) {
+            this.in = in;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+/**
+ * A fixed size Bloom filter over strings. Answers whether a string might
+ * have been added (with a small chance of false positives, about 1% when
+ * sized for the number of strings added) or definitely hasn't been.
+ */
+public class BloomFilter {
+
+    private static final int BITS_PER_ELEMENT = 10;
+    private static final int HASHES = 7;
+
+    private final int[] bits;
+    private final int numBits;
+
+    /**
+     * @param expectedElements The number of strings expected to be added
+     */
+    public BloomFilter(int expectedElements) {
+        numBits = Math.max(64, expectedElements * BITS_PER_ELEMENT);
+        bits = new int[(numBits + 31) / 32];
+    }
+
+    public void add(String s) {
+        int h1 = s.hashCode();
+        int h2 = secondHash(s);
+        for (int i = 0; i < HASHES; ++i) {
+            int bit = index(h1 + i * h2);
+            bits[bit >>> 5] |= 1 << (bit & 31);
+        }
+    }
+
+    /**
+     * @return False if the string was definitely never added, true if it
+     * may have been.
+     */
+    public boolean mightContain(String s) {
+        int h1 = s.hashCode();
+        int h2 = secondHash(s);
+        for (int i = 0; i < HASHES; ++i) {
+            int bit = index(h1 + i * h2);
+            if ((bits[bit >>> 5] & (1 << (bit & 31))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int index(int hash) {
+        return (hash & 0x7FFFFFFF) % numBits;
+    }
+
+    //FNV-1a, which is independent enough of String.hashCode() for this
+    private static int secondHash(String s) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < s.length(); ++i) {
+            hash ^= s.charAt(i);
+            hash *= 0x01000193;
+        }
+        //Never zero, so the probes aren't all the same bit
+        return hash | 1;
+    }
+}
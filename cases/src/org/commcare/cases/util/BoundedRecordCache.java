@@ -0,0 +1,187 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import java.util.Hashtable;
+
+import org.javarosa.core.util.DataUtil;
+
+/**
+ * A least-recently-used cache of objects keyed by storage record id, which
+ * holds at most a fixed number of entries.
+ *
+ * Unlike an Interner, which keeps everything that was ever registered, this
+ * cache evicts the least recently retrieved entry once it is full, so callers
+ * need to be able to rebuild anything which isn't returned from retrieve().
+ *
+ * Keeps hit/miss/eviction counts so the budget can be tuned against real
+ * workloads.
+ */
+public class BoundedRecordCache<T> {
+
+    private static class Entry<T> {
+        int recordId;
+        T value;
+        Entry<T> newer;
+        Entry<T> older;
+    }
+
+    private final Hashtable<Integer, Entry<T>> entries = new Hashtable<Integer, Entry<T>>();
+
+    //Sentinel for the recency list. head.older is the most recently used
+    //entry, head.newer is the least recently used one.
+    private final Entry<T> head = new Entry<T>();
+
+    private int maxEntries;
+
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    /**
+     * @param maxEntries The maximum number of records to keep in the cache.
+     */
+    public BoundedRecordCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Record cache must be able to hold at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        head.newer = head;
+        head.older = head;
+    }
+
+    /**
+     * Retrieves the cached value for a record, marking it as recently used.
+     *
+     * @return The cached value, or null if the record isn't in the cache
+     */
+    public synchronized T retrieve(int recordId) {
+        Entry<T> entry = entries.get(DataUtil.integer(recordId));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        unlink(entry);
+        linkAsNewest(entry);
+        return entry.value;
+    }
+
+    /**
+     * Retrieves the cached value for a record without marking it as recently
+     * used or counting the lookup in the cache statistics.
+     *
+     * @return The cached value, or null if the record isn't in the cache
+     */
+    public synchronized T peek(int recordId) {
+        Entry<T> entry = entries.get(DataUtil.integer(recordId));
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * @return True if the record is currently cached. Does not affect the
+     * recency of the record or the cache statistics.
+     */
+    public synchronized boolean isCached(int recordId) {
+        return entries.containsKey(DataUtil.integer(recordId));
+    }
+
+    /**
+     * Caches the value for the provided record, evicting the least recently
+     * used entry if the cache is full.
+     */
+    public synchronized void register(int recordId, T value) {
+        Integer key = DataUtil.integer(recordId);
+        Entry<T> entry = entries.get(key);
+        if (entry != null) {
+            entry.value = value;
+            unlink(entry);
+            linkAsNewest(entry);
+            return;
+        }
+        entry = new Entry<T>();
+        entry.recordId = recordId;
+        entry.value = value;
+        entries.put(key, entry);
+        linkAsNewest(entry);
+        trim();
+    }
+
+    /**
+     * Removes the provided record from the cache, if it is present.
+     */
+    public synchronized void remove(int recordId) {
+        Entry<T> entry = entries.remove(DataUtil.integer(recordId));
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Changes the maximum number of entries in the cache, evicting entries
+     * immediately if the cache currently holds more than that.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Record cache must be able to hold at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        trim();
+    }
+
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        head.newer = head;
+        head.older = head;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    private void trim() {
+        while (entries.size() > maxEntries) {
+            Entry<T> eldest = head.newer;
+            unlink(eldest);
+            entries.remove(DataUtil.integer(eldest.recordId));
+            evictions++;
+        }
+    }
+
+    private void unlink(Entry<T> entry) {
+        entry.newer.older = entry.older;
+        entry.older.newer = entry.newer;
+        entry.newer = null;
+        entry.older = null;
+    }
+
+    private void linkAsNewest(Entry<T> entry) {
+        entry.older = head.older;
+        entry.newer = head;
+        head.older.newer = entry;
+        head.older = entry;
+    }
+}
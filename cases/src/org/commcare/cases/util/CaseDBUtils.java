@@ -4,34 +4,27 @@
 package org.commcare.cases.util;
 
 import org.commcare.cases.model.Case;
-import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtility;
-import org.javarosa.core.util.MD5;
 
 /**
  * @author ctsims
  */
 public class CaseDBUtils {
+    /**
+     * @return The state hash of the cases in the provided storage. Uses the
+     * running hash kept by CaseStateHash, so this only reads every case the
+     * first time it's called for a storage without a persisted hash.
+     */
     public static String computeHash(IStorageUtility<Case> storage) {
-        byte[] data = new byte[MD5.length];
-        for (int i = 0; i < data.length; ++i) {
-            data[i] = 0;
-        }
-        boolean casesExist = false;
-        for (IStorageIterator<Case> i = storage.iterate(); i.hasMore(); ) {
-            Case c = i.nextRecord();
-            String record = c.getCaseId();
-            byte[] current = MD5.hash(record.getBytes());
-            data = xordata(data, current);
-            casesExist = true;
-        }
+        return CaseStateHash.getHash(storage).getValue();
+    }
 
-        //In the base case (with no cases), the case hash is empty
-        if (!casesExist) {
-            return "";
-        }
-        String ret = MD5.toHex(data);
-        return ret;
+    /**
+     * Computes the state hash by reading every case in storage. Expensive,
+     * this is for verifying the running hash.
+     */
+    public static String recomputeHash(IStorageUtility<Case> storage) {
+        return CaseStateHash.compute(storage).getValue();
     }
 
     public static byte[] xordata(byte[] one, byte[] two) {
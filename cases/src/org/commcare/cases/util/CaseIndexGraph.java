@@ -0,0 +1,341 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseIndex;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtility;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.util.DataUtil;
+
+/**
+ * An in-memory graph of the indices between cases in case storage, which
+ * can answer "which cases index this one" and "what does this case index"
+ * in time proportional to the number of edges involved, rather than with a
+ * storage lookup per hop.
+ *
+ * Every case id seen (whether as a case in storage, or as the target of an
+ * index) is assigned a dense integer node id, and the edges are kept as
+ * integer adjacency lists in both directions. Edges are grouped both by
+ * the name of the index (parent, host, ...) and by its relationship
+ * (child, extension).
+ *
+ * The graph is built from storage the first time it's requested, and
+ * after that is kept up to date by the code which writes cases calling
+ * caseWritten(). Anything which removes cases from storage needs to call
+ * invalidate(), which causes the graph to be rebuilt on next use.
+ */
+public class CaseIndexGraph {
+
+    private static CaseIndexGraph graph;
+    private static IStorageUtilityIndexed graphStorage;
+
+    /**
+     * Adjacency lists for one group of edges, in both directions
+     */
+    private static class EdgeSet {
+        int[][] out = new int[16][];
+        int[] outDegree = new int[16];
+        int[][] in = new int[16][];
+        int[] inDegree = new int[16];
+
+        void add(int source, int target) {
+            ensureNode(Math.max(source, target));
+            out[source] = append(out[source], outDegree[source]++, target);
+            in[target] = append(in[target], inDegree[target]++, source);
+        }
+
+        /**
+         * Removes all of the outgoing edges from the provided node
+         */
+        void removeOutgoing(int source) {
+            if (source >= out.length) {
+                return;
+            }
+            for (int i = 0; i < outDegree[source]; ++i) {
+                int target = out[source][i];
+                //Swap the source's entry out of the target's list
+                int[] sources = in[target];
+                for (int j = 0; j < inDegree[target]; ++j) {
+                    if (sources[j] == source) {
+                        sources[j] = sources[--inDegree[target]];
+                        break;
+                    }
+                }
+            }
+            outDegree[source] = 0;
+        }
+
+        int[] getOut(int node) {
+            return node < out.length ? copy(out[node], outDegree[node]) : new int[0];
+        }
+
+        int[] getIn(int node) {
+            return node < in.length ? copy(in[node], inDegree[node]) : new int[0];
+        }
+
+        int getInDegree(int node) {
+            return node < in.length ? inDegree[node] : 0;
+        }
+
+        private void ensureNode(int node) {
+            if (node < out.length) {
+                return;
+            }
+            int size = out.length;
+            while (size <= node) {
+                size *= 2;
+            }
+            out = grow(out, size);
+            in = grow(in, size);
+            outDegree = grow(outDegree, size);
+            inDegree = grow(inDegree, size);
+        }
+    }
+
+    //Case id <-> node id
+    private Hashtable<String, Integer> nodeIds = new Hashtable<String, Integer>();
+    private String[] caseIds = new String[16];
+
+    //The storage record for each node's case, or -1 if it isn't in storage
+    private int[] nodeRecords = new int[16];
+    private int nodeCount;
+
+    private Hashtable<String, EdgeSet> byName = new Hashtable<String, EdgeSet>();
+    private Hashtable<String, EdgeSet> byRelationship = new Hashtable<String, EdgeSet>();
+
+    /**
+     * Gets the index graph for the provided case storage, building it if
+     * it hasn't been built yet.
+     */
+    public static synchronized CaseIndexGraph getGraph(IStorageUtilityIndexed storage) {
+        if (graph == null || graphStorage != storage) {
+            CaseIndexGraph built = new CaseIndexGraph();
+            for (IStorageIterator i = storage.iterate(); i.hasMore(); ) {
+                built.update((Case)i.nextRecord());
+            }
+            graph = built;
+            graphStorage = storage;
+        }
+        return graph;
+    }
+
+    /**
+     * Updates the index graph for the provided storage (if one has been
+     * built) with a case that was just written to it.
+     */
+    public static synchronized void caseWritten(IStorageUtility storage, Case c) {
+        if (graph != null && graphStorage == storage) {
+            graph.update(c);
+        }
+    }
+
+    /**
+     * Discards any graph which has been built, so the next request will
+     * rebuild it from storage.
+     */
+    public static synchronized void invalidate() {
+        graph = null;
+        graphStorage = null;
+    }
+
+    /**
+     * Replaces all of the edges out of the provided case with its current
+     * indices.
+     */
+    public synchronized void update(Case c) {
+        int node = getOrCreateNode(c.getCaseId());
+        nodeRecords[node] = c.getID();
+
+        for (Enumeration en = byName.elements(); en.hasMoreElements(); ) {
+            ((EdgeSet)en.nextElement()).removeOutgoing(node);
+        }
+        for (Enumeration en = byRelationship.elements(); en.hasMoreElements(); ) {
+            ((EdgeSet)en.nextElement()).removeOutgoing(node);
+        }
+
+        Vector<CaseIndex> indices = c.getIndices();
+        for (int i = 0; i < indices.size(); ++i) {
+            CaseIndex index = indices.elementAt(i);
+            int target = getOrCreateNode(index.getTarget());
+            getEdges(byName, index.getName()).add(node, target);
+            getEdges(byRelationship, index.getRelationship()).add(node, target);
+        }
+    }
+
+    /**
+     * @return The storage record id of the case with the provided id, or -1
+     * if there is no such case in storage.
+     */
+    public synchronized int getRecordId(String caseId) {
+        Integer node = nodeIds.get(caseId);
+        return node == null ? -1 : nodeRecords[node.intValue()];
+    }
+
+    /**
+     * @return The records of the cases which have an index with the provided
+     * name pointing at the provided case.
+     */
+    public synchronized RecordBitmap getIndexingRecords(String indexName, String targetCaseId) {
+        return toRecords(getIndexing(byName, indexName, targetCaseId));
+    }
+
+    /**
+     * @return The records of the cases which have an index of the provided
+     * relationship pointing at the provided case (IE: the case's children or
+     * extensions).
+     */
+    public synchronized RecordBitmap getRelatedRecords(String relationship, String targetCaseId) {
+        return toRecords(getIndexing(byRelationship, relationship, targetCaseId));
+    }
+
+    /**
+     * @return The number of cases with an index of the provided name
+     * pointing at the provided case.
+     */
+    public synchronized int countIndexing(String indexName, String targetCaseId) {
+        EdgeSet edges = byName.get(indexName);
+        Integer node = nodeIds.get(targetCaseId);
+        if (edges == null || node == null) {
+            return 0;
+        }
+        return edges.getInDegree(node.intValue());
+    }
+
+    /**
+     * @return The case id that the provided case's index of the provided name
+     * points to, or null if it has no such index.
+     */
+    public synchronized String getTarget(String caseId, String indexName) {
+        EdgeSet edges = byName.get(indexName);
+        Integer node = nodeIds.get(caseId);
+        if (edges == null || node == null) {
+            return null;
+        }
+        int[] targets = edges.getOut(node.intValue());
+        return targets.length == 0 ? null : caseIds[targets[0]];
+    }
+
+    /**
+     * @return The records of the other cases which share the provided case's
+     * index of the provided name (IE: its siblings).
+     */
+    public synchronized RecordBitmap getSiblingRecords(String caseId, String indexName) {
+        String target = getTarget(caseId, indexName);
+        if (target == null) {
+            return new RecordBitmap();
+        }
+        RecordBitmap siblings = getIndexingRecords(indexName, target);
+        int self = getRecordId(caseId);
+        if (self == -1) {
+            return siblings;
+        }
+        RecordBitmap selfSet = new RecordBitmap();
+        selfSet.add(self);
+        return siblings.andNot(selfSet);
+    }
+
+    /**
+     * Follows the index of the provided name up from the provided case.
+     *
+     * @return The case ids of the case's ancestors, nearest first. Stops at
+     * the first case without the index, or if the index loops.
+     */
+    public synchronized Vector<String> getAncestors(String caseId, String indexName) {
+        Vector<String> ancestors = new Vector<String>();
+        Hashtable<String, String> seen = new Hashtable<String, String>();
+        seen.put(caseId, caseId);
+        String current = getTarget(caseId, indexName);
+        while (current != null && !seen.containsKey(current)) {
+            ancestors.addElement(current);
+            seen.put(current, current);
+            current = getTarget(current, indexName);
+        }
+        return ancestors;
+    }
+
+    private int[] getIndexing(Hashtable<String, EdgeSet> group, String key, String targetCaseId) {
+        EdgeSet edges = group.get(key);
+        Integer node = nodeIds.get(targetCaseId);
+        if (edges == null || node == null) {
+            return new int[0];
+        }
+        return edges.getIn(node.intValue());
+    }
+
+    private RecordBitmap toRecords(int[] nodes) {
+        RecordBitmap records = new RecordBitmap();
+        for (int i = 0; i < nodes.length; ++i) {
+            int record = nodeRecords[nodes[i]];
+            if (record != -1) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private EdgeSet getEdges(Hashtable<String, EdgeSet> group, String key) {
+        EdgeSet edges = group.get(key);
+        if (edges == null) {
+            edges = new EdgeSet();
+            group.put(key, edges);
+        }
+        return edges;
+    }
+
+    private int getOrCreateNode(String caseId) {
+        Integer existing = nodeIds.get(caseId);
+        if (existing != null) {
+            return existing.intValue();
+        }
+        int node = nodeCount++;
+        if (node == caseIds.length) {
+            String[] grownIds = new String[node * 2];
+            System.arraycopy(caseIds, 0, grownIds, 0, node);
+            caseIds = grownIds;
+            nodeRecords = grow(nodeRecords, node * 2);
+        }
+        caseIds[node] = caseId;
+        nodeRecords[node] = -1;
+        nodeIds.put(caseId, DataUtil.integer(node));
+        return node;
+    }
+
+    private static int[] append(int[] list, int count, int value) {
+        if (list == null) {
+            list = new int[2];
+        } else if (count == list.length) {
+            int[] grown = new int[count * 2];
+            System.arraycopy(list, 0, grown, 0, count);
+            list = grown;
+        }
+        list[count] = value;
+        return list;
+    }
+
+    private static int[] copy(int[] list, int count) {
+        int[] ret = new int[count];
+        if (count > 0) {
+            System.arraycopy(list, 0, ret, 0, count);
+        }
+        return ret;
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] grown = new int[size];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static int[][] grow(int[][] array, int size) {
+        int[][] grown = new int[size][];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
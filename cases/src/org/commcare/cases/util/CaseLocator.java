@@ -0,0 +1,103 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import java.util.Hashtable;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseRecordFormat;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.util.DataUtil;
+
+/**
+ * Tracks where cases are in storage over the course of a restore: the
+ * record id of every case read or written during it, and a Bloom filter of
+ * the case ids which were in storage before it started.
+ *
+ * Filling the filter means reading the id of every case in storage, which
+ * is only worth doing when nearly every case in the restore will be new to
+ * storage. Otherwise the filter is only kept if storage starts out empty
+ * (when it's free), and every case not seen yet might be in storage.
+ *
+ * One locator can be shared by several CaseWriteCaches which are filling
+ * the same storage at once (IE: when ingesting a sharded restore), so that
+ * cases written by one are found by id by the others.
+ */
+public class CaseLocator {
+
+    private final IStorageUtilityIndexed<Case> storage;
+
+    //case id -> record id
+    private final Hashtable<String, Integer> recordIds = new Hashtable<String, Integer>();
+
+    //Whether to read the ids of the cases in storage, if there are any
+    private final boolean scanExisting;
+
+    //The ids of the cases in storage when the locator was seeded, or null if
+    //they weren't read
+    private BloomFilter existingIds;
+    private boolean seeded;
+
+    public CaseLocator(IStorageUtilityIndexed<Case> storage) {
+        this(storage, false);
+    }
+
+    /**
+     * @param scanExisting Whether to read the ids of the cases already in
+     *                     storage when seeded, IE: for an initial or recovery
+     *                     restore, where few of the restored cases will be
+     *                     found in storage
+     */
+    public CaseLocator(IStorageUtilityIndexed<Case> storage, boolean scanExisting) {
+        this.storage = storage;
+        this.scanExisting = scanExisting;
+    }
+
+    /**
+     * Notes which cases are currently in storage, if that hasn't been done
+     * yet. This happens on first use otherwise, but should be done up front
+     * if several threads are going to be writing to storage.
+     */
+    public synchronized void seed() {
+        if (seeded) {
+            return;
+        }
+        seeded = true;
+        int count = storage.getNumRecords();
+        if (count == 0 || scanExisting) {
+            existingIds = new BloomFilter(count);
+            for (IStorageIterator i = storage.iterate(); i.hasMore(); ) {
+                String caseId = CaseRecordFormat.readCaseId(storage, i.nextID());
+                if (caseId != null) {
+                    existingIds.add(caseId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The record id of the case, or -1 if it hasn't been seen
+     */
+    public int getRecordId(String caseId) {
+        Integer recordId = recordIds.get(caseId);
+        return recordId == null ? -1 : recordId.intValue();
+    }
+
+    /**
+     * Notes where a case is in storage.
+     */
+    public void setRecordId(String caseId, int recordId) {
+        recordIds.put(caseId, DataUtil.integer(recordId));
+    }
+
+    /**
+     * @return False if the case definitely wasn't in storage when the
+     * locator was seeded, true if it might have been.
+     */
+    public boolean mightExist(String caseId) {
+        seed();
+        return existingIds == null || existingIds.mightContain(caseId);
+    }
+}
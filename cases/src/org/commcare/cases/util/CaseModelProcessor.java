@@ -136,7 +136,9 @@ public class CaseModelProcessor implements ICaseModelProcessor {
     private void commit(Case c, Date lastModified) {
         IStorageUtility utility = StorageManager.getStorage(Case.STORAGE_KEY);
         try {
+            boolean added = c.getID() == -1;
             utility.write(c);
+            CaseStorageHooks.written(utility, c, added);
         } catch (StorageFullException e) {
             e.printStackTrace();
             throw new RuntimeException("Uh oh! Case Storage Full!");
@@ -3,9 +3,7 @@
  */
 package org.commcare.cases.util;
 
-import java.util.Enumeration;
 import java.util.Hashtable;
-import java.util.Stack;
 import java.util.Vector;
 
 import org.commcare.cases.model.Case;
@@ -13,8 +11,6 @@ import org.commcare.cases.model.CaseIndex;
 import org.javarosa.core.services.storage.EntityFilter;
 import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
-import org.javarosa.core.util.DAG;
-import org.javarosa.core.util.DAG.Edge;
 import org.javarosa.core.util.DataUtil;
 
 /**
@@ -23,23 +19,37 @@ import org.javarosa.core.util.DataUtil;
 public class CasePurgeFilter extends EntityFilter<Case> {
 
     /**
-     * Open and owned by someone on the phone
+     * Not in storage, only known as the target of an index
      */
-    private static final String STATUS_LIVE = "L";
+    private static final byte STATUS_MISSING = 0;
     /**
-     * Purgable *
+     * Open and owned by someone on the phone
      */
-    private static final String STATUS_DEAD = "D";
+    private static final byte STATUS_LIVE = 1;
     /**
-     * Closed or not owned (NOTE: No longer used) *
+     * Purgable *
      */
-    private static final String STATUS_CLOSED = "C";
+    private static final byte STATUS_DEAD = 2;
     /**
      * Not currently alive, and dependent on another case *
      */
-    private static final String STATUS_ABANDONED = "A";
+    private static final byte STATUS_ABANDONED = 3;
 
-    Vector<Integer> idsToRemove = new Vector<Integer>();
+    RecordBitmap idsToRemove = new RecordBitmap();
+    Vector<String> caseIdsToRemove = new Vector<String>();
+
+    //Nodes, one per case id (whether in storage or just indexed)
+    private Hashtable<String, Integer> nodeIds = new Hashtable<String, Integer>();
+    private String[] caseIds = new String[64];
+    private int[] records = new int[64];
+    private byte[] status = new byte[64];
+    private int nodeCount;
+
+    //Edges, from the indexing case to the indexed case
+    private int[] edgeFrom = new int[64];
+    private int[] edgeTo = new int[64];
+    private boolean[] edgeExtension = new boolean[64];
+    private int edgeCount;
 
     public CasePurgeFilter(IStorageUtilityIndexed<Case> caseStorage) {
         this(caseStorage, null);
@@ -60,146 +70,226 @@ public class CasePurgeFilter extends EntityFilter<Case> {
         setIdsToRemoveNew(caseStorage, owners);
     }
 
+    /**
+     * Create a filter for cases whose liveness has already been determined
+     * (by the CasePurgeState).
+     */
+    CasePurgeFilter(RecordBitmap idsToRemove, Vector<String> caseIdsToRemove) {
+        this.idsToRemove = idsToRemove;
+        this.caseIdsToRemove = caseIdsToRemove;
+    }
+
     private void setIdsToRemoveNew(IStorageUtilityIndexed<Case> caseStorage, Vector<String> owners) {
-        //Create a DAG. The Index will be the case GUID. The Nodes will be a string array containing
-        //[CASE_STATUS, string(storageid)]
-        //CASE_STATUS is enumerated as one of STATUS_LIVE, STATUS_DEAD, or STATUS_ABANDONED
-        DAG<String, String[], String> g = new DAG<String, String[], String>();
+        Hashtable<String, String> ownerSet = null;
+        if (owners != null) {
+            ownerSet = new Hashtable<String, String>();
+            for (int i = 0; i < owners.size(); ++i) {
+                ownerSet.put(owners.elementAt(i), owners.elementAt(i));
+            }
+        }
 
-        Vector<CaseIndex> indexHolder = new Vector<CaseIndex>();
+        //The last case record to index each node, and the edge it used, so
+        //we can collapse multiple indices from one case to the same target
+        int[] lastIndexedBy = new int[64];
+        int[] lastEdge = new int[64];
+        int stamp = 0;
 
         //Pass 1:
-        //Create a DAG which contains all of the cases on the phone as nodes, and has a directed
+        //Create a graph which contains all of the cases on the phone as nodes, and has a directed
         //edge for each index (from the 'child' case pointing to the 'parent' case) with the
         //appropriate relationship tagged
         for (IStorageIterator<Case> i = caseStorage.iterate(); i.hasMore(); ) {
             Case c = i.nextRecord();
-            boolean owned = true;
-            if (owners != null) {
-                owned = owners.contains(c.getUserId());
-            }
+            int node = getOrCreateNode(c.getCaseId());
+            records[node] = c.getID();
 
-            //In order to deal with multiple indices pointing to the same case
-            //with different relationships, we'll need to traverse once to eliminate any
-            //ambiguity (TODO: How do we speed this up? Do we need to?)
-            for (CaseIndex index : c.getIndices()) {
-                CaseIndex toReplace = null;
-                boolean skip = false;
-                for (CaseIndex existing : indexHolder) {
-                    if (existing.getTarget().equals(index.getTarget())) {
-                        if (existing.getRelationship().equals(CaseIndex.RELATIONSHIP_EXTENSION) && !index.getRelationship().equals(CaseIndex.RELATIONSHIP_EXTENSION)) {
-                            toReplace = existing;
-                        } else {
-                            skip = true;
-                        }
-                        break;
-                    }
+            //Stamps start at one so the default 0 means "never"
+            stamp++;
+            int firstEdge = edgeCount;
+            Vector<CaseIndex> indices = c.getIndices();
+            for (int j = 0; j < indices.size(); ++j) {
+                CaseIndex index = indices.elementAt(j);
+                int target = getOrCreateNode(index.getTarget());
+                boolean extension = CaseIndex.RELATIONSHIP_EXTENSION.equals(index.getRelationship());
+                if (target >= lastIndexedBy.length) {
+                    lastIndexedBy = grow(lastIndexedBy, status.length);
+                    lastEdge = grow(lastEdge, status.length);
                 }
-                if (toReplace != null) {
-                    indexHolder.removeElement(toReplace);
-                }
-                if (!skip) {
-                    indexHolder.addElement(index);
-                }
-            }
-            String nodeStatus;
-            //Four cases, applied in order. One and two: closed or unowned it starts life dead
-            if (!owned || c.isClosed()) {
-                nodeStatus = STATUS_DEAD;
-            } else {
-                //Otherwise we need to see whether this case maintains any extension indices,
-                //if so, it's abandoned. Otherwise it's Alive
-                boolean abandoned = false;
-                for (CaseIndex index : indexHolder) {
-                    if (index.getRelationship().equals(CaseIndex.RELATIONSHIP_EXTENSION)) {
-                        abandoned = true;
-                        break;
+
+                if (lastIndexedBy[target] == stamp) {
+                    //Multiple indices to the same case with different
+                    //relationships: anything other than an extension wins
+                    if (!extension) {
+                        edgeExtension[lastEdge[target]] = false;
                     }
-                }
-                if (abandoned) {
-                    nodeStatus = STATUS_ABANDONED;
                 } else {
-                    nodeStatus = STATUS_LIVE;
+                    lastIndexedBy[target] = stamp;
+                    lastEdge[target] = addEdge(node, target, extension);
                 }
             }
+            boolean abandoned = false;
+            for (int j = firstEdge; j < edgeCount; ++j) {
+                abandoned |= edgeExtension[j];
+            }
 
+            boolean owned = ownerSet == null || (c.getUserId() != null && ownerSet.containsKey(c.getUserId()));
 
-            g.addNode(c.getCaseId(), new String[]{nodeStatus, String.valueOf(c.getID())});
-
-            for (CaseIndex index : indexHolder) {
-                g.setEdge(c.getCaseId(), index.getTarget(), index.getRelationship());
+            //Applied in order. One and two: closed or unowned it starts life dead.
+            //Otherwise if this case maintains any extension indices it's
+            //abandoned, and if not it's alive
+            if (!owned || c.isClosed()) {
+                status[node] = STATUS_DEAD;
+            } else if (abandoned) {
+                status[node] = STATUS_ABANDONED;
+            } else {
+                status[node] = STATUS_LIVE;
             }
-            indexHolder.removeAllElements();
         }
 
-        //Pass 2: Start at Sources (nodes which only produce edges) and walk up
-        //the tree, marking relevant nodes as alive
-        Stack<String> toProcess = g.getSources();
-        while (!toProcess.isEmpty()) {
-            //current node
-            String index = toProcess.pop();
-            String[] node = g.getNode(index);
-
-            //Walk all indexed nodes, adding them to the process stack.
-            //and update their liveness if necessary.
-            for (Edge<String, String> edge : g.getChildren(index)) {
-                if (node[0].equals(STATUS_LIVE)) {
-                    g.getNode(edge.i)[0] = STATUS_LIVE;
+        int[][] outgoing = adjacency(edgeFrom, edgeTo);
+        int[][] incoming = adjacency(edgeTo, edgeFrom);
+
+        //Pass 2: Anything indexed by a live case is alive
+        int[] worklist = new int[nodeCount];
+        int pending = 0;
+        for (int node = 0; node < nodeCount; ++node) {
+            if (status[node] == STATUS_LIVE) {
+                worklist[pending++] = node;
+            }
+        }
+        while (pending > 0) {
+            int node = worklist[--pending];
+            int[] offsets = outgoing[0];
+            int[] edges = outgoing[1];
+            for (int j = offsets[node]; j < offsets[node + 1]; ++j) {
+                int parent = edgeTo[edges[j]];
+                if (status[parent] != STATUS_LIVE) {
+                    status[parent] = STATUS_LIVE;
+                    worklist[pending++] = parent;
                 }
-                //add this to the process stack
-                //TODO: We're going to walk stuff redundantly this
-                //way. Can we optimize?
-                //If parent is already live, does
-                //that necessarily denote that its ancestors are alive?
-                toProcess.addElement(edge.i);
             }
         }
 
-        //Pass 2: Start at Sinks (nodes which only receive edges) and walk down the
-        //graphs, marking necessary nodes as alive
-        toProcess = g.getSinks();
-        while (!toProcess.isEmpty()) {
-            //current node
-            String index = toProcess.pop();
-            String[] node = g.getNode(index);
-
-            //Walk all indexing nodes.
-            for (Edge<String, String> edge : g.getParents(index)) {
-                if (g.getNode(edge.i)[0].equals(STATUS_ABANDONED) &&
-                        edge.e.equals(CaseIndex.RELATIONSHIP_EXTENSION) &&
-                        node[0].equals(STATUS_LIVE)) {
-
-                    g.getNode(edge.i)[0] = STATUS_LIVE;
+        //Pass 3: Abandoned cases which are extensions of a live case are alive
+        for (int node = 0; node < nodeCount; ++node) {
+            if (status[node] == STATUS_LIVE) {
+                worklist[pending++] = node;
+            }
+        }
+        while (pending > 0) {
+            int node = worklist[--pending];
+            int[] offsets = incoming[0];
+            int[] edges = incoming[1];
+            for (int j = offsets[node]; j < offsets[node + 1]; ++j) {
+                int edge = edges[j];
+                int extension = edgeFrom[edge];
+                if (edgeExtension[edge] && status[extension] == STATUS_ABANDONED) {
+                    status[extension] = STATUS_LIVE;
+                    worklist[pending++] = extension;
                 }
-
-                //add this to the process stack
-                //TODO: We're going to walk stuff redundantly this
-                //way. Can we optimize?
-                toProcess.addElement(edge.i);
             }
         }
 
         //Ok, so now just go through all nodes and signal that we need to remove anything
         //that isn't live!
-        for (Enumeration iterator = g.getNodes(); iterator.hasMoreElements(); ) {
-            String[] node = (String[])iterator.nextElement();
-            if (!node[0].equals(STATUS_LIVE)) {
-                idsToRemove.addElement(Integer.valueOf(node[1]));
+        for (int node = 0; node < nodeCount; ++node) {
+            if (status[node] != STATUS_LIVE && status[node] != STATUS_MISSING) {
+                idsToRemove.add(records[node]);
+                caseIdsToRemove.addElement(caseIds[node]);
             }
         }
+
+        //Don't hold on to the graph
+        nodeIds = null;
+        caseIds = null;
+        edgeFrom = edgeTo = null;
+        edgeExtension = null;
+    }
+
+    private int getOrCreateNode(String caseId) {
+        Integer existing = nodeIds.get(caseId);
+        if (existing != null) {
+            return existing.intValue();
+        }
+        int node = nodeCount++;
+        if (node == status.length) {
+            String[] grownIds = new String[node * 2];
+            System.arraycopy(caseIds, 0, grownIds, 0, node);
+            caseIds = grownIds;
+            records = grow(records, node * 2);
+            byte[] grownStatus = new byte[node * 2];
+            System.arraycopy(status, 0, grownStatus, 0, node);
+            status = grownStatus;
+        }
+        caseIds[node] = caseId;
+        records[node] = -1;
+        status[node] = STATUS_MISSING;
+        nodeIds.put(caseId, DataUtil.integer(node));
+        return node;
+    }
+
+    private int addEdge(int from, int to, boolean extension) {
+        int edge = edgeCount++;
+        if (edge == edgeFrom.length) {
+            edgeFrom = grow(edgeFrom, edge * 2);
+            edgeTo = grow(edgeTo, edge * 2);
+            boolean[] grown = new boolean[edge * 2];
+            System.arraycopy(edgeExtension, 0, grown, 0, edge);
+            edgeExtension = grown;
+        }
+        edgeFrom[edge] = from;
+        edgeTo[edge] = to;
+        edgeExtension[edge] = extension;
+        return edge;
+    }
+
+    /**
+     * Groups the edges by one of their ends (with a counting sort).
+     *
+     * @return {offsets, edges}, where the edges for node n are
+     * edges[offsets[n]] to edges[offsets[n + 1] - 1]
+     */
+    private int[][] adjacency(int[] key, int[] other) {
+        int[] offsets = new int[nodeCount + 1];
+        for (int i = 0; i < edgeCount; ++i) {
+            offsets[key[i] + 1]++;
+        }
+        for (int i = 0; i < nodeCount; ++i) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] position = new int[nodeCount];
+        System.arraycopy(offsets, 0, position, 0, nodeCount);
+        int[] edges = new int[edgeCount];
+        for (int i = 0; i < edgeCount; ++i) {
+            edges[position[key[i]]++] = i;
+        }
+        return new int[][]{offsets, edges};
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] grown = new int[size];
+        System.arraycopy(array, 0, grown, 0, Math.min(array.length, size));
+        return grown;
     }
 
     /* (non-Javadoc)
      * @see org.javarosa.core.services.storage.EntityFilter#preFilter(int, java.util.Hashtable)
      */
     public int preFilter(int id, Hashtable<String, Object> metaData) {
-        if (idsToRemove.contains(DataUtil.integer(id))) {
+        if (idsToRemove.contains(id)) {
             return PREFILTER_INCLUDE;
         } else {
             return PREFILTER_EXCLUDE;
         }
     }
 
+    /**
+     * @return The case ids of the cases which this filter will remove
+     */
+    public Vector<String> getCaseIdsToRemove() {
+        return caseIdsToRemove;
+    }
+
     public boolean matches(Case e) {
         //We're doing everything with pre-filtering
         return false;
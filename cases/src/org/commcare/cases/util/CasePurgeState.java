@@ -0,0 +1,736 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseIndex;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtility;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.services.storage.Persistable;
+import org.javarosa.core.services.storage.StorageFullException;
+import org.javarosa.core.services.storage.StorageManager;
+import org.javarosa.core.util.DataUtil;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapList;
+import org.javarosa.core.util.externalizable.Externalizable;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+
+/**
+ * The liveness of every case in case storage (in the same sense as the
+ * CasePurgeFilter), kept up to date as cases are written so that a purge
+ * only needs to re-evaluate the cases which could have been affected by
+ * what changed since the last one.
+ *
+ * A case's liveness only depends on the cases which index it, and (for
+ * extension cases) the cases it's an extension of. So when a case changes,
+ * the only cases which need to be re-evaluated are the ones reachable from
+ * it by following indices forward and extension indices backward, starting
+ * from both its old and new indices. Everything outside of that region
+ * keeps its liveness, and is used as fixed input for the region.
+ *
+ * The state is built from storage the first time a purge needs it, after
+ * which the code which writes cases needs to call caseWritten(). Anything
+ * which removes cases from storage (other than through the purge filter
+ * from this state) needs to call invalidate().
+ *
+ * If persistence is attached, the state is saved to its own storage on
+ * flush() so it survives restarts. The saved copy is removed as soon as the
+ * state changes, so if the app dies before the next flush the state will
+ * be rebuilt rather than trusted. The state is only as current as the
+ * calls made to keep it, so it's also rebuilt whenever it doesn't have the
+ * same number of cases as storage.
+ */
+public class CasePurgeState implements Externalizable {
+
+    public static final String STORAGE_KEY = "CASE_PURGE_STATE";
+
+    /**
+     * The most bytes of the state saved in one record. The state of a large
+     * casedb can run to megabytes, well past what a single RMS record can
+     * hold on many phones.
+     */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    //The status a case starts with before liveness is propagated, as in
+    //the CasePurgeFilter
+    private static final byte STATUS_MISSING = 0;
+    private static final byte STATUS_LIVE = 1;
+    private static final byte STATUS_DEAD = 2;
+    private static final byte STATUS_ABANDONED = 3;
+
+    //How a case came to be alive. Cases which are only alive as the
+    //extension of a live case don't keep the cases they index alive.
+    private static final byte LEVEL_NONE = 0;
+    private static final byte LEVEL_INDEXED = 1;
+    private static final byte LEVEL_EXTENSION = 2;
+
+    private static CasePurgeState state;
+    private static IStorageUtility stateStorage;
+
+    //The storage to persist the state in, or null if it isn't persisted
+    private static String persistKey;
+
+    //The owners whose cases are live, or null for any owner
+    private Vector<String> owners;
+    private Hashtable<String, String> ownerSet;
+
+    //Nodes, one per case id (whether in storage or just indexed)
+    private Hashtable<String, Integer> nodeIds = new Hashtable<String, Integer>();
+    private String[] caseIds = new String[64];
+    private int[] records = new int[64];
+    private byte[] status = new byte[64];
+    private byte[] level = new byte[64];
+    private int nodeCount;
+
+    //Adjacency lists in both directions. Each entry is (node << 1), with
+    //the low bit set if the index is an extension
+    private int[][] out = new int[64][];
+    private int[] outDegree = new int[64];
+    private int[][] in = new int[64][];
+    private int[] inDegree = new int[64];
+
+    //Nodes whose liveness needs to be re-evaluated
+    private RecordBitmap dirty = new RecordBitmap();
+
+    //Nodes which may be purgable, a superset of the ones which are
+    private RecordBitmap candidates = new RecordBitmap();
+
+    private boolean saved;
+
+    /**
+     * NOTE: For serialization only
+     */
+    public CasePurgeState() {
+
+    }
+
+    private CasePurgeState(Vector<String> owners) {
+        setOwners(owners);
+    }
+
+    /**
+     * Sets the storage the state should be persisted in.
+     *
+     * @param key The storage key, or null to stop persisting the state
+     *            (IE: while using storage which won't be kept)
+     */
+    public static synchronized void attachPersistence(String key) {
+        persistKey = key;
+        state = null;
+        stateStorage = null;
+    }
+
+    /**
+     * Gets the purge state for the provided case storage, building it from
+     * storage if it isn't available, was kept for a different set of
+     * owners, or has fallen out of step with storage.
+     *
+     * @param owners The owners whose cases should be kept on the device, or
+     *               null to keep cases of any owner
+     */
+    public static synchronized CasePurgeState getState(IStorageUtilityIndexed<Case> storage, Vector<String> owners) {
+        CasePurgeState current = getLoaded(storage);
+        if (current == null || !sameOwners(current.owners, owners) || current.getCaseCount() != storage.getNumRecords()) {
+            current = build(storage, owners);
+            state = current;
+            stateStorage = storage;
+        }
+        return current;
+    }
+
+    /**
+     * Updates the purge state for the provided storage (if it's being kept)
+     * with a case which was just written to it.
+     */
+    public static synchronized void caseWritten(IStorageUtility storage, Case c) {
+        CasePurgeState current = getLoaded(storage);
+        if (current != null) {
+            current.markUnsaved();
+            current.update(c);
+        }
+    }
+
+    /**
+     * Updates the purge state for the provided storage (if it's being kept)
+     * with the records which were removed by its purge filter.
+     */
+    public static synchronized void casesPurged(IStorageUtility storage, Vector<Integer> recordIds) {
+        CasePurgeState current = getLoaded(storage);
+        if (current != null) {
+            current.markUnsaved();
+            current.removeRecords(recordIds);
+        }
+    }
+
+    /**
+     * Discards the purge state (and any persisted copy of it) so it will be
+     * rebuilt from storage on next use.
+     */
+    public static synchronized void invalidate() {
+        state = null;
+        stateStorage = null;
+        if (persistKey != null) {
+            StorageManager.getStorage(persistKey).removeAll();
+        }
+    }
+
+    /**
+     * Persists the purge state, if it has changed since it was last
+     * persisted.
+     */
+    public static synchronized void flush() {
+        if (state == null || state.saved || persistKey == null) {
+            return;
+        }
+        IStorageUtility persisted = StorageManager.getStorage(persistKey);
+        try {
+            persisted.removeAll();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            state.writeExternal(new DataOutputStream(bytes));
+            byte[] serialized = bytes.toByteArray();
+            int total = (serialized.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            for (int i = 0; i < total; ++i) {
+                int start = i * CHUNK_SIZE;
+                byte[] chunk = new byte[Math.min(CHUNK_SIZE, serialized.length - start)];
+                System.arraycopy(serialized, start, chunk, 0, chunk.length);
+                persisted.write(new Chunk(i, total, chunk));
+            }
+            state.saved = true;
+        } catch (IOException e) {
+            persisted.removeAll();
+        } catch (StorageFullException e) {
+            //We'll just have to rebuild it next time
+            persisted.removeAll();
+        }
+    }
+
+    private static CasePurgeState getLoaded(IStorageUtility storage) {
+        if (state != null && stateStorage == storage) {
+            return state;
+        }
+        if (persistKey == null) {
+            return null;
+        }
+        CasePurgeState loaded = load(StorageManager.getStorage(persistKey));
+        if (loaded == null) {
+            return null;
+        }
+        state = loaded;
+        state.saved = true;
+        stateStorage = storage;
+        return state;
+    }
+
+    /**
+     * Reads the state back out of its chunks.
+     *
+     * @return The state, or null if it isn't saved, or only part of it is
+     */
+    private static CasePurgeState load(IStorageUtility persisted) {
+        Chunk[] chunks = null;
+        int length = 0;
+        try {
+            for (IStorageIterator i = persisted.iterate(); i.hasMore(); ) {
+                Chunk chunk = (Chunk)i.nextRecord();
+                if (chunks == null) {
+                    chunks = new Chunk[chunk.total];
+                }
+                if (chunk.total != chunks.length || chunk.index < 0 || chunk.index >= chunks.length || chunks[chunk.index] != null) {
+                    throw new IOException("Inconsistent purge state chunks");
+                }
+                chunks[chunk.index] = chunk;
+                length += chunk.data.length;
+            }
+            if (chunks == null) {
+                return null;
+            }
+            byte[] serialized = new byte[length];
+            int position = 0;
+            for (int i = 0; i < chunks.length; ++i) {
+                if (chunks[i] == null) {
+                    throw new IOException("Missing purge state chunk " + i);
+                }
+                System.arraycopy(chunks[i].data, 0, serialized, position, chunks[i].data.length);
+                position += chunks[i].data.length;
+            }
+            CasePurgeState loaded = new CasePurgeState();
+            loaded.readExternal(new DataInputStream(new ByteArrayInputStream(serialized)), ExtUtil.defaultPrototypes());
+            return loaded;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (DeserializationException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            //Records saved in some other format
+            e.printStackTrace();
+        }
+        persisted.removeAll();
+        return null;
+    }
+
+    private static CasePurgeState build(IStorageUtilityIndexed<Case> storage, Vector<String> owners) {
+        CasePurgeState built = new CasePurgeState(owners);
+        for (IStorageIterator<Case> i = storage.iterate(); i.hasMore(); ) {
+            built.update(i.nextRecord());
+        }
+        return built;
+    }
+
+    private static boolean sameOwners(Vector<String> one, Vector<String> two) {
+        if (one == null || two == null) {
+            return one == two;
+        }
+        if (one.size() != two.size()) {
+            return false;
+        }
+        for (int i = 0; i < one.size(); ++i) {
+            if (!two.contains(one.elementAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setOwners(Vector<String> owners) {
+        this.owners = owners;
+        if (owners == null) {
+            ownerSet = null;
+            return;
+        }
+        ownerSet = new Hashtable<String, String>();
+        for (int i = 0; i < owners.size(); ++i) {
+            ownerSet.put(owners.elementAt(i), owners.elementAt(i));
+        }
+    }
+
+    /**
+     * @return The number of cases in storage, as far as this state knows
+     */
+    private synchronized int getCaseCount() {
+        int count = 0;
+        for (int node = 0; node < nodeCount; ++node) {
+            if (status[node] != STATUS_MISSING) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void markUnsaved() {
+        if (saved) {
+            saved = false;
+            //Until we flush, the persisted state is out of date
+            if (persistKey != null) {
+                StorageManager.getStorage(persistKey).removeAll();
+            }
+        }
+    }
+
+    /**
+     * @return A filter which removes the cases which are no longer live
+     */
+    public synchronized CasePurgeFilter getPurgeFilter() {
+        evaluate();
+        RecordBitmap ids = new RecordBitmap();
+        Vector<String> purgable = new Vector<String>();
+        int[] nodes = candidates.toArray();
+        for (int i = 0; i < nodes.length; ++i) {
+            int node = nodes[i];
+            if (status[node] != STATUS_MISSING && level[node] == LEVEL_NONE) {
+                ids.add(records[node]);
+                purgable.addElement(caseIds[node]);
+            }
+        }
+        return new CasePurgeFilter(ids, purgable);
+    }
+
+    /**
+     * Replaces the provided case's status and indices, and marks everything
+     * they could affect for re-evaluation.
+     */
+    private synchronized void update(Case c) {
+        int node = getOrCreateNode(c.getCaseId());
+        records[node] = c.getID();
+        dirty.add(node);
+
+        //The targets of the old indices might lose liveness
+        for (int i = 0; i < outDegree[node]; ++i) {
+            dirty.add(out[node][i] >> 1);
+        }
+        removeOutgoing(node);
+
+        boolean abandoned = false;
+        Vector<CaseIndex> indices = c.getIndices();
+        for (int i = 0; i < indices.size(); ++i) {
+            CaseIndex index = indices.elementAt(i);
+            int target = getOrCreateNode(index.getTarget());
+            boolean extension = CaseIndex.RELATIONSHIP_EXTENSION.equals(index.getRelationship());
+            addEdge(node, target, extension);
+        }
+        for (int i = 0; i < outDegree[node]; ++i) {
+            abandoned |= (out[node][i] & 1) == 1;
+        }
+
+        boolean owned = ownerSet == null || (c.getUserId() != null && ownerSet.containsKey(c.getUserId()));
+        if (!owned || c.isClosed()) {
+            status[node] = STATUS_DEAD;
+        } else if (abandoned) {
+            status[node] = STATUS_ABANDONED;
+        } else {
+            status[node] = STATUS_LIVE;
+        }
+    }
+
+    private synchronized void removeRecords(Vector<Integer> recordIds) {
+        RecordBitmap removed = RecordBitmap.fromVector(recordIds);
+        int[] nodes = candidates.toArray();
+        RecordBitmap remaining = new RecordBitmap();
+        for (int i = 0; i < nodes.length; ++i) {
+            int node = nodes[i];
+            if (status[node] == STATUS_MISSING) {
+                continue;
+            }
+            if (removed.contains(records[node])) {
+                //Purged cases weren't live, so they weren't keeping anything
+                //alive, and nothing needs to be re-evaluated
+                removeOutgoing(node);
+                records[node] = -1;
+                status[node] = STATUS_MISSING;
+            } else if (level[node] == LEVEL_NONE) {
+                remaining.add(node);
+            }
+        }
+        candidates = remaining;
+    }
+
+    /**
+     * Re-evaluates the liveness of every case which could have been affected
+     * by the cases marked dirty.
+     */
+    private void evaluate() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        //Find the region: everything reachable by following indices forward
+        //and extension indices backward
+        RecordBitmap region = new RecordBitmap();
+        int[] worklist = dirty.toArray();
+        int pending = worklist.length;
+        for (int i = 0; i < pending; ++i) {
+            region.add(worklist[i]);
+        }
+        while (pending > 0) {
+            int node = worklist[--pending];
+            for (int i = 0; i < outDegree[node]; ++i) {
+                int target = out[node][i] >> 1;
+                if (!region.contains(target)) {
+                    region.add(target);
+                    worklist = push(worklist, pending++, target);
+                }
+            }
+            for (int i = 0; i < inDegree[node]; ++i) {
+                int source = in[node][i] >> 1;
+                if ((in[node][i] & 1) == 1 && !region.contains(source)) {
+                    region.add(source);
+                    worklist = push(worklist, pending++, source);
+                }
+            }
+        }
+
+        int[] nodes = region.toArray();
+        for (int i = 0; i < nodes.length; ++i) {
+            level[nodes[i]] = LEVEL_NONE;
+        }
+
+        //Anything indexed by a live case is alive. Cases outside of the region
+        //which index one inside of it are fixed input.
+        for (int i = 0; i < nodes.length; ++i) {
+            int node = nodes[i];
+            boolean live = status[node] == STATUS_LIVE;
+            for (int j = 0; !live && j < inDegree[node]; ++j) {
+                int source = in[node][j] >> 1;
+                live = !region.contains(source) && level[source] == LEVEL_INDEXED;
+            }
+            if (live) {
+                level[node] = LEVEL_INDEXED;
+                worklist = push(worklist, pending++, node);
+            }
+        }
+        while (pending > 0) {
+            int node = worklist[--pending];
+            for (int i = 0; i < outDegree[node]; ++i) {
+                int target = out[node][i] >> 1;
+                if (level[target] != LEVEL_INDEXED) {
+                    level[target] = LEVEL_INDEXED;
+                    worklist = push(worklist, pending++, target);
+                }
+            }
+        }
+
+        //Abandoned cases which are extensions of a live case are alive. The
+        //hosts of any extension in the region are in the region.
+        for (int i = 0; i < nodes.length; ++i) {
+            if (level[nodes[i]] != LEVEL_NONE) {
+                worklist = push(worklist, pending++, nodes[i]);
+            }
+        }
+        while (pending > 0) {
+            int node = worklist[--pending];
+            for (int i = 0; i < inDegree[node]; ++i) {
+                int source = in[node][i] >> 1;
+                if ((in[node][i] & 1) == 1 && status[source] == STATUS_ABANDONED && level[source] == LEVEL_NONE) {
+                    level[source] = LEVEL_EXTENSION;
+                    worklist = push(worklist, pending++, source);
+                }
+            }
+        }
+
+        for (int i = 0; i < nodes.length; ++i) {
+            int node = nodes[i];
+            if (status[node] != STATUS_MISSING && level[node] == LEVEL_NONE) {
+                candidates.add(node);
+            }
+        }
+        dirty = new RecordBitmap();
+    }
+
+    private int getOrCreateNode(String caseId) {
+        Integer existing = nodeIds.get(caseId);
+        if (existing != null) {
+            return existing.intValue();
+        }
+        int node = nodeCount++;
+        ensureNode(node);
+        caseIds[node] = caseId;
+        records[node] = -1;
+        status[node] = STATUS_MISSING;
+        nodeIds.put(caseId, DataUtil.integer(node));
+        return node;
+    }
+
+    private void ensureNode(int node) {
+        if (node < status.length) {
+            return;
+        }
+        int size = status.length;
+        while (size <= node) {
+            size *= 2;
+        }
+        String[] grownIds = new String[size];
+        System.arraycopy(caseIds, 0, grownIds, 0, caseIds.length);
+        caseIds = grownIds;
+        records = grow(records, size);
+        status = grow(status, size);
+        level = grow(level, size);
+        out = grow(out, size);
+        outDegree = grow(outDegree, size);
+        in = grow(in, size);
+        inDegree = grow(inDegree, size);
+    }
+
+    private void addEdge(int source, int target, boolean extension) {
+        //Multiple indices to the same case with different relationships:
+        //anything other than an extension wins
+        for (int i = 0; i < outDegree[source]; ++i) {
+            if (out[source][i] >> 1 == target) {
+                if (!extension) {
+                    out[source][i] = target << 1;
+                    setInEdge(target, source, false);
+                }
+                return;
+            }
+        }
+        int flag = extension ? 1 : 0;
+        out[source] = append(out[source], outDegree[source]++, (target << 1) | flag);
+        in[target] = append(in[target], inDegree[target]++, (source << 1) | flag);
+    }
+
+    private void setInEdge(int target, int source, boolean extension) {
+        for (int i = 0; i < inDegree[target]; ++i) {
+            if (in[target][i] >> 1 == source) {
+                in[target][i] = (source << 1) | (extension ? 1 : 0);
+                return;
+            }
+        }
+    }
+
+    private void removeOutgoing(int source) {
+        for (int i = 0; i < outDegree[source]; ++i) {
+            int target = out[source][i] >> 1;
+            //Swap the source's entry out of the target's list
+            int[] sources = in[target];
+            for (int j = 0; j < inDegree[target]; ++j) {
+                if (sources[j] >> 1 == source) {
+                    sources[j] = sources[--inDegree[target]];
+                    break;
+                }
+            }
+        }
+        outDegree[source] = 0;
+    }
+
+    private static int[] push(int[] worklist, int count, int node) {
+        if (count == worklist.length) {
+            worklist = grow(worklist, Math.max(16, count * 2));
+        }
+        worklist[count] = node;
+        return worklist;
+    }
+
+    private static int[] append(int[] list, int count, int value) {
+        if (list == null) {
+            list = new int[2];
+        } else if (count == list.length) {
+            list = grow(list, count * 2);
+        }
+        list[count] = value;
+        return list;
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] grown = new int[size];
+        System.arraycopy(array, 0, grown, 0, Math.min(array.length, size));
+        return grown;
+    }
+
+    private static byte[] grow(byte[] array, int size) {
+        byte[] grown = new byte[size];
+        System.arraycopy(array, 0, grown, 0, Math.min(array.length, size));
+        return grown;
+    }
+
+    private static int[][] grow(int[][] array, int size) {
+        int[][] grown = new int[size][];
+        System.arraycopy(array, 0, grown, 0, Math.min(array.length, size));
+        return grown;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.util.externalizable.Externalizable#readExternal(java.io.DataInputStream, org.javarosa.core.util.externalizable.PrototypeFactory)
+     */
+    public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        if (ExtUtil.readBool(in)) {
+            setOwners((Vector<String>)ExtUtil.read(in, new ExtWrapList(String.class), pf));
+        } else {
+            setOwners(null);
+        }
+
+        int count = ExtUtil.readInt(in);
+        nodeIds = new Hashtable<String, Integer>();
+        nodeCount = 0;
+        ensureNode(count);
+        for (int node = 0; node < count; ++node) {
+            getOrCreateNode(ExtUtil.readString(in));
+            records[node] = ExtUtil.readInt(in);
+            status[node] = (byte)ExtUtil.readInt(in);
+            level[node] = (byte)ExtUtil.readInt(in);
+        }
+        for (int node = 0; node < count; ++node) {
+            int degree = ExtUtil.readInt(in);
+            for (int i = 0; i < degree; ++i) {
+                int edge = ExtUtil.readInt(in);
+                addEdge(node, edge >> 1, (edge & 1) == 1);
+            }
+        }
+        dirty = RecordBitmap.fromArray(readInts(in));
+        candidates = RecordBitmap.fromArray(readInts(in));
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.util.externalizable.Externalizable#writeExternal(java.io.DataOutputStream)
+     */
+    public void writeExternal(DataOutputStream out) throws IOException {
+        ExtUtil.writeBool(out, owners != null);
+        if (owners != null) {
+            ExtUtil.write(out, new ExtWrapList(owners));
+        }
+
+        ExtUtil.writeNumeric(out, nodeCount);
+        for (int node = 0; node < nodeCount; ++node) {
+            ExtUtil.writeString(out, caseIds[node]);
+            ExtUtil.writeNumeric(out, records[node]);
+            ExtUtil.writeNumeric(out, status[node]);
+            ExtUtil.writeNumeric(out, level[node]);
+        }
+        for (int node = 0; node < nodeCount; ++node) {
+            ExtUtil.writeNumeric(out, outDegree[node]);
+            for (int i = 0; i < outDegree[node]; ++i) {
+                ExtUtil.writeNumeric(out, this.out[node][i]);
+            }
+        }
+        writeInts(out, dirty.toArray());
+        writeInts(out, candidates.toArray());
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[ExtUtil.readInt(in)];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = ExtUtil.readInt(in);
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        ExtUtil.writeNumeric(out, values.length);
+        for (int i = 0; i < values.length; ++i) {
+            ExtUtil.writeNumeric(out, values[i]);
+        }
+    }
+
+    /**
+     * One piece of the saved state.
+     */
+    public static class Chunk implements Persistable {
+        private int recordId = -1;
+        private int index;
+        private int total;
+        private byte[] data;
+
+        /**
+         * NOTE: For serialization only
+         */
+        public Chunk() {
+
+        }
+
+        private Chunk(int index, int total, byte[] data) {
+            this.index = index;
+            this.total = total;
+            this.data = data;
+        }
+
+        public void setID(int ID) {
+            recordId = ID;
+        }
+
+        public int getID() {
+            return recordId;
+        }
+
+        public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+            recordId = ExtUtil.readInt(in);
+            index = ExtUtil.readInt(in);
+            total = ExtUtil.readInt(in);
+            data = ExtUtil.readBytes(in);
+        }
+
+        public void writeExternal(DataOutputStream out) throws IOException {
+            ExtUtil.writeNumeric(out, recordId);
+            ExtUtil.writeNumeric(out, index);
+            ExtUtil.writeNumeric(out, total);
+            ExtUtil.writeBytes(out, data);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import org.commcare.cases.model.Case;
+import org.javarosa.core.services.PropertyManager;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtility;
+import org.javarosa.core.util.MD5;
+
+/**
+ * A running copy of the case database's state hash (the XOR of the MD5 of
+ * every case id in storage), so that it doesn't need to be recomputed from
+ * every case in storage on each sync.
+ *
+ * Since XOR is its own inverse, a case id's digest is XOR'd in when a new
+ * case record is written and XOR'd back out when the record is removed.
+ * Updates to existing cases don't change the hash. The code which writes
+ * and removes cases is responsible for calling caseAdded() and
+ * caseRemoved(). Anything which removes cases without knowing their ids
+ * needs to call invalidate(), which causes the hash to be recomputed from
+ * storage on next use.
+ *
+ * If persistence is attached, the running hash is saved as a property on
+ * flush(), so it survives restarts. The property is cleared as soon as the
+ * hash changes, so if the app dies before the next flush the hash will be
+ * recomputed rather than trusted.
+ */
+public class CaseStateHash {
+
+    private static CaseStateHash hash;
+    private static IStorageUtility hashStorage;
+
+    //The property to persist the hash in, or null if it isn't persisted
+    private static String propertyKey;
+
+    private byte[] digest = new byte[MD5.length];
+    private int count;
+    private boolean dirty;
+
+    /**
+     * Sets the property the hash should be persisted in.
+     *
+     * @param key The name of the property, or null to stop persisting the
+     *            hash (IE: while using storage which won't be kept)
+     */
+    public static synchronized void attachPersistence(String key) {
+        propertyKey = key;
+        hash = null;
+        hashStorage = null;
+    }
+
+    /**
+     * Gets the state hash for the provided case storage, reading it from
+     * persistence or computing it from storage if it isn't being kept yet.
+     */
+    public static synchronized CaseStateHash getHash(IStorageUtility<Case> storage) {
+        if (hash == null || hashStorage != storage) {
+            CaseStateHash loaded = load(storage.getNumRecords());
+            if (loaded == null) {
+                loaded = compute(storage);
+                loaded.dirty = true;
+            }
+            hash = loaded;
+            hashStorage = storage;
+        }
+        return hash;
+    }
+
+    /**
+     * Updates the hash for the provided storage (if it's being kept) with a
+     * case record which was just added to it.
+     */
+    public static synchronized void caseAdded(IStorageUtility storage, String caseId) {
+        if (hash != null && hashStorage == storage) {
+            hash.toggle(caseId, 1);
+            hash.markDirty();
+        }
+    }
+
+    /**
+     * Updates the hash for the provided storage (if it's being kept) with a
+     * case record which was just removed from it.
+     */
+    public static synchronized void caseRemoved(IStorageUtility storage, String caseId) {
+        if (hash != null && hashStorage == storage) {
+            hash.toggle(caseId, -1);
+            hash.markDirty();
+        }
+    }
+
+    /**
+     * Discards the running hash (and any persisted copy of it) so it will be
+     * recomputed from storage on next use.
+     */
+    public static synchronized void invalidate() {
+        hash = null;
+        hashStorage = null;
+        persist(null);
+    }
+
+    /**
+     * Persists the running hash, if it has changed since it was last
+     * persisted.
+     */
+    public static synchronized void flush() {
+        if (hash != null && hash.dirty) {
+            persist(hash.count + ":" + MD5.toHex(hash.digest));
+            hash.dirty = false;
+        }
+    }
+
+    /**
+     * Computes the state hash from every case in storage, without using or
+     * updating the running hash. Expensive, this is for verifying the
+     * running hash.
+     */
+    public static CaseStateHash compute(IStorageUtility<Case> storage) {
+        CaseStateHash computed = new CaseStateHash();
+        for (IStorageIterator<Case> i = storage.iterate(); i.hasMore(); ) {
+            computed.toggle(i.nextRecord().getCaseId(), 1);
+        }
+        return computed;
+    }
+
+    /**
+     * @return The hash of the cases in storage, or the empty string if there
+     * are no cases.
+     */
+    public synchronized String getValue() {
+        //In the base case (with no cases), the case hash is empty
+        if (count == 0) {
+            return "";
+        }
+        return MD5.toHex(digest);
+    }
+
+    /**
+     * @return The number of case records that the hash covers
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    private synchronized void toggle(String caseId, int countChange) {
+        byte[] current = MD5.hash(caseId.getBytes());
+        for (int i = 0; i < digest.length; ++i) {
+            digest[i] ^= current[i];
+        }
+        count += countChange;
+    }
+
+    private void markDirty() {
+        if (!dirty) {
+            dirty = true;
+            //Until we flush, the persisted hash is out of date
+            persist(null);
+        }
+    }
+
+    private static CaseStateHash load(int numRecords) {
+        if (propertyKey == null) {
+            return null;
+        }
+        String stored = PropertyManager._().getSingularProperty(propertyKey);
+        if (stored == null) {
+            return null;
+        }
+        int split = stored.indexOf(':');
+        if (split == -1) {
+            return null;
+        }
+        CaseStateHash loaded = new CaseStateHash();
+        try {
+            loaded.count = Integer.parseInt(stored.substring(0, split));
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+        String hex = stored.substring(split + 1);
+        //Cheap sanity check that this is the storage the hash was kept for
+        if (loaded.count != numRecords || hex.length() != loaded.digest.length * 2) {
+            return null;
+        }
+        for (int i = 0; i < loaded.digest.length; ++i) {
+            try {
+                loaded.digest[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+        return loaded;
+    }
+
+    private static void persist(String value) {
+        if (propertyKey != null) {
+            PropertyManager._().setProperty(propertyKey, value == null ? "" : value);
+        }
+    }
+}
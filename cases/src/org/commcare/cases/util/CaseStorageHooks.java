@@ -0,0 +1,44 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import org.commcare.cases.model.Case;
+import org.javarosa.core.services.storage.IStorageUtility;
+
+/**
+ * Keeps the state which is derived from case storage (the state hash, the
+ * index graph, the purge state and cached index lookups) in step with it.
+ * Anything which writes cases needs to call written() for each one, and
+ * anything which removes cases without going through the purge needs to call
+ * wiped().
+ */
+public class CaseStorageHooks {
+
+    /**
+     * Notes that a case has been written to storage.
+     *
+     * @param added Whether the case was new to storage, IE: it didn't have a
+     *              record id before it was written
+     */
+    public static void written(IStorageUtility storage, Case c, boolean added) {
+        if (added) {
+            CaseStateHash.caseAdded(storage, c.getCaseId());
+        }
+        CaseIndexGraph.caseWritten(storage, c);
+        CasePurgeState.caseWritten(storage, c);
+        IndexResultCache.storageWritten();
+    }
+
+    /**
+     * Notes that case storage has been cleared, or has had writes rolled back
+     * or made by something that didn't report them, so everything derived
+     * from it needs to be rebuilt from storage on next use.
+     */
+    public static void wiped(IStorageUtility storage) {
+        CaseIndexGraph.invalidate();
+        CaseStateHash.invalidate();
+        CasePurgeState.invalidate();
+        IndexResultCache.storageWritten();
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+
+import org.commcare.cases.model.Case;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.services.storage.StorageFullException;
+
+/**
+ * Holds the cases which have been modified while processing a restore, so
+ * that a case updated by several blocks in a row is only written once, and
+ * cases are written out in batches rather than one at a time.
+ *
+ * Cases read through the cache are kept by case id until the batch they
+ * are in is written, so later blocks for the same case pick up the pending
+ * changes rather than reading the stale record from storage.
+ *
+ * Lookups of cases which haven't been seen yet in this restore are also
+ * cut down, using a CaseLocator. The record id of every case read or
+ * written through the cache is kept for the rest of the restore, so those
+ * cases are read directly by id. And when it's cheap to build, a Bloom
+ * filter of the case ids which were in storage before the restore started
+ * lets lookups for brand new cases (nearly every case in an initial
+ * restore) skip the storage index entirely.
+ *
+ * Like LedgerWriteCache, the owner is responsible for flushing the cache
+ * before the restore is committed and discarding it if the restore is
+ * rolled back. Batches written early because of the size limit are written
+ * inside the restore's transaction.
+ *
+ * If a WriteQueue is attached, batches are written and cases are read from
+ * storage on the queue's owner (the thread holding the restore's
+ * transaction), while the thread using the cache carries on parsing. Reads
+ * are queued behind the batches submitted before them, so a case in a
+ * batch which hasn't been written yet is only handed out again once it
+ * has, and the writer never sees a case change underneath it.
+ */
+public class CaseWriteCache {
+
+    /**
+     * The default number of modified cases to hold before writing them out.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final IStorageUtilityIndexed<Case> storage;
+    private final int batchSize;
+    private WriteQueue queue;
+
+    //case id -> case, for every case read or modified since it was last
+    //written
+    private Hashtable<String, Case> cases = new Hashtable<String, Case>();
+
+    //The modified cases, in the order they were first modified, and the
+    //same cases by case id
+    private Vector<Case> dirty = new Vector<Case>();
+    private Hashtable<String, Case> dirtyIds = new Hashtable<String, Case>();
+
+    //Where cases read or written through the cache are in storage
+    private final CaseLocator locator;
+
+    private int commits;
+    private int writes;
+    private int lookups;
+    private int indexLookups;
+    private long writeTime;
+
+    public CaseWriteCache(IStorageUtilityIndexed<Case> storage) {
+        this(storage, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param batchSize The number of modified cases to hold before they are
+     *                  written out
+     */
+    public CaseWriteCache(IStorageUtilityIndexed<Case> storage, int batchSize) {
+        this(storage, batchSize, new CaseLocator(storage));
+    }
+
+    /**
+     * @param locator Where to look up and record where cases are in storage,
+     *                which can be shared with other caches over the same
+     *                storage
+     */
+    public CaseWriteCache(IStorageUtilityIndexed<Case> storage, int batchSize, CaseLocator locator) {
+        this.storage = storage;
+        this.batchSize = batchSize;
+        this.locator = locator;
+        registerPropertyIndices();
+    }
+
+    /**
+     * Makes sure storage maintains an index for each of the case properties
+     * the app has declared as indexed. The parsers using the cache may not
+     * be on the thread which owns storage, so this is done here rather than
+     * by them.
+     */
+    private void registerPropertyIndices() {
+        String[] keys = Case.getIndexedPropertyKeys();
+        for (int i = 0; i < keys.length; ++i) {
+            storage.registerIndex(keys[i]);
+        }
+    }
+
+    /**
+     * Writes batches of cases, and reads cases from storage, on the provided
+     * queue's owner rather than on the thread using the cache.
+     */
+    public synchronized void setWriteQueue(WriteQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Gets the case with the provided id, including any changes which
+     * haven't been written yet.
+     *
+     * @return The case, or null if there is no case with that id.
+     */
+    public Case retrieve(final String caseId) {
+        synchronized (this) {
+            Case c = cases.get(caseId);
+            if (c != null) {
+                return c;
+            }
+            lookups++;
+        }
+        Case c;
+        if (queue == null) {
+            c = read(caseId);
+        } else {
+            //Don't hold the lock while waiting for the owner
+            c = (Case)queue.run(new WriteQueue.Task() {
+                public Object run() {
+                    return read(caseId);
+                }
+            });
+        }
+        if (c != null) {
+            synchronized (this) {
+                cases.put(caseId, c);
+            }
+        }
+        return c;
+    }
+
+    private Case read(String caseId) {
+        int recordId = locator.getRecordId(caseId);
+        if (recordId != -1) {
+            return storage.read(recordId);
+        }
+        if (!locator.mightExist(caseId)) {
+            return null;
+        }
+        synchronized (this) {
+            indexLookups++;
+        }
+        Case c;
+        try {
+            c = (Case)storage.getRecordForValue(Case.INDEX_CASE_ID, caseId);
+        } catch (NoSuchElementException nsee) {
+            return null;
+        }
+        locator.setRecordId(caseId, c.getID());
+        return c;
+    }
+
+    /**
+     * Notes that the provided case has been modified and needs to be
+     * written. If enough cases are waiting, the batch is written out.
+     */
+    public void modified(Case c) throws IOException {
+        Vector<Case> replaced = null;
+        Vector<Case> batch = null;
+        synchronized (this) {
+            commits++;
+            Case pending = dirtyIds.get(c.getCaseId());
+            if (pending != c) {
+                if (pending != null) {
+                    //A different object for the same case (IE: a create which
+                    //didn't overwrite the existing case). Write the old one's
+                    //changes, as they would have been without the cache.
+                    dirty.removeElement(pending);
+                    replaced = new Vector<Case>();
+                    replaced.addElement(pending);
+                }
+                dirty.addElement(c);
+                dirtyIds.put(c.getCaseId(), c);
+            }
+            cases.put(c.getCaseId(), c);
+            if (dirty.size() >= batchSize) {
+                batch = takeBatch();
+            }
+        }
+        //Don't hold the lock while waiting for room on the queue
+        if (replaced != null) {
+            write(replaced);
+        }
+        if (batch != null) {
+            write(batch);
+        }
+    }
+
+    /**
+     * Writes every modified case to storage, and waits for any batches
+     * being written on the write queue to finish.
+     */
+    public void flush() throws IOException {
+        Vector<Case> batch;
+        synchronized (this) {
+            batch = takeBatch();
+        }
+        if (batch != null) {
+            write(batch);
+        }
+        if (queue != null) {
+            queue.sync();
+        }
+    }
+
+    /**
+     * Drops all of the held cases without writing them, for when the
+     * restore they belong to is being rolled back. Batches which have
+     * already been handed to the write queue aren't affected.
+     */
+    public synchronized void discard() {
+        cases.clear();
+        dirty.removeAllElements();
+        dirtyIds.clear();
+    }
+    /**
+     * @return The number of times a case was committed to this cache
+     */
+    public synchronized int getCommitCount() {
+        return commits;
+    }
+
+    /**
+     * @return The number of case records actually written to storage
+     */
+    public synchronized int getWriteCount() {
+        return writes;
+    }
+
+    /**
+     * @return The number of cases looked up which weren't already held
+     */
+    public synchronized int getLookupCount() {
+        return lookups;
+    }
+
+    /**
+     * @return The number of those lookups which had to use the storage
+     * index, rather than being answered by id or by the Bloom filter
+     */
+    public synchronized int getIndexLookupCount() {
+        return indexLookups;
+    }
+
+    /**
+     * @return The time spent writing batches of cases, in milliseconds
+     */
+    public synchronized long getWriteTime() {
+        return writeTime;
+    }
+
+    /**
+     * Removes the modified cases from the cache, to be written.
+     *
+     * @return The cases to write, or null if there aren't any
+     */
+    private Vector<Case> takeBatch() {
+        if (dirty.size() == 0) {
+            return null;
+        }
+        Vector<Case> batch = dirty;
+        dirty = new Vector<Case>();
+        dirtyIds.clear();
+        //Once written, these will be read back by record id
+        cases.clear();
+        return batch;
+    }
+
+    private void write(final Vector<Case> batch) throws IOException {
+        WriteQueue.Batch write = new WriteQueue.Batch() {
+            public void write() throws StorageFullException {
+                writeBatch(batch);
+            }
+
+            public String describe() {
+                Vector<String> ids = new Vector<String>();
+                for (int i = 0; i < batch.size(); ++i) {
+                    ids.addElement(batch.elementAt(i).getCaseId());
+                }
+                return WriteQueue.describe("cases", ids);
+            }
+        };
+        if (queue == null) {
+            WriteQueue.write(write);
+        } else {
+            queue.submit(write);
+        }
+    }
+
+    private void writeBatch(Vector<Case> batch) throws StorageFullException {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < batch.size(); ++i) {
+            Case c = batch.elementAt(i);
+            boolean added = c.getID() == -1;
+            storage.write(c);
+            synchronized (this) {
+                writes++;
+            }
+            locator.setRecordId(c.getCaseId(), c.getID());
+            CaseStorageHooks.written(storage, c, added);
+        }
+        synchronized (this) {
+            writeTime += System.currentTimeMillis() - start;
+        }
+    }
+}
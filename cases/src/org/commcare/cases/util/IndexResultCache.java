@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.javarosa.core.services.storage.IStorageUtility;
+
+/**
+ * Caches the results of index lookups (the records with a given value for
+ * an index key) against one storage, so that the same predicates evaluated
+ * over and over (in menus, entity lists and forms) don't need to hit the
+ * storage index every time. Each tree root over a storage has its own
+ * cache, which goes away with it.
+ *
+ * Cached results are dropped the first time the cache is used after the
+ * storage's record count changes, or after anything reports a write with
+ * storageWritten(). The record count catches records added or removed by
+ * something that didn't report it, the report is still needed to catch
+ * records being changed in place.
+ *
+ * Cached results are shared, callers must not modify them.
+ */
+public class IndexResultCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /**
+     * The number of writes reported to any storage. Caches don't keep track
+     * of which storage a write was to, so that nothing needs to hold on to
+     * the storage (or the caches) to deliver it.
+     */
+    private static int writes;
+
+    private final IStorageUtility storage;
+
+    private final Hashtable<String, RecordBitmap> results = new Hashtable<String, RecordBitmap>();
+
+    //Insertion order, so the oldest results are dropped first when full
+    private final Vector<String> order = new Vector<String>();
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    //Bumped whenever the cached results are found to be stale
+    private int version;
+    private int seenWrites = -1;
+    private int seenRecords = -1;
+
+    private int hits;
+    private int misses;
+    private int invalidations;
+
+    /**
+     * @param storage The storage whose lookups are being cached
+     */
+    public IndexResultCache(IStorageUtility storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Signals that a storage has been written to, so any results read from
+     * it before now are stale.
+     */
+    public static synchronized void storageWritten() {
+        writes++;
+    }
+
+    private static synchronized int getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return The cached records for the provided index key and value, or
+     * null if they aren't cached (or have been written to since they were).
+     */
+    public synchronized RecordBitmap get(String key, Object value) {
+        expireIfStale();
+        RecordBitmap result = results.get(cacheKey(key, value));
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    /**
+     * @return The current version of the cached results. Read this before
+     * looking up a result to be put().
+     */
+    public synchronized int getVersion() {
+        expireIfStale();
+        return version;
+    }
+
+    /**
+     * Caches the records for the provided index key and value.
+     *
+     * @param readVersion The version of the cache when the result was read
+     *                    from storage. If the storage has been written to
+     *                    since, the result is not cached.
+     */
+    public synchronized void put(String key, Object value, RecordBitmap result, int readVersion) {
+        expireIfStale();
+        if (readVersion != version) {
+            return;
+        }
+        String cacheKey = cacheKey(key, value);
+        if (results.put(cacheKey, result) == null) {
+            order.addElement(cacheKey);
+        }
+        while (order.size() > maxEntries) {
+            results.remove(order.elementAt(0));
+            order.removeElementAt(0);
+        }
+    }
+
+    private void expireIfStale() {
+        int writes = getWrites();
+        int records = storage.getNumRecords();
+        if (writes != seenWrites || records != seenRecords) {
+            if (results.size() > 0) {
+                invalidations++;
+            }
+            results.clear();
+            order.removeAllElements();
+            seenWrites = writes;
+            seenRecords = records;
+            version++;
+        }
+    }
+
+    private static String cacheKey(String key, Object value) {
+        //The same literal can be looked up as different types ("5" vs 5),
+        //which storage indices treat as different values
+        String type = value == null ? "null" : value.getClass().getName();
+        return key + "|" + type + "|" + value;
+    }
+
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public synchronized int size() {
+        expireIfStale();
+        return results.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of times cached results were dropped because the
+     * storage was written to
+     */
+    public synchronized int getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return The fraction of lookups which were answered from the cache,
+     * between 0 and 1.
+     */
+    public synchronized double getHitRate() {
+        int total = hits + misses;
+        return total == 0 ? 0 : hits / (double)total;
+    }
+
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        invalidations = 0;
+    }
+}
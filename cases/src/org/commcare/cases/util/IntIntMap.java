@@ -0,0 +1,168 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+/**
+ * A compact, open-addressing map from int keys to int values.
+ *
+ * Used in place of a Hashtable<Integer, Integer> for mappings that contain an
+ * entry for every record in a storage (like record id to multiplicity), where
+ * the boxed keys, values and table entries dominate the heap and the GC load
+ * of loading large instances.
+ *
+ * Keys must not be Integer.MIN_VALUE, which is reserved to mark empty slots.
+ * Removal is not supported, since none of the mappings we build need it.
+ *
+ * This class is not thread safe, callers must guard concurrent writes.
+ */
+public class IntIntMap {
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    /**
+     * Returned from get() for keys with no mapping
+     */
+    public static final int NOT_FOUND = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+    private int threshold;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize The number of entries expected to be placed in the
+     *                     map. The table will be presized to hold that many
+     *                     entries without rehashing.
+     */
+    public IntIntMap(int expectedSize) {
+        int capacity = 16;
+        //keep the load factor below 1/2
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            keys[i] = EMPTY;
+        }
+        mask = capacity - 1;
+        threshold = capacity / 2;
+        size = 0;
+    }
+
+    private static int slot(int key, int mask) {
+        //Record ids are sequential, spread them so neighbours don't cluster
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Map the provided key to the provided value, replacing any existing
+     * mapping for the key.
+     */
+    public void put(int key, int value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key " + key + " is reserved and can't be stored in an IntIntMap");
+        }
+        int i = slot(key, mask);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size > threshold) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * @return The value mapped to the provided key, or NOT_FOUND if there is
+     * no mapping for the key.
+     */
+    public int get(int key) {
+        return get(key, NOT_FOUND);
+    }
+
+    /**
+     * @return The value mapped to the provided key, or the provided default
+     * if there is no mapping for the key.
+     */
+    public int get(int key, int defaultValue) {
+        if (key == EMPTY) {
+            return defaultValue;
+        }
+        int i = slot(key, mask);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        if (key == EMPTY) {
+            return false;
+        }
+        int i = slot(key, mask);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = EMPTY;
+        }
+        size = 0;
+    }
+
+    /**
+     * @return All of the keys currently in the map, in no particular order
+     */
+    public int[] keys() {
+        int[] ret = new int[size];
+        int j = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != EMPTY) {
+                ret[j++] = keys[i];
+            }
+        }
+        return ret;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import java.util.Vector;
+
+/**
+ * A compressed set of non-negative record ids, used to combine the results
+ * of indexed predicate lookups.
+ *
+ * Ids are grouped into chunks by their high 16 bits (Roaring style). Each
+ * chunk stores its low 16 bits either as a sorted array, when the chunk is
+ * sparse, or as a 65536 bit bitmap once it holds more than
+ * ARRAY_CONTAINER_MAX ids. That keeps small result sets small while making
+ * AND/OR between large ones (like every open case of a type) linear in the
+ * size of the sets rather than quadratic.
+ *
+ * Sets are immutable once they have been combined with another set: and(),
+ * or() and andNot() always return new sets.
+ */
+public class RecordBitmap {
+
+    /**
+     * The largest number of ids stored in a chunk as a sorted array. Past
+     * this, a bitmap (8KB) is smaller than the array.
+     */
+    static final int ARRAY_CONTAINER_MAX = 4096;
+
+    private static final int BITMAP_WORDS = 1024;
+
+    /**
+     * The low 16 bits of the ids in a chunk, as either a sorted array or a
+     * bitmap. Exactly one of values/words is set.
+     */
+    private static class Chunk {
+        char[] values;
+        long[] words;
+        int cardinality;
+
+        static Chunk array(int capacity) {
+            Chunk c = new Chunk();
+            c.values = new char[capacity];
+            return c;
+        }
+
+        static Chunk bitmap() {
+            Chunk c = new Chunk();
+            c.words = new long[BITMAP_WORDS];
+            return c;
+        }
+
+        boolean contains(char low) {
+            if (words != null) {
+                return (words[low >>> 6] & (1L << (low & 63))) != 0;
+            }
+            return binarySearch(values, cardinality, low) >= 0;
+        }
+
+        void add(char low) {
+            if (words != null) {
+                long bit = 1L << (low & 63);
+                if ((words[low >>> 6] & bit) == 0) {
+                    words[low >>> 6] |= bit;
+                    cardinality++;
+                }
+                return;
+            }
+            int pos = binarySearch(values, cardinality, low);
+            if (pos >= 0) {
+                return;
+            }
+            pos = -pos - 1;
+            if (cardinality == ARRAY_CONTAINER_MAX) {
+                toBitmap();
+                add(low);
+                return;
+            }
+            if (cardinality == values.length) {
+                char[] grown = new char[Math.min(ARRAY_CONTAINER_MAX, Math.max(4, values.length * 2))];
+                System.arraycopy(values, 0, grown, 0, cardinality);
+                values = grown;
+            }
+            System.arraycopy(values, pos, values, pos + 1, cardinality - pos);
+            values[pos] = low;
+            cardinality++;
+        }
+
+        void toBitmap() {
+            long[] bits = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; ++i) {
+                char v = values[i];
+                bits[v >>> 6] |= 1L << (v & 63);
+            }
+            words = bits;
+            values = null;
+        }
+
+        /**
+         * Shrinks a bitmap chunk back down to an array if it is sparse enough
+         */
+        Chunk compact() {
+            if (words == null || cardinality > ARRAY_CONTAINER_MAX) {
+                return this;
+            }
+            Chunk c = array(cardinality);
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                long word = words[w];
+                while (word != 0) {
+                    int bit = numberOfTrailingZeros(word);
+                    c.values[c.cardinality++] = (char)((w << 6) + bit);
+                    word &= word - 1;
+                }
+            }
+            return c;
+        }
+
+        Chunk and(Chunk other) {
+            if (words != null && other.words != null) {
+                Chunk c = bitmap();
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    c.words[w] = words[w] & other.words[w];
+                    c.cardinality += bitCount(c.words[w]);
+                }
+                return c.compact();
+            }
+            //At least one side is an array, walk the smaller one
+            Chunk small = words == null ? this : other;
+            Chunk large = small == this ? other : this;
+            Chunk c = array(Math.min(small.cardinality, large.cardinality));
+            for (int i = 0; i < small.cardinality; ++i) {
+                if (large.contains(small.values[i])) {
+                    c.values[c.cardinality++] = small.values[i];
+                }
+            }
+            return c;
+        }
+
+        Chunk andNot(Chunk other) {
+            if (words == null) {
+                Chunk c = array(cardinality);
+                for (int i = 0; i < cardinality; ++i) {
+                    if (!other.contains(values[i])) {
+                        c.values[c.cardinality++] = values[i];
+                    }
+                }
+                return c;
+            }
+            Chunk c = bitmap();
+            if (other.words != null) {
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    c.words[w] = words[w] & ~other.words[w];
+                    c.cardinality += bitCount(c.words[w]);
+                }
+            } else {
+                System.arraycopy(words, 0, c.words, 0, BITMAP_WORDS);
+                c.cardinality = cardinality;
+                for (int i = 0; i < other.cardinality; ++i) {
+                    char v = other.values[i];
+                    long bit = 1L << (v & 63);
+                    if ((c.words[v >>> 6] & bit) != 0) {
+                        c.words[v >>> 6] &= ~bit;
+                        c.cardinality--;
+                    }
+                }
+            }
+            return c.compact();
+        }
+
+        Chunk or(Chunk other) {
+            if (words == null && other.words == null && cardinality + other.cardinality <= ARRAY_CONTAINER_MAX) {
+                //merge the sorted arrays
+                Chunk c = array(cardinality + other.cardinality);
+                int i = 0;
+                int j = 0;
+                while (i < cardinality || j < other.cardinality) {
+                    char v;
+                    if (j == other.cardinality || (i < cardinality && values[i] < other.values[j])) {
+                        v = values[i++];
+                    } else if (i == cardinality || other.values[j] < values[i]) {
+                        v = other.values[j++];
+                    } else {
+                        v = values[i++];
+                        j++;
+                    }
+                    c.values[c.cardinality++] = v;
+                }
+                return c;
+            }
+            Chunk c = bitmap();
+            c.orInto(this);
+            c.orInto(other);
+            c.cardinality = 0;
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                c.cardinality += bitCount(c.words[w]);
+            }
+            return c.compact();
+        }
+
+        /**
+         * Sets the bits of the provided chunk in this bitmap chunk's words
+         * without maintaining the cardinality.
+         */
+        private void orInto(Chunk other) {
+            if (other.words != null) {
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    words[w] |= other.words[w];
+                }
+            } else {
+                for (int i = 0; i < other.cardinality; ++i) {
+                    char v = other.values[i];
+                    words[v >>> 6] |= 1L << (v & 63);
+                }
+            }
+        }
+
+        int copyTo(int high, int[] out, int offset) {
+            int base = high << 16;
+            if (words == null) {
+                for (int i = 0; i < cardinality; ++i) {
+                    out[offset++] = base | values[i];
+                }
+            } else {
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    long word = words[w];
+                    while (word != 0) {
+                        out[offset++] = base | ((w << 6) + numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+            return offset;
+        }
+    }
+
+    //Sorted high 16 bit keys, and the chunk for each
+    private int[] keys;
+    private Chunk[] chunks;
+    private int chunkCount;
+
+    public RecordBitmap() {
+        keys = new int[4];
+        chunks = new Chunk[4];
+    }
+
+    /**
+     * @return A set containing each of the record ids in the provided vector
+     */
+    public static RecordBitmap fromVector(Vector<Integer> ids) {
+        RecordBitmap set = new RecordBitmap();
+        for (int i = 0; i < ids.size(); ++i) {
+            set.add(ids.elementAt(i).intValue());
+        }
+        return set;
+    }
+
+    /**
+     * @return A set containing each of the record ids in the provided array
+     */
+    public static RecordBitmap fromArray(int[] ids) {
+        RecordBitmap set = new RecordBitmap();
+        for (int i = 0; i < ids.length; ++i) {
+            set.add(ids[i]);
+        }
+        return set;
+    }
+
+    /**
+     * Adds a record id to this set
+     *
+     * @param id A non-negative record id
+     */
+    public void add(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Record bitmaps can't hold negative ids: " + id);
+        }
+        int high = id >>> 16;
+        int pos = binarySearch(keys, chunkCount, high);
+        Chunk chunk;
+        if (pos >= 0) {
+            chunk = chunks[pos];
+        } else {
+            pos = -pos - 1;
+            chunk = Chunk.array(4);
+            insertChunk(pos, high, chunk);
+        }
+        chunk.add((char)(id & 0xFFFF));
+    }
+
+    public boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int pos = binarySearch(keys, chunkCount, id >>> 16);
+        return pos >= 0 && chunks[pos].contains((char)(id & 0xFFFF));
+    }
+
+    /**
+     * @return The number of ids in this set
+     */
+    public int cardinality() {
+        int total = 0;
+        for (int i = 0; i < chunkCount; ++i) {
+            total += chunks[i].cardinality;
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        for (int i = 0; i < chunkCount; ++i) {
+            if (chunks[i].cardinality > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return A new set with the ids which are in both this set and the
+     * provided set
+     */
+    public RecordBitmap and(RecordBitmap other) {
+        RecordBitmap result = new RecordBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < chunkCount && j < other.chunkCount) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Chunk c = chunks[i].and(other.chunks[j]);
+                if (c.cardinality > 0) {
+                    result.appendChunk(keys[i], c);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return A new set with the ids which are in either this set or the
+     * provided set
+     */
+    public RecordBitmap or(RecordBitmap other) {
+        RecordBitmap result = new RecordBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < chunkCount || j < other.chunkCount) {
+            if (j == other.chunkCount || (i < chunkCount && keys[i] < other.keys[j])) {
+                result.appendChunk(keys[i], chunks[i].or(Chunk.array(0)));
+                i++;
+            } else if (i == chunkCount || other.keys[j] < keys[i]) {
+                result.appendChunk(other.keys[j], other.chunks[j].or(Chunk.array(0)));
+                j++;
+            } else {
+                result.appendChunk(keys[i], chunks[i].or(other.chunks[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return A new set with the ids which are in this set but not in the
+     * provided set
+     */
+    public RecordBitmap andNot(RecordBitmap other) {
+        RecordBitmap result = new RecordBitmap();
+        int j = 0;
+        for (int i = 0; i < chunkCount; ++i) {
+            while (j < other.chunkCount && other.keys[j] < keys[i]) {
+                j++;
+            }
+            Chunk c;
+            if (j < other.chunkCount && other.keys[j] == keys[i]) {
+                c = chunks[i].andNot(other.chunks[j]);
+            } else {
+                c = chunks[i].or(Chunk.array(0));
+            }
+            if (c.cardinality > 0) {
+                result.appendChunk(keys[i], c);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The ids in this set, in ascending order
+     */
+    public int[] toArray() {
+        int[] out = new int[cardinality()];
+        int offset = 0;
+        for (int i = 0; i < chunkCount; ++i) {
+            offset = chunks[i].copyTo(keys[i], out, offset);
+        }
+        return out;
+    }
+
+    /**
+     * @return The ids in this set, in ascending order
+     */
+    public Vector<Integer> toVector() {
+        int[] ids = toArray();
+        Vector<Integer> ret = new Vector<Integer>(ids.length);
+        for (int i = 0; i < ids.length; ++i) {
+            ret.addElement(new Integer(ids[i]));
+        }
+        return ret;
+    }
+
+    private void appendChunk(int high, Chunk chunk) {
+        insertChunk(chunkCount, high, chunk);
+    }
+
+    private void insertChunk(int pos, int high, Chunk chunk) {
+        if (chunkCount == keys.length) {
+            int[] newKeys = new int[keys.length * 2];
+            Chunk[] newChunks = new Chunk[chunks.length * 2];
+            System.arraycopy(keys, 0, newKeys, 0, chunkCount);
+            System.arraycopy(chunks, 0, newChunks, 0, chunkCount);
+            keys = newKeys;
+            chunks = newChunks;
+        }
+        System.arraycopy(keys, pos, keys, pos + 1, chunkCount - pos);
+        System.arraycopy(chunks, pos, chunks, pos + 1, chunkCount - pos);
+        keys[pos] = high;
+        chunks[pos] = chunk;
+        chunkCount++;
+    }
+
+    private static int binarySearch(int[] a, int length, int key) {
+        int low = 0;
+        int high = length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] < key) {
+                low = mid + 1;
+            } else if (a[mid] > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static int binarySearch(char[] a, int length, char key) {
+        int low = 0;
+        int high = length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] < key) {
+                low = mid + 1;
+            } else if (a[mid] > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    //Long.bitCount and friends aren't available on all of our platforms
+
+    static int bitCount(long word) {
+        word = word - ((word >>> 1) & 0x5555555555555555L);
+        word = (word & 0x3333333333333333L) + ((word >>> 2) & 0x3333333333333333L);
+        word = (word + (word >>> 4)) & 0x0F0F0F0F0F0F0F0FL;
+        return (int)((word * 0x0101010101010101L) >>> 56);
+    }
+
+    static int numberOfTrailingZeros(long word) {
+        return bitCount((word & -word) - 1);
+    }
+}
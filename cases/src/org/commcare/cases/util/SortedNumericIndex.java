@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+/**
+ * An in-memory index of the numeric value of one storage key for every
+ * record in a storage, sorted by value, which can answer range comparisons
+ * (<, <=, >, >=) with a binary search instead of a scan.
+ *
+ * Values are compared the way XPath compares them, as numbers. Records whose
+ * value isn't numeric (NaN) never match any comparison, so they aren't kept.
+ */
+public class SortedNumericIndex {
+
+    public static final int LESS_THAN = 0;
+    public static final int LESS_THAN_OR_EQUAL = 1;
+    public static final int GREATER_THAN = 2;
+    public static final int GREATER_THAN_OR_EQUAL = 3;
+
+    private double[] values;
+    private int[] ids;
+    private int size;
+
+    public SortedNumericIndex() {
+        values = new double[16];
+        ids = new int[16];
+    }
+
+    /**
+     * Adds a record's value to the index. Must not be called after the
+     * index has been queried.
+     */
+    public void add(int recordId, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (size == values.length) {
+            double[] newValues = new double[size * 2];
+            int[] newIds = new int[size * 2];
+            System.arraycopy(values, 0, newValues, 0, size);
+            System.arraycopy(ids, 0, newIds, 0, size);
+            values = newValues;
+            ids = newIds;
+        }
+        values[size] = value;
+        ids[size] = recordId;
+        size++;
+    }
+
+    /**
+     * Sorts the index once all records have been added.
+     */
+    public void seal() {
+        //Heapsort, so we don't need any more memory than the index itself
+        for (int i = size / 2 - 1; i >= 0; --i) {
+            siftDown(i, size);
+        }
+        for (int end = size - 1; end > 0; --end) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int root, int end) {
+        while (true) {
+            int child = root * 2 + 1;
+            if (child >= end) {
+                return;
+            }
+            if (child + 1 < end && values[child + 1] > values[child]) {
+                child++;
+            }
+            if (values[root] >= values[child]) {
+                return;
+            }
+            swap(root, child);
+            root = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+    }
+
+    /**
+     * @return The first position whose value is not less than the bound
+     */
+    private int lowerBound(double bound) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < bound) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The first position whose value is greater than the bound
+     */
+    private int upperBound(double bound) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= bound) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param op    One of the comparison constants in this class
+     * @param bound The value the indexed values are compared against, as in
+     *              [indexed value] [op] [bound]
+     * @return The records whose value satisfies the comparison
+     */
+    public RecordBitmap getMatches(int op, double bound) {
+        RecordBitmap matches = new RecordBitmap();
+        if (Double.isNaN(bound)) {
+            return matches;
+        }
+        int start;
+        int end;
+        switch (op) {
+            case LESS_THAN:
+                start = 0;
+                end = lowerBound(bound);
+                break;
+            case LESS_THAN_OR_EQUAL:
+                start = 0;
+                end = upperBound(bound);
+                break;
+            case GREATER_THAN:
+                start = upperBound(bound);
+                end = size;
+                break;
+            case GREATER_THAN_OR_EQUAL:
+                start = lowerBound(bound);
+                end = size;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown comparison " + op);
+        }
+        for (int i = start; i < end; ++i) {
+            matches.add(ids[i]);
+        }
+        return matches;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -11,8 +11,12 @@ import java.util.Vector;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.instance.AbstractTreeElement;
 import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.model.utils.DateUtils;
+import org.javarosa.core.services.storage.IMetaData;
+import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.util.DataUtil;
+import org.javarosa.xpath.expr.XPathCmpExpr;
 import org.javarosa.xpath.expr.XPathEqExpr;
 import org.javarosa.xpath.expr.XPathExpression;
 import org.javarosa.xpath.expr.XPathFuncExpr;
@@ -24,7 +28,11 @@ import org.javarosa.xpath.expr.XPathPathExpr;
  */
 public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> implements AbstractTreeElement<T> {
 
-    protected Hashtable<Integer, Integer> objectIdMapping;
+    /**
+     * Maps the record id of each element in the backing storage to its
+     * multiplicity in this tree. Populated by initStorageCache()
+     */
+    protected IntIntMap objectIdMapping;
 
     protected abstract String getChildHintName();
 
@@ -32,10 +40,6 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
 
     protected abstract IStorageUtilityIndexed<?> getStorage();
 
-    protected Vector<Integer> union(Vector<Integer> selectedCases, Vector<Integer> cases) {
-        return DataUtil.union(selectedCases, cases);
-    }
-
     protected abstract void initStorageCache();
 
     protected String translateFilterExpr(XPathPathExpr expressionTemplate, XPathPathExpr matchingExpr, Hashtable<XPathPathExpr, String> indices) {
@@ -55,13 +59,228 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
         return null;
     }
 
+    /**
+     * A predicate on an indexed key other than a plain equality test. These
+     * are queued in the values vector passed to getNextIndexMatch() in place
+     * of the raw value an equality test would use.
+     */
+    protected static class IndexedPredicate {
+        /**
+         * [key] != value
+         */
+        public static final int NOT_EQUAL = -1;
+
+        /**
+         * [key] is any of the space separated values, as in selected()
+         */
+        public static final int ANY_OF = -2;
+
+        /**
+         * Either one of the above, or one of the SortedNumericIndex
+         * comparison constants
+         */
+        public final int op;
+
+        /**
+         * The value being compared against. A Double for numeric
+         * comparisons, and a Vector<String> for ANY_OF.
+         */
+        public final Object value;
+
+        public IndexedPredicate(int op, Object value) {
+            this.op = op;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The index keys which can be used to answer numeric range comparisons.
+     * Values for these keys are read with getIndexSortValue(), not from the
+     * storage's own indices, so this can include keys which storage doesn't
+     * index.
+     *
+     * @return A map from path expressions to the index key used for sorting
+     */
+    protected Hashtable<XPathPathExpr, String> getSortedIndexMap() {
+        return getStorageIndexMap();
+    }
+
+    /**
+     * @param record A record from this root's storage
+     * @param key    A key from the getSortedIndexMap()
+     * @return The value of the key for the record, as something that can be
+     * converted to a number by XPath
+     */
+    protected Object getIndexSortValue(Object record, String key) {
+        return ((IMetaData)record).getMetaData(key);
+    }
+
+    private Hashtable<String, SortedNumericIndex> sortedIndices = new Hashtable<String, SortedNumericIndex>();
+
+    /**
+     * Gets the sorted index of the values of a key, reading it from storage
+     * the first time a key is used. Like the rest of the tree, the index is
+     * kept until clearSortedIndices() is called, range comparisons are
+     * refused rather than rebuilding it once records have been added or
+     * removed.
+     */
+    protected synchronized SortedNumericIndex getSortedIndex(String key) {
+        SortedNumericIndex index = sortedIndices.get(key);
+        if (index == null) {
+            index = new SortedNumericIndex();
+            for (IStorageIterator i = getStorage().iterate(); i.hasMore(); ) {
+                int id = i.peekID();
+                Object value = getIndexSortValue(i.nextRecord(), key);
+                if (value != null) {
+                    index.add(id, XPathFuncExpr.toNumeric(value).doubleValue());
+                }
+            }
+            index.seal();
+            sortedIndices.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Drops the sorted indices, so they're read from storage again the next
+     * time a range comparison needs them.
+     */
+    protected synchronized void clearSortedIndices() {
+        sortedIndices.clear();
+    }
+
+    private IndexResultCache indexResultCache;
+
+    /**
+     * @return The cache of index lookup results for this root's storage
+     */
+    public synchronized IndexResultCache getIndexResultCache() {
+        if (indexResultCache == null) {
+            indexResultCache = new IndexResultCache(getStorage());
+        }
+        return indexResultCache;
+    }
+
+    /**
+     * Gets the records with the provided value for an index key, from the
+     * result cache if the lookup has been made before and storage hasn't
+     * changed since.
+     *
+     * @throws IllegalArgumentException If the storage doesn't index the key
+     */
+    protected RecordBitmap getIDsForValue(IStorageUtilityIndexed<?> storage, String key, Object value) throws IllegalArgumentException {
+        IndexResultCache cache = getIndexResultCache();
+        int version = cache.getVersion();
+        RecordBitmap result = cache.get(key, value);
+        if (result == null) {
+            result = RecordBitmap.fromVector(storage.getIDsForValue(key, value));
+            cache.put(key, value, result, version);
+        }
+        return result;
+    }
+
+    /**
+     * @return The record ids of every element in this tree root
+     */
+    protected RecordBitmap getAllRecordIds() {
+        initStorageCache();
+        return RecordBitmap.fromArray(objectIdMapping.keys());
+    }
+
+    /**
+     * Finds the index key for the provided expression, if it refers to an
+     * indexed path.
+     *
+     * @return The key to look up in storage, or null if the expression
+     * isn't one of the indexed paths
+     */
+    private String getIndexKey(XPathExpression expr, Hashtable<XPathPathExpr, String> indices) {
+        if (!(expr instanceof XPathPathExpr)) {
+            return null;
+        }
+        for (Enumeration en = indices.keys(); en.hasMoreElements(); ) {
+            XPathPathExpr template = (XPathPathExpr)en.nextElement();
+            if (template.matches(expr)) {
+                return translateFilterExpr(template, (XPathPathExpr)expr, indices);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether a predicate on an index key can be answered from storage's
+     * index without changing its result. Some keys are indexed with a blank
+     * value for records which don't have the key's path at all, and the
+     * index can't tell those records apart from ones where the path is
+     * present, so predicates which would treat the two differently (like !=)
+     * need to be evaluated against the elements themselves.
+     *
+     * @param key   An index key from the getStorageIndexMap()
+     * @param value The value an equality test is against, or an
+     *              IndexedPredicate
+     * @return False if the predicate shouldn't be answered from the index
+     */
+    protected boolean isAnswerableFromIndex(String key, Object value) {
+        return true;
+    }
+
+    /**
+     * Whether the elements of this root are every record in its storage.
+     * Roots over a subset of storage don't have a multiplicity for every
+     * record an index lookup can return, so they can't be batch fetched.
+     */
+    protected boolean containsAllRecords() {
+        return true;
+    }
+
+    /**
+     * Whether the mapping from record ids to multiplicities has every record
+     * this root should have as storage is now. != and range comparisons
+     * match against the mapped records (or the whole storage), so they
+     * can't be answered from an index once records have been added or
+     * removed since the mapping was built.
+     */
+    protected boolean isMappingCurrent() {
+        initStorageCache();
+        return containsAllRecords() && objectIdMapping.size() == getStorage().getNumRecords();
+    }
+
+    private static int flipComparison(int op) {
+        switch (op) {
+            case SortedNumericIndex.LESS_THAN:
+                return SortedNumericIndex.GREATER_THAN;
+            case SortedNumericIndex.LESS_THAN_OR_EQUAL:
+                return SortedNumericIndex.GREATER_THAN_OR_EQUAL;
+            case SortedNumericIndex.GREATER_THAN:
+                return SortedNumericIndex.LESS_THAN;
+            default:
+                return SortedNumericIndex.LESS_THAN_OR_EQUAL;
+        }
+    }
+
+    private static int toIndexComparison(int xpathOp) {
+        switch (xpathOp) {
+            case XPathCmpExpr.LT:
+                return SortedNumericIndex.LESS_THAN;
+            case XPathCmpExpr.LTE:
+                return SortedNumericIndex.LESS_THAN_OR_EQUAL;
+            case XPathCmpExpr.GT:
+                return SortedNumericIndex.GREATER_THAN;
+            default:
+                return SortedNumericIndex.GREATER_THAN_OR_EQUAL;
+        }
+    }
+
     public Vector<TreeReference> tryBatchChildFetch(String name, int mult, Vector<XPathExpression> predicates, EvaluationContext evalContext) {
         //Restrict what we'll handle for now. All we want to deal with is predicate expressions on case blocks
         if (!name.equals(getChildHintName()) || mult != TreeReference.INDEX_UNBOUND || predicates == null) {
             return null;
         }
+        if (!containsAllRecords()) {
+            return null;
+        }
 
-        Vector<Integer> selectedElements = null;
+        RecordBitmap selectedElements = null;
         Vector<Integer> toRemove = new Vector<Integer>();
 
         IStorageUtilityIndexed<?> storage = getStorage();
@@ -71,34 +290,64 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
         Vector<Object> valuesToFetch = new Vector<Object>();
 
         //First, go get a list of predicates that we _might_be able to evaluate
-        predicate:
         for (int i = 0; i < predicates.size(); ++i) {
             XPathExpression xpe = predicates.elementAt(i);
             //what we want here is a static evaluation of the expression to see if it consists of evaluating
             //something we index with something static.
+
+            //TODO: We need a way to determine that the values below do not also depend on anything in the current context, not
+            //sure the best way to do that....? Maybe tell the evaluation context to skip out here if it detects a request
+            //to resolve in a certain area?
             if (xpe instanceof XPathEqExpr) {
-                XPathExpression left = ((XPathEqExpr)xpe).a;
-                if (left instanceof XPathPathExpr) {
-                    for (Enumeration en = indices.keys(); en.hasMoreElements(); ) {
-                        XPathPathExpr expr = (XPathPathExpr)en.nextElement();
-                        if (expr.matches(left)) {
-                            String filterIndex = translateFilterExpr(expr, (XPathPathExpr)left, indices);
-
-                            //TODO: We need a way to determine that this value does not also depend on anything in the current context, not
-                            //sure the best way to do that....? Maybe tell the evaluation context to skip out here if it detects a request
-                            //to resolve in a certain area?
-                            Object o = XPathFuncExpr.unpack(((XPathEqExpr)xpe).b.eval(evalContext));
+                XPathEqExpr eq = (XPathEqExpr)xpe;
+                String filterIndex = getIndexKey(eq.a, indices);
+                if (filterIndex != null) {
+                    Object o = XPathFuncExpr.unpack(eq.b.eval(evalContext));
+                    Object value = eq.equal ? o : new IndexedPredicate(IndexedPredicate.NOT_EQUAL, o);
+
+                    if (isAnswerableFromIndex(filterIndex, value) && (eq.equal || isMappingCurrent())) {
+                        keysToFetch.addElement(filterIndex);
+                        valuesToFetch.addElement(value);
+                        continue;
+                    }
+                }
+            } else if (xpe instanceof XPathCmpExpr) {
+                XPathCmpExpr cmp = (XPathCmpExpr)xpe;
+                Hashtable<XPathPathExpr, String> sortedIndices = getSortedIndexMap();
+                int op = toIndexComparison(cmp.op);
+                XPathExpression valueExpr = cmp.b;
+                String filterIndex = getIndexKey(cmp.a, sortedIndices);
+                if (filterIndex == null) {
+                    //Maybe it's written the other way around (30 < @value)
+                    filterIndex = getIndexKey(cmp.b, sortedIndices);
+                    valueExpr = cmp.a;
+                    op = flipComparison(op);
+                }
+                if (filterIndex != null && isMappingCurrent()) {
+                    Double bound = XPathFuncExpr.toNumeric(XPathFuncExpr.unpack(valueExpr.eval(evalContext)));
 
+                    keysToFetch.addElement(filterIndex);
+                    valuesToFetch.addElement(new IndexedPredicate(op, bound));
+                    continue;
+                }
+            } else if (xpe instanceof XPathFuncExpr) {
+                XPathFuncExpr func = (XPathFuncExpr)xpe;
+                if ("selected".equals(func.id.toString()) && func.args.length == 2) {
+                    String filterIndex = getIndexKey(func.args[0], indices);
+                    if (filterIndex != null) {
+                        String choices = XPathFuncExpr.toString(XPathFuncExpr.unpack(func.args[1].eval(evalContext)));
+                        IndexedPredicate value = new IndexedPredicate(IndexedPredicate.ANY_OF, DateUtils.split(choices.trim(), " ", true));
+
+                        if (isAnswerableFromIndex(filterIndex, value)) {
                             keysToFetch.addElement(filterIndex);
-                            valuesToFetch.addElement(o);
-
-                            continue predicate;
+                            valuesToFetch.addElement(value);
+                            continue;
                         }
                     }
                 }
             }
-            //There's only one case where we want to keep moving along, and we would have triggered it if it were going to happen,
-            //so otherwise, just get outta here.
+            //The predicate wasn't one of the forms we can answer from an index. Anything after it
+            //needs to be evaluated against its results, so just get outta here.
             break;
         }
 
@@ -114,29 +363,28 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
 
             //Some storage roots will collect common iterative mappings ahead of time,
             //go check whether this key is loaded into cached memory.
-            Hashtable<String, Integer> keyMapping = getKeyMapping(key);
+            Hashtable<String, Integer> keyMapping = o instanceof IndexedPredicate ? null : getKeyMapping(key);
             if (keyMapping != null) {
                 //If so, go fetch that element's record id and skip the storage
                 //lookup
                 Integer uniqueValue = keyMapping.get(XPathFuncExpr.toString(o));
+                RecordBitmap matches = new RecordBitmap();
+                if (uniqueValue != null) {
+                    matches.add(uniqueValue.intValue());
+                }
 
                 //Merge into the selected elements
-                if (uniqueValue != null) {
-                    if (selectedElements == null) {
-                        selectedElements = new Vector<Integer>();
-                        selectedElements.addElement(uniqueValue);
-                    } else {
-                        if (!selectedElements.contains(uniqueValue)) {
-                            selectedElements.addElement(uniqueValue);
-                        }
-                    }
+                if (selectedElements == null) {
+                    selectedElements = matches;
+                } else {
+                    selectedElements = selectedElements.and(matches);
                 }
 
                 //Ok, so we've successfully processed this predicate.
                 keysToFetch.removeElementAt(0);
                 valuesToFetch.removeElementAt(0);
             } else {
-                Vector<Integer> cases = null;
+                RecordBitmap cases = null;
                 try {
                     //Get all of the cases that meet this criteria
                     cases = this.getNextIndexMatch(keysToFetch, valuesToFetch, storage);
@@ -151,11 +399,12 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
                     }
                 }
 
-                // merge with any other sets of cases
+                // merge with any other sets of cases. Each predicate further
+                // restricts the set, so this is an intersection
                 if (selectedElements == null) {
                     selectedElements = cases;
                 } else {
-                    selectedElements = union(selectedElements, cases);
+                    selectedElements = selectedElements.and(cases);
                 }
             }
 
@@ -182,12 +431,18 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
 
         initStorageCache();
 
-        Vector<TreeReference> filtered = new Vector<TreeReference>();
-        for (Integer i : selectedElements) {
+        int[] selected = selectedElements.toArray();
+        Vector<TreeReference> filtered = new Vector<TreeReference>(selected.length);
+        for (int i = 0; i < selected.length; ++i) {
             //this takes _waaaaay_ too long, we need to refactor this
+            int realIndex = objectIdMapping.get(selected[i]);
+            if (realIndex == IntIntMap.NOT_FOUND) {
+                //Written to storage after this tree's elements were read, so
+                //it isn't one of them (and NOT_FOUND would be an unbound
+                //multiplicity, matching all of them)
+                continue;
+            }
             TreeReference ref = base.clone();
-            Integer realIndexInt = objectIdMapping.get(i);
-            int realIndex = realIndexInt.intValue();
             ref.add(this.getChildHintName(), realIndex);
             filtered.addElement(ref);
         }
@@ -206,16 +461,21 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
      * @param keys    A vector of pending index keys to be evaluated. The keys should be processed left->right
      * @param values  A vector of the values associated with the indexed keys to be evaluated
      * @param storage The storage to be processed
-     * @return A Vector of integer ID's for records in the provided storage which match one or more of the keys provided.
+     * @return The set of ID's for records in the provided storage which match one or more of the keys provided.
      * @throws IllegalArgumentException If there was no index matching possible on the provided key and the key/value vectors
      *                                  won't be shortened.
      */
-    protected Vector<Integer> getNextIndexMatch(Vector<String> keys, Vector<Object> values, IStorageUtilityIndexed<?> storage) throws IllegalArgumentException {
+    protected RecordBitmap getNextIndexMatch(Vector<String> keys, Vector<Object> values, IStorageUtilityIndexed<?> storage) throws IllegalArgumentException {
         String key = keys.elementAt(0);
         Object o = values.elementAt(0);
 
         //Get matches if it works
-        Vector<Integer> returnValue = storage.getIDsForValue(key, o);
+        RecordBitmap returnValue;
+        if (o instanceof IndexedPredicate) {
+            returnValue = getIndexedPredicateMatch(key, (IndexedPredicate)o, storage);
+        } else {
+            returnValue = getIDsForValue(storage, key, o);
+        }
 
         //If we processed this, pop it off the queue
         keys.removeElementAt(0);
@@ -223,4 +483,26 @@ public abstract class StorageBackedTreeRoot<T extends AbstractTreeElement> imple
 
         return returnValue;
     }
+
+    /**
+     * Gets the records which match a predicate other than a plain equality
+     * test.
+     *
+     * @throws IllegalArgumentException If the storage doesn't index the key
+     */
+    protected RecordBitmap getIndexedPredicateMatch(String key, IndexedPredicate predicate, IStorageUtilityIndexed<?> storage) throws IllegalArgumentException {
+        if (predicate.op == IndexedPredicate.NOT_EQUAL) {
+            RecordBitmap equal = getIDsForValue(storage, key, predicate.value);
+            return getAllRecordIds().andNot(equal);
+        } else if (predicate.op == IndexedPredicate.ANY_OF) {
+            RecordBitmap matches = new RecordBitmap();
+            Vector<String> choices = (Vector<String>)predicate.value;
+            for (int i = 0; i < choices.size(); ++i) {
+                matches = matches.or(getIDsForValue(storage, key, choices.elementAt(i)));
+            }
+            return matches;
+        } else {
+            return getSortedIndex(key).getMatches(predicate.op, ((Double)predicate.value).doubleValue());
+        }
+    }
 }
@@ -0,0 +1,202 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import java.util.Hashtable;
+
+import org.javarosa.core.util.DataUtil;
+
+/**
+ * A bounded record cache which is safe to hydrate from multiple threads at
+ * once.
+ *
+ * Records are split across a fixed number of stripes by record id, each of
+ * which is an independent LRU cache with its own lock, so lookups for
+ * different records rarely contend. Building a missing record happens
+ * outside of any lock, and each record is built by at most one thread at a
+ * time: other threads asking for a record which is already being built
+ * wait for that build to finish and share its result.
+ */
+public class StripedRecordCache<T> {
+
+    /**
+     * Builds the value for a record which isn't in the cache
+     */
+    public interface RecordBuilder<T> {
+        T build(int recordId);
+    }
+
+    public static final int DEFAULT_STRIPES = 16;
+
+    private final BoundedRecordCache<T>[] stripes;
+
+    //The records currently being built in each stripe. Guarded by the
+    //stripe's cache.
+    private final Hashtable<Integer, Integer>[] pending;
+
+    /**
+     * @param maxEntries The maximum number of records to keep in the cache
+     */
+    public StripedRecordCache(int maxEntries) {
+        this(maxEntries, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxEntries  The maximum number of records to keep in the cache
+     * @param stripeCount The number of independently locked segments to
+     *                    split records across
+     */
+    public StripedRecordCache(int maxEntries, int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Record cache needs at least one stripe");
+        }
+        stripes = new BoundedRecordCache[stripeCount];
+        pending = new Hashtable[stripeCount];
+        int perStripe = entriesPerStripe(maxEntries, stripeCount);
+        for (int i = 0; i < stripeCount; ++i) {
+            stripes[i] = new BoundedRecordCache<T>(perStripe);
+            pending[i] = new Hashtable<Integer, Integer>();
+        }
+    }
+
+    private static int entriesPerStripe(int maxEntries, int stripeCount) {
+        return Math.max(1, (maxEntries + stripeCount - 1) / stripeCount);
+    }
+
+    private int stripeIndex(int recordId) {
+        int h = recordId * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & 0x7FFFFFFF) % stripes.length;
+    }
+
+    /**
+     * Retrieves the value for a record, building it with the provided
+     * builder if it isn't cached. If another thread is already building
+     * the record, waits for that thread's result instead of building it
+     * again.
+     *
+     * If the builder throws, the exception is passed on to the caller and
+     * any waiting threads will retry the build themselves.
+     */
+    public T retrieve(int recordId, RecordBuilder<T> builder) {
+        int index = stripeIndex(recordId);
+        BoundedRecordCache<T> stripe = stripes[index];
+        Hashtable<Integer, Integer> building = pending[index];
+        Integer key = DataUtil.integer(recordId);
+
+        synchronized (stripe) {
+            T value = stripe.retrieve(recordId);
+            if (value != null) {
+                return value;
+            }
+            while (building.containsKey(key)) {
+                try {
+                    stripe.wait();
+                } catch (InterruptedException e) {
+                    //Keep waiting, the builder will always notify us
+                }
+                value = stripe.peek(recordId);
+                if (value != null) {
+                    return value;
+                }
+            }
+            building.put(key, key);
+        }
+
+        T built = null;
+        try {
+            built = builder.build(recordId);
+            return built;
+        } finally {
+            synchronized (stripe) {
+                building.remove(key);
+                if (built != null) {
+                    stripe.register(recordId, built);
+                }
+                stripe.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return The cached value for the record, or null if it isn't cached.
+     * Does not build anything.
+     */
+    public T retrieve(int recordId) {
+        return stripes[stripeIndex(recordId)].retrieve(recordId);
+    }
+
+    public boolean isCached(int recordId) {
+        return stripes[stripeIndex(recordId)].isCached(recordId);
+    }
+
+    public void register(int recordId, T value) {
+        stripes[stripeIndex(recordId)].register(recordId, value);
+    }
+
+    public void remove(int recordId) {
+        stripes[stripeIndex(recordId)].remove(recordId);
+    }
+
+    /**
+     * Changes the maximum number of records held across all stripes.
+     */
+    public void setMaxEntries(int maxEntries) {
+        int perStripe = entriesPerStripe(maxEntries, stripes.length);
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i].setMaxEntries(perStripe);
+        }
+    }
+
+    public int getMaxEntries() {
+        int total = 0;
+        for (int i = 0; i < stripes.length; ++i) {
+            total += stripes[i].getMaxEntries();
+        }
+        return total;
+    }
+
+    public int size() {
+        int total = 0;
+        for (int i = 0; i < stripes.length; ++i) {
+            total += stripes[i].size();
+        }
+        return total;
+    }
+
+    public void clear() {
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i].clear();
+        }
+    }
+
+    public int getHits() {
+        int total = 0;
+        for (int i = 0; i < stripes.length; ++i) {
+            total += stripes[i].getHits();
+        }
+        return total;
+    }
+
+    public int getMisses() {
+        int total = 0;
+        for (int i = 0; i < stripes.length; ++i) {
+            total += stripes[i].getMisses();
+        }
+        return total;
+    }
+
+    public int getEvictions() {
+        int total = 0;
+        for (int i = 0; i < stripes.length; ++i) {
+            total += stripes[i].getEvictions();
+        }
+        return total;
+    }
+
+    public void resetStatistics() {
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i].resetStatistics();
+        }
+    }
+}
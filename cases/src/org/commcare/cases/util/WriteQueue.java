@@ -0,0 +1,343 @@
+/**
+ *
+ */
+package org.commcare.cases.util;
+
+import java.io.IOException;
+import java.util.Vector;
+
+import org.javarosa.core.services.storage.StorageFullException;
+
+/**
+ * Hands storage operations from the threads parsing a restore to the thread
+ * which owns the restore's transaction (the thread the queue was created
+ * on), so that every read and write of storage happens on that thread and
+ * inside its transaction, while parsing carries on elsewhere.
+ *
+ * Batches of writes are queued (up to a set number) and performed in the
+ * order they were submitted. Tasks, which read storage or otherwise need the
+ * owner, are queued behind them and their callers wait for the result, so a
+ * task sees every batch submitted before it. The owner performs queued
+ * operations while it's in serve(). When the owner itself submits a batch or
+ * runs a task, anything already queued is performed first and then the new
+ * operation is performed straight away.
+ *
+ * If a batch fails, any batches still queued are dropped, since the restore
+ * they belong to has failed, and an IOException naming the records of the
+ * batch which failed is thrown from every later call to submit() or sync().
+ */
+public class WriteQueue {
+
+    /**
+     * The default number of batches which can be waiting to be written
+     */
+    public static final int DEFAULT_CAPACITY = 2;
+
+    /**
+     * A set of writes to perform on the owner
+     */
+    public interface Batch {
+        void write() throws StorageFullException;
+
+        /**
+         * @return A description of the records the batch writes, for
+         * reporting a failure to write them
+         */
+        String describe();
+    }
+
+    /**
+     * Work which needs to be done on the owner, whose result the caller
+     * waits for
+     */
+    public interface Task {
+        Object run();
+    }
+
+    private static class Operation {
+        final Batch batch;
+        final Task task;
+
+        boolean done;
+        Object result;
+        RuntimeException error;
+
+        Operation(Batch batch, Task task) {
+            this.batch = batch;
+            this.task = task;
+        }
+    }
+
+    private final Thread owner;
+    private final int capacity;
+    private final Vector<Operation> pending = new Vector<Operation>();
+    private int pendingBatches;
+
+    private boolean stopped;
+    private boolean closed;
+
+    private IOException failure;
+
+    public WriteQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a queue owned by the calling thread.
+     *
+     * @param capacity The number of batches which can be waiting to be
+     *                 written before submit() blocks
+     */
+    public WriteQueue(int capacity) {
+        this.owner = Thread.currentThread();
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return True if the calling thread is the queue's owner
+     */
+    public boolean isOwner() {
+        return Thread.currentThread() == owner;
+    }
+
+    /**
+     * Writes a batch on the owner after the operations already queued,
+     * waiting for room if the queue is full. On the owner, the batch is
+     * written before this returns.
+     *
+     * @throws IOException If this or an earlier batch failed to write
+     */
+    public void submit(Batch batch) throws IOException {
+        if (isOwner()) {
+            drain();
+            checkFailure();
+            perform(new Operation(batch, null));
+            checkFailure();
+            return;
+        }
+        synchronized (this) {
+            while (pendingBatches >= capacity && failure == null && !closed) {
+                waitForChange();
+            }
+            checkFailure();
+            checkOpen();
+            pending.addElement(new Operation(batch, null));
+            pendingBatches++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Runs a task on the owner after the operations already queued, and
+     * waits for it to finish. A runtime exception thrown by the task is
+     * thrown from here.
+     *
+     * @return The task's result
+     */
+    public Object run(Task task) {
+        Operation operation = new Operation(null, task);
+        if (isOwner()) {
+            drain();
+            perform(operation);
+        } else {
+            synchronized (this) {
+                checkOpen();
+                pending.addElement(operation);
+                notifyAll();
+                while (!operation.done) {
+                    waitForChange();
+                }
+            }
+        }
+        if (operation.error != null) {
+            throw operation.error;
+        }
+        return operation.result;
+    }
+
+    /**
+     * Waits until every batch submitted so far has been written.
+     *
+     * @throws IOException If any batch failed to write
+     */
+    public void sync() throws IOException {
+        run(new Task() {
+            public Object run() {
+                return null;
+            }
+        });
+        synchronized (this) {
+            checkFailure();
+        }
+    }
+
+    /**
+     * Performs queued operations on the owner until stopServing() has been
+     * called and nothing is left in the queue. Failures are left for the
+     * threads which queued the operations to report.
+     */
+    public void serve() {
+        if (!isOwner()) {
+            throw new IllegalStateException("Only the thread which owns a write queue can serve it");
+        }
+        while (true) {
+            Operation operation;
+            synchronized (this) {
+                while (pending.size() == 0 && !stopped) {
+                    waitForChange();
+                }
+                if (pending.size() == 0) {
+                    stopped = false;
+                    return;
+                }
+                operation = take();
+            }
+            perform(operation);
+        }
+    }
+
+    /**
+     * Lets serve() return once the queue is empty. Called by the threads
+     * handing work to the owner once they're done.
+     */
+    public synchronized void stopServing() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Drops any batches which haven't been written and stops accepting new
+     * operations. Tasks which are still waiting fail with an
+     * IllegalStateException.
+     */
+    public synchronized void close() {
+        closed = true;
+        stopped = true;
+        while (pending.size() > 0) {
+            complete(take(), null, new IllegalStateException("Write queue was closed"));
+        }
+        notifyAll();
+    }
+
+    /**
+     * Writes a batch on the calling thread, reporting a failure the same way
+     * a queue does. For callers which don't have a queue.
+     */
+    public static void write(Batch batch) throws IOException {
+        try {
+            batch.write();
+        } catch (StorageFullException e) {
+            throw failure(batch, e);
+        } catch (RuntimeException e) {
+            throw failure(batch, e);
+        }
+    }
+
+    /**
+     * Describes a set of records by their ids, listing the first few.
+     *
+     * @param type The kind of record, IE: "cases"
+     */
+    public static String describe(String type, Vector<String> ids) {
+        StringBuffer description = new StringBuffer();
+        description.append(ids.size()).append(' ').append(type).append(" [");
+        for (int i = 0; i < ids.size() && i < 5; ++i) {
+            description.append(i == 0 ? "" : ", ").append(ids.elementAt(i));
+        }
+        description.append(ids.size() > 5 ? ", ...]" : "]");
+        return description.toString();
+    }
+
+    private void drain() {
+        while (true) {
+            Operation operation;
+            synchronized (this) {
+                if (pending.size() == 0) {
+                    return;
+                }
+                operation = take();
+            }
+            perform(operation);
+        }
+    }
+
+    private Operation take() {
+        Operation operation = pending.elementAt(0);
+        pending.removeElementAt(0);
+        if (operation.batch != null) {
+            pendingBatches--;
+        }
+        notifyAll();
+        return operation;
+    }
+
+    private void perform(Operation operation) {
+        if (operation.batch != null) {
+            try {
+                write(operation.batch);
+            } catch (IOException e) {
+                fail(e);
+            }
+            return;
+        }
+        Object result = null;
+        RuntimeException error = null;
+        try {
+            result = operation.task.run();
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        synchronized (this) {
+            complete(operation, result, error);
+        }
+    }
+
+    private void complete(Operation operation, Object result, RuntimeException error) {
+        if (operation.batch != null) {
+            return;
+        }
+        operation.result = result;
+        operation.error = error;
+        operation.done = true;
+        notifyAll();
+    }
+
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        //Drop the batches behind it, but tasks still need to run for their
+        //callers
+        for (int i = pending.size() - 1; i >= 0; --i) {
+            if (pending.elementAt(i).batch != null) {
+                pending.removeElementAt(i);
+                pendingBatches--;
+            }
+        }
+        notifyAll();
+    }
+
+    private static IOException failure(Batch batch, Exception e) {
+        return new IOException("Couldn't write " + batch.describe() + ": " + e.toString());
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Write queue has already been closed");
+        }
+    }
+
+    private void waitForChange() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            //Just check the condition again
+        }
+    }
+}
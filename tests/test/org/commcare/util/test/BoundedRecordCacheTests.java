@@ -0,0 +1,67 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.commcare.cases.util.BoundedRecordCache;
+import org.junit.Test;
+
+
+public class BoundedRecordCacheTests {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        BoundedRecordCache<String> cache = new BoundedRecordCache<String>(3);
+        cache.register(1, "one");
+        cache.register(2, "two");
+        cache.register(3, "three");
+
+        //touch 1 so 2 is now the eldest
+        assertEquals("one", cache.retrieve(1));
+
+        cache.register(4, "four");
+        assertEquals(3, cache.size());
+        assertFalse(cache.isCached(2));
+        assertTrue(cache.isCached(1));
+        assertTrue(cache.isCached(3));
+        assertTrue(cache.isCached(4));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testStatistics() {
+        BoundedRecordCache<String> cache = new BoundedRecordCache<String>(2);
+        assertNull(cache.retrieve(1));
+        cache.register(1, "one");
+        assertEquals("one", cache.retrieve(1));
+        assertEquals("one", cache.retrieve(1));
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+
+        cache.resetStatistics();
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testShrinkBudget() {
+        BoundedRecordCache<String> cache = new BoundedRecordCache<String>(100);
+        for(int i = 0 ; i < 100; ++i) {
+            cache.register(i, String.valueOf(i));
+        }
+        cache.setMaxEntries(10);
+        assertEquals(10, cache.size());
+        assertEquals(90, cache.getEvictions());
+        for(int i = 90 ; i < 100; ++i) {
+            assertTrue(cache.isCached(i));
+        }
+
+        cache.remove(95);
+        assertFalse(cache.isCached(95));
+        assertEquals(9, cache.size());
+    }
+}
@@ -0,0 +1,100 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Vector;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseIndex;
+import org.commcare.cases.util.CaseIndexGraph;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CaseIndexGraphTests {
+
+    DummyIndexedStorageUtility<Case> storage;
+    Case household, mother, child, sibling, visit;
+
+    @Before
+    public void setUp() throws Exception {
+        CaseIndexGraph.invalidate();
+        storage = new DummyIndexedStorageUtility<Case>(Case.class);
+
+        household = makeCase("household");
+        mother = makeCase("mother");
+        mother.setIndex(new CaseIndex("parent", "household", "household"));
+        child = makeCase("child");
+        child.setIndex(new CaseIndex("parent", "mother", "mother"));
+        sibling = makeCase("sibling");
+        sibling.setIndex(new CaseIndex("parent", "mother", "mother"));
+        visit = makeCase("visit");
+        visit.setIndex(new CaseIndex("host", "mother", "mother", CaseIndex.RELATIONSHIP_EXTENSION));
+
+        storage.write(household);
+        storage.write(mother);
+        storage.write(child);
+        storage.write(sibling);
+        storage.write(visit);
+    }
+
+    private Case makeCase(String id) {
+        Case c = new Case(id, "type");
+        c.setCaseId(id);
+        return c;
+    }
+
+    @Test
+    public void testLookups() {
+        CaseIndexGraph graph = CaseIndexGraph.getGraph(storage);
+
+        assertEquals(mother.getID(), graph.getRecordId("mother"));
+        assertEquals(-1, graph.getRecordId("nobody"));
+
+        assertArrayEquals(new int[] {child.getID(), sibling.getID()}, graph.getIndexingRecords("parent", "mother").toArray());
+        assertEquals(2, graph.countIndexing("parent", "mother"));
+        assertArrayEquals(new int[] {visit.getID()}, graph.getRelatedRecords(CaseIndex.RELATIONSHIP_EXTENSION, "mother").toArray());
+        assertArrayEquals(new int[] {child.getID(), sibling.getID()}, graph.getRelatedRecords(CaseIndex.RELATIONSHIP_CHILD, "mother").toArray());
+
+        assertArrayEquals(new int[] {sibling.getID()}, graph.getSiblingRecords("child", "parent").toArray());
+
+        Vector<String> ancestors = graph.getAncestors("child", "parent");
+        assertEquals(2, ancestors.size());
+        assertEquals("mother", ancestors.elementAt(0));
+        assertEquals("household", ancestors.elementAt(1));
+        assertNull(graph.getTarget("household", "parent"));
+    }
+
+    @Test
+    public void testMaintainedOnWrite() throws Exception {
+        CaseIndexGraph graph = CaseIndexGraph.getGraph(storage);
+
+        //Move the child to a new parent, which isn't in storage yet
+        child.setIndex(new CaseIndex("parent", "mother", "other"));
+        storage.write(child);
+        CaseIndexGraph.caseWritten(storage, child);
+
+        assertArrayEquals(new int[] {sibling.getID()}, graph.getIndexingRecords("parent", "mother").toArray());
+        assertArrayEquals(new int[] {child.getID()}, graph.getIndexingRecords("parent", "other").toArray());
+        assertEquals(-1, graph.getRecordId("other"));
+
+        Case other = makeCase("other");
+        storage.write(other);
+        CaseIndexGraph.caseWritten(storage, other);
+        assertEquals(other.getID(), graph.getRecordId("other"));
+
+        sibling.removeIndex("parent");
+        storage.write(sibling);
+        CaseIndexGraph.caseWritten(storage, sibling);
+        assertEquals(0, graph.countIndexing("parent", "mother"));
+
+        //A fresh build should agree with the maintained graph
+        CaseIndexGraph.invalidate();
+        CaseIndexGraph rebuilt = CaseIndexGraph.getGraph(storage);
+        assertArrayEquals(graph.getIndexingRecords("parent", "other").toArray(), rebuilt.getIndexingRecords("parent", "other").toArray());
+        assertEquals(0, rebuilt.countIndexing("parent", "mother"));
+    }
+}
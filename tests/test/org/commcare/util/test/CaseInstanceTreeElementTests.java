@@ -0,0 +1,100 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Vector;
+
+import org.commcare.cases.instance.CaseInstanceTreeElement;
+import org.commcare.cases.model.Case;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CaseInstanceTreeElementTests {
+
+    DummyIndexedStorageUtility<Case> storage;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = new DummyIndexedStorageUtility<Case>(Case.class);
+        storage.write(makeCase("mother1", "mother"));
+        storage.write(makeCase("child1", "child"));
+        storage.write(makeCase("mother2", "mother"));
+        storage.write(makeCase("child2", "child"));
+    }
+
+    private Case makeCase(String id, String type) {
+        Case c = new Case(id, type);
+        c.setCaseId(id);
+        return c;
+    }
+
+    private Vector<XPathExpression> predicates(String expr) throws Exception {
+        Vector<XPathExpression> predicates = new Vector<XPathExpression>();
+        predicates.addElement(XPathParseTool.parseXPath(expr));
+        return predicates;
+    }
+
+    @Test
+    public void testSubsetIsNotBatchFetched() throws Exception {
+        CaseInstanceTreeElement casedb = new CaseInstanceTreeElement(new TreeElement("data"), storage, new String[] {"child1", "mother2"});
+        Vector<XPathExpression> predicates = predicates("@case_type = 'mother'");
+
+        //The subset doesn't map record ids to multiplicities, so the
+        //predicate has to be left for the elements themselves
+        assertNull(casedb.tryBatchChildFetch("case", TreeReference.INDEX_UNBOUND, predicates, new EvaluationContext(null)));
+        assertEquals(1, predicates.size());
+    }
+
+    @Test
+    public void testRecordsWrittenLaterAreNotMatched() throws Exception {
+        CaseInstanceTreeElement casedb = new CaseInstanceTreeElement(new TreeElement("data"), storage, false);
+        assertEquals(4, casedb.getNumChildren());
+        casedb.getChildAt(0);
+
+        storage.write(makeCase("mother3", "mother"));
+
+        Vector<XPathExpression> predicates = predicates("@case_type = 'mother'");
+        Vector<TreeReference> matches = casedb.tryBatchChildFetch("case", TreeReference.INDEX_UNBOUND, predicates, new EvaluationContext(null));
+        assertEquals(0, predicates.size());
+        assertEquals(2, matches.size());
+        for (int i = 0; i < matches.size(); ++i) {
+            int mult = matches.elementAt(i).getMultLast();
+            assertTrue(mult == 0 || mult == 2);
+        }
+    }
+
+    @Test
+    public void testComplementsNeedCurrentMapping() throws Exception {
+        CaseInstanceTreeElement casedb = new CaseInstanceTreeElement(new TreeElement("data"), storage, false);
+        casedb.getChildAt(0);
+
+        Vector<XPathExpression> predicates = predicates("@case_type != 'mother'");
+        assertEquals(2, casedb.tryBatchChildFetch("case", TreeReference.INDEX_UNBOUND, predicates, new EvaluationContext(null)).size());
+
+        storage.write(makeCase("child3", "child"));
+
+        //The new case isn't in the mapping that != is answered against
+        predicates = predicates("@case_type != 'mother'");
+        assertNull(casedb.tryBatchChildFetch("case", TreeReference.INDEX_UNBOUND, predicates, new EvaluationContext(null)));
+        assertEquals(1, predicates.size());
+    }
+
+    @Test
+    public void testChildrenWithNameShareElements() {
+        CaseInstanceTreeElement casedb = new CaseInstanceTreeElement(new TreeElement("data"), storage, false);
+        Vector children = casedb.getChildrenWithName("case");
+        assertEquals(4, children.size());
+        for (int i = 0; i < children.size(); ++i) {
+            assertTrue(children.elementAt(i) == casedb.getChildAt(i));
+        }
+    }
+}
@@ -542,6 +542,42 @@ public class CasePurgeFilterTests {
         }
     }
 
+    @Test
+    public void testScaledChains() throws Exception {
+        //The liveDependency and deadness scenarios, repeated over 100k cases
+        int groups = 25000;
+        int[] toRemove = new int[groups * 2];
+        for (int i = 0; i < groups; ++i) {
+            Case liveParent = scaledCase("lp" + i, true);
+            Case liveChild = scaledCase("lc" + i, false);
+            liveChild.setIndex("parent", "parent", liveParent.getCaseId());
+            Case deadParent = scaledCase("dp" + i, true);
+            Case deadChild = scaledCase("dc" + i, true);
+            deadChild.setIndex("parent", "parent", deadParent.getCaseId());
+
+            storage.write(liveParent);
+            storage.write(liveChild);
+            storage.write(deadParent);
+            storage.write(deadChild);
+            toRemove[i * 2] = deadParent.getID();
+            toRemove[i * 2 + 1] = deadChild.getID();
+        }
+
+        Vector<Integer> removed = storage.removeAll(new CasePurgeFilter(storage));
+        testRemovedClaim(removed, toRemove);
+        if (storage.getNumRecords() != groups * 2) {
+            fail("Live cases were purged");
+        }
+    }
+
+    private Case scaledCase(String id, boolean closed) {
+        Case c = new Case(id, "type");
+        c.setCaseId(id);
+        c.setUserId(owner);
+        c.setClosed(closed);
+        return c;
+    }
+
     public void testOutcome(IStorageUtility<Case> storage, int[] p, int[] g) {
         Vector<Integer> present = atv(p);
         Vector<Integer> gone = atv(g);
@@ -0,0 +1,145 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.Vector;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseIndex;
+import org.commcare.cases.util.CasePurgeFilter;
+import org.commcare.cases.util.CasePurgeState;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CasePurgeStateTests {
+
+    DummyIndexedStorageUtility<Case> storage;
+
+    @Before
+    public void setUp() {
+        CasePurgeState.attachPersistence(null);
+        storage = new DummyIndexedStorageUtility<Case>(Case.class);
+    }
+
+    private Case makeCase(String id) throws Exception {
+        Case c = new Case(id, "type");
+        c.setCaseId(id);
+        c.setUserId("owner");
+        storage.write(c);
+        return c;
+    }
+
+    private void write(Case c) throws Exception {
+        storage.write(c);
+        CasePurgeState.caseWritten(storage, c);
+    }
+
+    /**
+     * Checks that the state agrees with evaluating the whole casedb from
+     * scratch
+     */
+    private void assertMatchesFullPurge() {
+        Vector<String> incremental = CasePurgeState.getState(storage, null).getPurgeFilter().getCaseIdsToRemove();
+        Vector<String> full = new CasePurgeFilter(storage).getCaseIdsToRemove();
+        assertEquals(full.size(), incremental.size());
+        for (int i = 0; i < full.size(); ++i) {
+            assertEquals(true, incremental.contains(full.elementAt(i)));
+        }
+    }
+
+    @Test
+    public void testChangesAreReevaluated() throws Exception {
+        Case a = makeCase("a");
+        Case b = makeCase("b");
+        Case e = makeCase("e");
+        a.setClosed(true);
+        write(a);
+        e.setIndex(new CaseIndex("host", "a", "a", CaseIndex.RELATIONSHIP_EXTENSION));
+        write(e);
+        b.setIndex(new CaseIndex("parent", "a", "a", CaseIndex.RELATIONSHIP_CHILD));
+        write(b);
+        assertMatchesFullPurge();
+        assertEquals(0, CasePurgeState.getState(storage, null).getPurgeFilter().getCaseIdsToRemove().size());
+
+        //Closing the only open child lets the parent and its extension go
+        b.setClosed(true);
+        write(b);
+        assertMatchesFullPurge();
+        assertEquals(3, CasePurgeState.getState(storage, null).getPurgeFilter().getCaseIdsToRemove().size());
+
+        //Reopening it brings them back
+        b.setClosed(false);
+        write(b);
+        assertMatchesFullPurge();
+    }
+
+    @Test
+    public void testUnreportedWritesRebuild() throws Exception {
+        Case a = makeCase("a");
+        a.setClosed(true);
+        storage.write(a);
+        assertEquals(1, CasePurgeState.getState(storage, null).getPurgeFilter().getCaseIdsToRemove().size());
+
+        //Nothing tells the state about this case, which keeps the first alive
+        Case b = new Case("b", "type");
+        b.setCaseId("b");
+        b.setUserId("owner");
+        b.setIndex(new CaseIndex("parent", "type", "a", CaseIndex.RELATIONSHIP_CHILD));
+        storage.write(b);
+
+        assertMatchesFullPurge();
+        assertEquals(0, CasePurgeState.getState(storage, null).getPurgeFilter().getCaseIdsToRemove().size());
+    }
+
+    @Test
+    public void testRandomChanges() throws Exception {
+        Random random = new Random(42);
+        Vector<Case> cases = new Vector<Case>();
+        for (int i = 0; i < 200; ++i) {
+            cases.addElement(makeCase("c" + i));
+        }
+        for (int i = 0; i < cases.size(); ++i) {
+            randomize(cases.elementAt(i), cases, random);
+            storage.write(cases.elementAt(i));
+        }
+        assertMatchesFullPurge();
+
+        for (int round = 0; round < 20; ++round) {
+            for (int i = 0; i < 10; ++i) {
+                Case c = cases.elementAt(random.nextInt(cases.size()));
+                randomize(c, cases, random);
+                write(c);
+            }
+            assertMatchesFullPurge();
+
+            if (round % 5 == 4) {
+                CasePurgeFilter filter = CasePurgeState.getState(storage, null).getPurgeFilter();
+                Vector<Integer> removed = storage.removeAll(filter);
+                CasePurgeState.casesPurged(storage, removed);
+                for (int i = cases.size() - 1; i >= 0; --i) {
+                    if (filter.getCaseIdsToRemove().contains(cases.elementAt(i).getCaseId())) {
+                        cases.removeElementAt(i);
+                    }
+                }
+                assertMatchesFullPurge();
+            }
+        }
+    }
+
+    private void randomize(Case c, Vector<Case> cases, Random random) {
+        c.setClosed(random.nextInt(3) == 0);
+        c.removeIndex("parent");
+        c.removeIndex("host");
+        if (random.nextInt(2) == 0) {
+            String target = cases.elementAt(random.nextInt(cases.size())).getCaseId();
+            c.setIndex(new CaseIndex("parent", "type", target, CaseIndex.RELATIONSHIP_CHILD));
+        }
+        if (random.nextInt(3) == 0) {
+            String target = cases.elementAt(random.nextInt(cases.size())).getCaseId();
+            c.setIndex(new CaseIndex("host", "type", target, CaseIndex.RELATIONSHIP_EXTENSION));
+        }
+    }
+}
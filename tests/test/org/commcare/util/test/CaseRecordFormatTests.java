@@ -0,0 +1,130 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseIndex;
+import org.commcare.cases.model.CaseRecordFormat;
+import org.javarosa.core.util.OrderedHashtable;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapList;
+import org.javarosa.core.util.externalizable.ExtWrapMapPoly;
+import org.javarosa.core.util.externalizable.ExtWrapNullable;
+import org.junit.Test;
+
+
+public class CaseRecordFormatTests {
+
+    private Case makeCase() {
+        Case c = new Case("Jane", "mother");
+        c.setCaseId("abc");
+        c.setID(7);
+        c.setUserId("user");
+        c.setProperty("edd", "2014-01-01");
+        c.setProperty("village", "north");
+        c.setIndex(new CaseIndex("parent", "household", "def"));
+        return c;
+    }
+
+    private static byte[] serialize(Case c) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        c.writeExternal(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static Case deserialize(byte[] record) throws Exception {
+        Case c = new Case();
+        c.readExternal(new DataInputStream(new ByteArrayInputStream(record)), ExtUtil.defaultPrototypes());
+        return c;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Case c = makeCase();
+        byte[] record = serialize(c);
+        assertTrue(CaseRecordFormat.isCurrentFormat(record));
+
+        Case read = deserialize(record);
+        assertEquals("abc", read.getCaseId());
+        assertEquals("Jane", read.getName());
+        assertEquals("mother", read.getTypeId());
+        assertEquals(7, read.getID());
+        assertEquals(c.getProperties(), read.getProperties());
+        assertEquals("def", read.getIndices().elementAt(0).getTarget());
+    }
+
+    @Test
+    public void testSingleFieldReads() throws Exception {
+        byte[] record = serialize(makeCase());
+
+        assertEquals("abc", CaseRecordFormat.readField(record, CaseRecordFormat.FIELD_CASE_ID, ExtUtil.defaultPrototypes()));
+        assertEquals(Boolean.FALSE, CaseRecordFormat.readField(record, CaseRecordFormat.FIELD_CLOSED, ExtUtil.defaultPrototypes()));
+        assertEquals("north", CaseRecordFormat.readProperty(record, "village", ExtUtil.defaultPrototypes()));
+        assertNull(CaseRecordFormat.readProperty(record, "missing", ExtUtil.defaultPrototypes()));
+
+        Hashtable<String, String> keys = new Hashtable<String, String>();
+        keys.put("edd", "edd");
+        Case partial = CaseRecordFormat.readPartial(record, keys, false, ExtUtil.defaultPrototypes());
+        assertEquals("Jane", partial.getName());
+        assertEquals("2014-01-01", partial.getPropertyString("edd"));
+        assertNull(partial.getProperty("village"));
+    }
+
+    @Test
+    public void testLegacyRecords() throws Exception {
+        Case c = makeCase();
+
+        //The sequential format records were written in before offsets
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ExtUtil.writeString(out, c.getTypeId());
+        ExtUtil.writeString(out, c.getCaseId());
+        ExtUtil.writeString(out, c.getName());
+        ExtUtil.writeBool(out, c.isClosed());
+        ExtUtil.write(out, new ExtWrapNullable(c.getDateOpened()));
+        ExtUtil.writeNumeric(out, c.getID());
+        ExtUtil.write(out, new ExtWrapList(c.getIndices()));
+        ExtUtil.write(out, new ExtWrapMapPoly(c.getProperties()));
+        byte[] legacy = bytes.toByteArray();
+
+        assertFalse(CaseRecordFormat.isCurrentFormat(legacy));
+        Case read = deserialize(legacy);
+        assertEquals("abc", read.getCaseId());
+        assertEquals("mother", read.getTypeId());
+        assertEquals(c.getProperties(), read.getProperties());
+
+        //Writing it back out migrates it
+        assertTrue(CaseRecordFormat.isCurrentFormat(serialize(read)));
+    }
+
+    @Test
+    public void testPropertyOrderKept() throws Exception {
+        Case c = makeCase();
+        c.setProperty("zone", "3");
+        c.setProperty("age", "22");
+        Case read = deserialize(serialize(c));
+        assertTrue(read.getProperties() instanceof OrderedHashtable);
+
+        Case partial = CaseRecordFormat.readPartial(serialize(read), new Hashtable<String, String>(), false, ExtUtil.defaultPrototypes());
+        assertTrue(partial.getProperties() instanceof OrderedHashtable);
+
+        //Whatever order the first write used is kept from then on
+        Enumeration first = read.getProperties().keys();
+        Enumeration second = deserialize(serialize(read)).getProperties().keys();
+        while (first.hasMoreElements()) {
+            assertEquals(first.nextElement(), second.nextElement());
+        }
+        assertFalse(second.hasMoreElements());
+    }
+}
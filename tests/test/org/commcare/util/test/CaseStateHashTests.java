@@ -0,0 +1,62 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.util.CaseDBUtils;
+import org.commcare.cases.util.CaseStateHash;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CaseStateHashTests {
+
+    DummyIndexedStorageUtility<Case> storage;
+
+    @Before
+    public void setUp() {
+        CaseStateHash.attachPersistence(null);
+        storage = new DummyIndexedStorageUtility<Case>(Case.class);
+    }
+
+    private Case add(String id) throws Exception {
+        Case c = new Case(id, "type");
+        c.setCaseId(id);
+        storage.write(c);
+        CaseStateHash.caseAdded(storage, id);
+        return c;
+    }
+
+    @Test
+    public void testMatchesFullRecompute() throws Exception {
+        assertEquals("", CaseDBUtils.computeHash(storage));
+
+        Case one = add("one");
+        add("two");
+        add("three");
+        assertEquals(CaseDBUtils.recomputeHash(storage), CaseDBUtils.computeHash(storage));
+
+        //Updates to existing cases don't change the hash
+        String before = CaseDBUtils.computeHash(storage);
+        one.setName("renamed");
+        storage.write(one);
+        assertEquals(before, CaseDBUtils.computeHash(storage));
+
+        storage.remove(one.getID());
+        CaseStateHash.caseRemoved(storage, "one");
+        assertEquals(CaseDBUtils.recomputeHash(storage), CaseDBUtils.computeHash(storage));
+        assertEquals(2, CaseStateHash.getHash(storage).getCount());
+    }
+
+    @Test
+    public void testEmptyAfterRemovingEverything() throws Exception {
+        Case only = add("only");
+        assertTrue(CaseDBUtils.computeHash(storage).length() > 0);
+
+        storage.remove(only.getID());
+        CaseStateHash.caseRemoved(storage, "only");
+        assertEquals("", CaseDBUtils.computeHash(storage));
+    }
+}
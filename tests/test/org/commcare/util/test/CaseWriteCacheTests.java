@@ -0,0 +1,234 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Vector;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.util.BloomFilter;
+import org.commcare.cases.util.CaseLocator;
+import org.commcare.cases.util.CaseWriteCache;
+import org.commcare.cases.util.WriteQueue;
+import org.javarosa.core.services.storage.StorageFullException;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CaseWriteCacheTests {
+
+    DummyIndexedStorageUtility<Case> storage;
+
+    @Before
+    public void setUp() {
+        storage = new DummyIndexedStorageUtility<Case>(Case.class);
+    }
+
+    private static Case makeCase(String id) {
+        Case c = new Case(id, "type");
+        c.setCaseId(id);
+        return c;
+    }
+
+    @Test
+    public void testRepeatedUpdatesCoalesce() throws Exception {
+        CaseWriteCache cache = new CaseWriteCache(storage);
+        Case created = makeCase("a");
+        cache.modified(created);
+
+        //Later blocks for the same case see the pending copy
+        for (int i = 0; i < 10; ++i) {
+            Case c = cache.retrieve("a");
+            assertSame(created, c);
+            c.setClosed(i % 2 == 0);
+            cache.modified(c);
+        }
+        assertEquals(0, storage.getNumRecords());
+
+        cache.flush();
+        assertEquals(1, storage.getNumRecords());
+        assertEquals(11, cache.getCommitCount());
+        assertEquals(1, cache.getWriteCount());
+        assertEquals(false, storage.read(created.getID()).isClosed());
+    }
+
+    @Test
+    public void testBatchesAreWrittenAtTheLimit() throws Exception {
+        CaseWriteCache cache = new CaseWriteCache(storage, 3);
+        cache.modified(makeCase("a"));
+        cache.modified(makeCase("b"));
+        assertEquals(0, storage.getNumRecords());
+        cache.modified(makeCase("c"));
+        assertEquals(3, storage.getNumRecords());
+
+        //Once written, cases are read back from storage
+        Case b = cache.retrieve("b");
+        assertEquals("b", b.getCaseId());
+        assertNull(cache.retrieve("missing"));
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        CaseWriteCache cache = new CaseWriteCache(storage);
+        cache.modified(makeCase("a"));
+        cache.discard();
+        cache.flush();
+        assertEquals(0, storage.getNumRecords());
+        assertNull(cache.retrieve("a"));
+    }
+
+    @Test
+    public void testNewCasesSkipTheIndex() throws Exception {
+        CaseWriteCache cache = new CaseWriteCache(storage, 100);
+
+        //An initial restore, where every create is for a new case
+        for (int i = 0; i < 5000; ++i) {
+            assertNull(cache.retrieve("case" + i));
+            cache.modified(makeCase("case" + i));
+        }
+        //Updates to them after their batch is written are read by id
+        for (int i = 0; i < 5000; i += 7) {
+            assertEquals("case" + i, cache.retrieve("case" + i).getCaseId());
+        }
+        cache.flush();
+        assertEquals(5000, storage.getNumRecords());
+        assertEquals(0, cache.getIndexLookupCount());
+
+        //A later restore doesn't read the id of every case in storage, so it
+        //uses the index for any case it hasn't seen
+        CaseWriteCache next = new CaseWriteCache(storage);
+        assertEquals("case42", next.retrieve("case42").getCaseId());
+        for (int i = 0; i < 1000; ++i) {
+            assertNull(next.retrieve("new" + i));
+        }
+        assertEquals(1001, next.getIndexLookupCount());
+
+        //Unless most of its cases are expected to be new, in which case it
+        //only uses the index for cases it might have
+        CaseWriteCache recovery = new CaseWriteCache(storage, 100, new CaseLocator(storage, true));
+        assertEquals("case42", recovery.retrieve("case42").getCaseId());
+        assertEquals(1, recovery.getIndexLookupCount());
+        for (int i = 0; i < 1000; ++i) {
+            assertNull(recovery.retrieve("new" + i));
+        }
+        assertTrue(recovery.getIndexLookupCount() - 1 < 50);
+    }
+
+    @Test
+    public void testBloomFilter() {
+        BloomFilter filter = new BloomFilter(1000);
+        for (int i = 0; i < 1000; ++i) {
+            filter.add("id" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; ++i) {
+            assertTrue(filter.mightContain("id" + i));
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 50);
+    }
+
+    private static WriteQueue.Batch makeBatch(final String id, final boolean fails, final Vector<String> written) {
+        return new WriteQueue.Batch() {
+            public void write() throws StorageFullException {
+                if (fails) {
+                    throw new StorageFullException();
+                }
+                written.addElement(id);
+            }
+
+            public String describe() {
+                Vector<String> ids = new Vector<String>();
+                ids.addElement(id);
+                return WriteQueue.describe("cases", ids);
+            }
+        };
+    }
+
+    @Test
+    public void testPipelinedWrites() throws Exception {
+        final OwnedStorage owned = new OwnedStorage();
+        final WriteQueue queue = new WriteQueue(1);
+        final CaseWriteCache cache = new CaseWriteCache(owned, 10);
+        cache.setWriteQueue(queue);
+        final Exception[] failure = new Exception[1];
+
+        //Parse on another thread, as a restore does, while this one (which
+        //owns storage) serves the queue
+        Thread parsing = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 1000; ++i) {
+                        cache.modified(makeCase("case" + i));
+                        //Update a case from a batch which may not have been
+                        //written yet
+                        Case earlier = cache.retrieve("case" + (i / 2));
+                        earlier.setUserId("owner" + i);
+                        cache.modified(earlier);
+                    }
+                    cache.flush();
+                } catch (Exception e) {
+                    failure[0] = e;
+                } finally {
+                    queue.stopServing();
+                }
+            }
+        });
+        parsing.start();
+        queue.serve();
+        parsing.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        assertEquals(0, owned.getForeignAccesses());
+        assertEquals(1000, owned.getNumRecords());
+        Case last = cache.retrieve("case499");
+        assertEquals("owner999", last.getUserId());
+        queue.close();
+    }
+
+    @Test
+    public void testPipelinedFailure() throws Exception {
+        final WriteQueue queue = new WriteQueue(2);
+        final Vector<String> written = new Vector<String>();
+        final Exception[] failure = new Exception[1];
+
+        Thread parsing = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    queue.submit(makeBatch("full", true, written));
+                    queue.submit(makeBatch("after", false, written));
+                    queue.sync();
+                } catch (Exception e) {
+                    failure[0] = e;
+                } finally {
+                    queue.stopServing();
+                }
+            }
+        });
+        parsing.start();
+        queue.serve();
+        parsing.join();
+
+        //The failure names the batch which failed, and nothing queued behind
+        //it is written
+        assertTrue(failure[0] instanceof IOException);
+        assertTrue(failure[0].getMessage().indexOf("1 cases [full]") != -1);
+        assertEquals(0, written.size());
+        try {
+            queue.sync();
+            fail("Write failure wasn't reported");
+        } catch (IOException e) {
+            //expected
+        }
+        queue.close();
+    }
+}
@@ -0,0 +1,141 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+
+import org.commcare.cases.fixture.FixtureItem;
+import org.commcare.cases.fixture.instance.FixtureInstanceTreeElement;
+import org.commcare.data.xml.DataModelPullParser;
+import org.commcare.data.xml.TransactionParser;
+import org.commcare.data.xml.TransactionParserFactory;
+import org.commcare.xml.FixtureXmlParser;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Before;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+
+
+public class FixtureStorageTests {
+
+    DummyIndexedStorageUtility<FormInstance> fixtures;
+    DummyIndexedStorageUtility<FixtureItem> items;
+
+    @Before
+    public void setUp() {
+        fixtures = new DummyIndexedStorageUtility<FormInstance>(FormInstance.class);
+        items = new DummyIndexedStorageUtility<FixtureItem>(FixtureItem.class);
+    }
+
+    private void restore(String fixtureId, int products) throws Exception {
+        restore(fixtureId, products, false);
+    }
+
+    /**
+     * @param truncated True if the payload should be cut off part way
+     *                  through the fixture's items
+     */
+    private void restore(String fixtureId, int products, boolean truncated) throws Exception {
+        StringBuffer payload = new StringBuffer("<OpenRosaResponse>");
+        payload.append("<fixture id=\"" + fixtureId + "\" user_id=\"u1\"><products version=\"" + products + "\">");
+        for (int i = 0; i < products; ++i) {
+            payload.append("<product id=\"p" + i + "\"><name>Product " + i + "</name></product>");
+        }
+        if (truncated) {
+            payload.append("<product id=\"p");
+        } else {
+            payload.append("<meta/></products></fixture></OpenRosaResponse>");
+        }
+
+        TransactionParserFactory factory = new TransactionParserFactory() {
+            public TransactionParser getParser(String name, String namespace, KXmlParser parser) {
+                if (!"fixture".equals(name)) {
+                    return null;
+                }
+                return new FixtureXmlParser(parser) {
+                    public IStorageUtilityIndexed<FormInstance> storage() {
+                        return fixtures;
+                    }
+
+                    public IStorageUtilityIndexed<FixtureItem> itemStorage() {
+                        return items;
+                    }
+                };
+            }
+        };
+        new DataModelPullParser(new ByteArrayInputStream(payload.toString().getBytes()), factory).parse();
+    }
+
+    private FixtureInstanceTreeElement load(String fixtureId) {
+        FormInstance descriptor = fixtures.getRecordForValue(FormInstance.META_ID, fixtureId);
+        return new FixtureInstanceTreeElement(null, descriptor.getRoot(), descriptor.getID(), items);
+    }
+
+    @Test
+    public void testItemsStoredSeparately() throws Exception {
+        restore("products", 20);
+
+        assertEquals(1, fixtures.getNumRecords());
+        assertEquals(21, items.getNumRecords());
+        FormInstance descriptor = fixtures.getRecordForValue(FormInstance.META_ID, "products");
+        assertEquals(0, descriptor.getRoot().getNumChildren());
+        assertEquals("u1", descriptor.schema);
+
+        FixtureInstanceTreeElement root = load("products");
+        assertEquals("products", root.getName());
+        assertEquals("20", root.getAttributeValue(null, "version"));
+        assertEquals(21, root.getNumChildren());
+        assertEquals(20, root.getChildMultiplicity("product"));
+        assertEquals(1, root.getChildMultiplicity("meta"));
+
+        //Items come back in document order
+        for (int i = 0; i < 20; ++i) {
+            TreeElement product = root.getChild("product", i);
+            assertEquals(i, product.getMult());
+            assertEquals("p" + i, product.getAttributeValue(null, "id"));
+            assertEquals("Product " + i, product.getChild("name", 0).getValue().uncast().getString());
+        }
+        assertEquals("meta", root.getChildAt(20).getName());
+        assertNull(root.getChild("product", 20));
+    }
+
+    @Test
+    public void testOverwriteReplacesItems() throws Exception {
+        restore("products", 20);
+        restore("other", 3);
+        restore("products", 5);
+
+        assertEquals(2, fixtures.getNumRecords());
+        assertEquals(6 + 4, items.getNumRecords());
+
+        FixtureInstanceTreeElement root = load("products");
+        assertEquals("5", root.getAttributeValue(null, "version"));
+        assertEquals(5, root.getChildMultiplicity("product"));
+        assertEquals("p4", root.getChild("product", 4).getAttributeValue(null, "id"));
+
+        assertEquals(3, load("other").getChildMultiplicity("product"));
+    }
+
+    @Test
+    public void testFailedOverwriteKeepsFixture() throws Exception {
+        restore("products", 20);
+        try {
+            restore("products", 5, true);
+            fail("Truncated fixture was parsed");
+        } catch (Exception e) {
+            //expected
+        }
+
+        //Neither the new descriptor nor any of its items are left behind
+        assertEquals(1, fixtures.getNumRecords());
+        assertEquals(21, items.getNumRecords());
+        FixtureInstanceTreeElement root = load("products");
+        assertEquals("20", root.getAttributeValue(null, "version"));
+        assertEquals(20, root.getChildMultiplicity("product"));
+    }
+}
@@ -0,0 +1,76 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.util.IndexResultCache;
+import org.commcare.cases.util.RecordBitmap;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Test;
+
+
+public class IndexResultCacheTests {
+
+    @Test
+    public void testHitsAndInvalidation() {
+        DummyIndexedStorageUtility<Case> storage = new DummyIndexedStorageUtility<Case>(Case.class);
+        IndexResultCache cache = new IndexResultCache(storage);
+        RecordBitmap open = RecordBitmap.fromArray(new int[] {1, 2, 3});
+
+        assertNull(cache.get("case-status", "open"));
+        cache.put("case-status", "open", open, cache.getVersion());
+        assertTrue(open == cache.get("case-status", "open"));
+
+        //Different types are different lookups
+        assertNull(cache.get("case-status", new Double(1)));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        IndexResultCache.storageWritten();
+        assertNull(cache.get("case-status", "open"));
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void testStaleResultsAreNotCached() {
+        DummyIndexedStorageUtility<Case> storage = new DummyIndexedStorageUtility<Case>(Case.class);
+        IndexResultCache cache = new IndexResultCache(storage);
+
+        int version = cache.getVersion();
+        //Storage changes between reading the result and caching it
+        IndexResultCache.storageWritten();
+        cache.put("case-type", "mother", new RecordBitmap(), version);
+
+        assertNull(cache.get("case-type", "mother"));
+    }
+
+    @Test
+    public void testUnreportedWritesInvalidate() throws Exception {
+        DummyIndexedStorageUtility<Case> storage = new DummyIndexedStorageUtility<Case>(Case.class);
+        IndexResultCache cache = new IndexResultCache(storage);
+        cache.put("case-type", "mother", new RecordBitmap(), cache.getVersion());
+
+        //Nothing reports this write, but it changes the record count
+        Case c = new Case("mother", "mother");
+        c.setCaseId("mother");
+        storage.write(c);
+
+        assertNull(cache.get("case-type", "mother"));
+    }
+
+    @Test
+    public void testBounded() {
+        DummyIndexedStorageUtility<Case> storage = new DummyIndexedStorageUtility<Case>(Case.class);
+        IndexResultCache cache = new IndexResultCache(storage);
+        cache.setMaxEntries(10);
+        for(int i = 0 ; i < 50; ++i) {
+            cache.put("case-id", "case" + i, new RecordBitmap(), cache.getVersion());
+        }
+        assertEquals(10, cache.size());
+        assertNull(cache.get("case-id", "case0"));
+        assertTrue(cache.get("case-id", "case49") != null);
+    }
+}
@@ -0,0 +1,57 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.commcare.cases.util.IntIntMap;
+import org.junit.Test;
+
+
+public class IntIntMapTests {
+
+    @Test
+    public void testPutAndGet() {
+        IntIntMap map = new IntIntMap();
+        for(int i = 0 ; i < 10000; ++i) {
+            map.put(i * 3, i);
+        }
+        assertEquals(10000, map.size());
+        for(int i = 0 ; i < 10000; ++i) {
+            assertEquals(i, map.get(i * 3));
+            assertFalse(map.containsKey(i * 3 + 1));
+        }
+        assertEquals(IntIntMap.NOT_FOUND, map.get(1));
+        assertEquals(-5, map.get(1, -5));
+    }
+
+    @Test
+    public void testOverwrite() {
+        IntIntMap map = new IntIntMap(2);
+        map.put(7, 1);
+        map.put(7, 2);
+        map.put(-7, 3);
+        assertEquals(2, map.size());
+        assertEquals(2, map.get(7));
+        assertEquals(3, map.get(-7));
+        assertTrue(map.containsKey(-7));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(7));
+    }
+
+    @Test
+    public void testKeys() {
+        IntIntMap map = new IntIntMap();
+        int[] expected = new int[] {5, 100, 42, 0};
+        for(int i = 0 ; i < expected.length; ++i) {
+            map.put(expected[i], i);
+        }
+        int[] keys = map.keys();
+        assertEquals(expected.length, keys.length);
+        for(int i = 0 ; i < keys.length; ++i) {
+            assertEquals(keys[i], expected[map.get(keys[i])]);
+        }
+    }
+}
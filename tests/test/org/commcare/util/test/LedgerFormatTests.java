@@ -0,0 +1,110 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Hashtable;
+
+import org.commcare.cases.ledger.Ledger;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapMap;
+import org.junit.Test;
+
+
+public class LedgerFormatTests {
+
+    /**
+     * Writes a ledger the way it was written when its sections were held
+     * in nested Hashtables.
+     */
+    private static byte[] writeLegacy(int recordId, String entityId, Hashtable<String, Hashtable<String, Integer>> sections) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ExtUtil.writeNumeric(out, recordId);
+        ExtUtil.writeString(out, entityId);
+        ExtUtil.write(out, new ExtWrapMap(sections, new ExtWrapMap(String.class, Integer.class)));
+        return bytes.toByteArray();
+    }
+
+    private static Hashtable<String, Hashtable<String, Integer>> readLegacy(byte[] record) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        ExtUtil.readInt(in);
+        ExtUtil.readString(in);
+        return (Hashtable<String, Hashtable<String, Integer>>)ExtUtil.read(in, new ExtWrapMap(String.class, new ExtWrapMap(String.class, Integer.class)));
+    }
+
+    private static byte[] serialize(Ledger ledger) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ledger.writeExternal(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static Ledger deserialize(byte[] record) throws Exception {
+        Ledger ledger = new Ledger();
+        ledger.readExternal(new DataInputStream(new ByteArrayInputStream(record)), ExtUtil.defaultPrototypes());
+        return ledger;
+    }
+
+    private static Hashtable<String, Hashtable<String, Integer>> makeSections() {
+        Hashtable<String, Hashtable<String, Integer>> sections = new Hashtable<String, Hashtable<String, Integer>>();
+        Hashtable<String, Integer> stock = new Hashtable<String, Integer>();
+        for (int i = 0; i < 50; ++i) {
+            stock.put("product" + i, new Integer(i * 3));
+        }
+        sections.put("stock", stock);
+        Hashtable<String, Integer> consumption = new Hashtable<String, Integer>();
+        consumption.put("product1", new Integer(-4));
+        sections.put("consumption", consumption);
+        sections.put("empty", new Hashtable<String, Integer>());
+        return sections;
+    }
+
+    private static void assertSections(Hashtable<String, Hashtable<String, Integer>> sections, Ledger ledger) {
+        assertEquals(sections.size(), ledger.getSectionList().length);
+        for (int i = 0; i < ledger.getSectionList().length; ++i) {
+            String sectionId = ledger.getSectionList()[i];
+            Hashtable<String, Integer> entries = sections.get(sectionId);
+            String[] entryIds = ledger.getListOfEntries(sectionId);
+            assertEquals(entries.size(), entryIds.length);
+            for (int j = 0; j < entryIds.length; ++j) {
+                assertEquals(entries.get(entryIds[j]).intValue(), ledger.getEntry(sectionId, entryIds[j]));
+            }
+        }
+    }
+
+    @Test
+    public void testReadsLegacyRecords() throws Exception {
+        Hashtable<String, Hashtable<String, Integer>> sections = makeSections();
+        Ledger ledger = deserialize(writeLegacy(12, "entity", sections));
+
+        assertEquals(12, ledger.getID());
+        assertEquals("entity", ledger.getEntiyId());
+        assertSections(sections, ledger);
+        assertEquals(0, ledger.getEntry("stock", "missing"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Hashtable<String, Hashtable<String, Integer>> sections = makeSections();
+        Ledger ledger = deserialize(writeLegacy(12, "entity", sections));
+        ledger.setEntry("stock", "product1", 100);
+        ledger.setEntry("new", "product2", 7);
+        sections.get("stock").put("product1", new Integer(100));
+        Hashtable<String, Integer> added = new Hashtable<String, Integer>();
+        added.put("product2", new Integer(7));
+        sections.put("new", added);
+
+        byte[] record = serialize(ledger);
+
+        //Records written now can still be read as the legacy layout
+        assertEquals(sections, readLegacy(record));
+
+        Ledger read = deserialize(record);
+        assertEquals(12, read.getID());
+        assertEquals("entity", read.getEntiyId());
+        assertSections(sections, read);
+    }
+}
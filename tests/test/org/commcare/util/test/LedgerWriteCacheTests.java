@@ -0,0 +1,122 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.commcare.cases.ledger.Ledger;
+import org.commcare.cases.ledger.LedgerWriteCache;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class LedgerWriteCacheTests {
+
+    DummyIndexedStorageUtility<Ledger> storage;
+
+    @Before
+    public void setUp() {
+        storage = new DummyIndexedStorageUtility<Ledger>(Ledger.class);
+    }
+
+    /**
+     * Applies a transfer of the provided quantity of a product from one
+     * entity's stock to another's, the way a transfer block does.
+     */
+    private static void transfer(LedgerWriteCache cache, String src, String dest, String product, int quantity) throws Exception {
+        Ledger source = cache.retrieveOrCreate(src);
+        Ledger destination = cache.retrieveOrCreate(dest);
+        source.setEntry("stock", product, source.getEntry("stock", product) - quantity);
+        destination.setEntry("stock", product, destination.getEntry("stock", product) + quantity);
+        cache.modified(new Ledger[]{source, destination});
+    }
+
+    private static void balance(LedgerWriteCache cache, String entity, String product, int quantity) throws Exception {
+        Ledger ledger = cache.retrieveOrCreate(entity);
+        ledger.setEntry("stock", product, quantity);
+        cache.modified(new Ledger[]{ledger});
+    }
+
+    private Ledger read(String entity) {
+        return (Ledger)storage.getRecordForValue(Ledger.INDEX_ENTITY_ID, entity);
+    }
+
+    @Test
+    public void testRepeatedBlocksCoalesce() throws Exception {
+        LedgerWriteCache cache = new LedgerWriteCache(storage);
+        balance(cache, "a", "p1", 100);
+        Ledger a = cache.retrieveOrCreate("a");
+        for (int i = 0; i < 10; ++i) {
+            transfer(cache, "a", "b", "p1", 5);
+            //Later blocks see the pending copy
+            assertSame(a, cache.retrieveOrCreate("a"));
+        }
+        balance(cache, "b", "p2", 3);
+        assertEquals(0, storage.getNumRecords());
+        assertEquals(2, cache.getPendingCount());
+
+        cache.flush();
+        assertEquals(2, storage.getNumRecords());
+        assertEquals(2, cache.getWriteCount());
+        assertEquals(0, cache.getPendingCount());
+        assertEquals(50, read("a").getEntry("stock", "p1"));
+        assertEquals(50, read("b").getEntry("stock", "p1"));
+        assertEquals(3, read("b").getEntry("stock", "p2"));
+    }
+
+    @Test
+    public void testLedgersAreWrittenAtTheLimit() throws Exception {
+        LedgerWriteCache cache = new LedgerWriteCache(storage, 10);
+        for (int i = 0; i < 10; ++i) {
+            balance(cache, "a", "p" + i, i);
+        }
+        //Updating an entry that's already held doesn't grow the cache
+        balance(cache, "a", "p0", 7);
+        assertEquals(0, storage.getNumRecords());
+
+        balance(cache, "b", "p0", 1);
+        assertEquals(2, storage.getNumRecords());
+        assertEquals(0, cache.getPendingCount());
+        assertEquals(7, read("a").getEntry("stock", "p0"));
+        assertEquals(9, read("a").getEntry("stock", "p9"));
+    }
+
+    @Test
+    public void testReadBackAfterFlush() throws Exception {
+        LedgerWriteCache cache = new LedgerWriteCache(storage);
+        transfer(cache, "a", "b", "p1", 5);
+        Ledger written = cache.retrieveOrCreate("a");
+        cache.flush();
+
+        //Once written, ledgers are read back from storage and update the
+        //same record
+        Ledger a = cache.retrieveOrCreate("a");
+        assertNotSame(written, a);
+        assertEquals(written.getID(), a.getID());
+        assertEquals(-5, a.getEntry("stock", "p1"));
+
+        transfer(cache, "a", "b", "p1", 5);
+        cache.flush();
+        assertEquals(2, storage.getNumRecords());
+        assertEquals(-10, read("a").getEntry("stock", "p1"));
+        assertEquals(10, read("b").getEntry("stock", "p1"));
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        LedgerWriteCache cache = new LedgerWriteCache(storage);
+        balance(cache, "a", "p1", 100);
+        cache.flush();
+
+        transfer(cache, "a", "b", "p1", 5);
+        cache.discard();
+        cache.flush();
+        assertEquals(0, cache.getPendingCount());
+        assertEquals(1, storage.getNumRecords());
+
+        //Discarded changes aren't seen by later blocks either
+        assertEquals(100, cache.retrieveOrCreate("a").getEntry("stock", "p1"));
+        assertEquals(0, cache.retrieveOrCreate("b").getEntry("stock", "p1"));
+    }
+}
@@ -0,0 +1,45 @@
+package org.commcare.util.test;
+
+import org.commcare.cases.model.Case;
+import org.javarosa.core.services.storage.Persistable;
+import org.javarosa.core.services.storage.StorageFullException;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+
+/**
+ * Case storage which counts the reads and writes made from threads other
+ * than the one which created it, for checking that a restore only touches
+ * storage on the thread holding its transaction.
+ */
+public class OwnedStorage extends DummyIndexedStorageUtility<Case> {
+    private final Thread owner = Thread.currentThread();
+    private int foreignAccesses;
+
+    public OwnedStorage() {
+        super(Case.class);
+    }
+
+    private synchronized void accessed() {
+        if (Thread.currentThread() != owner) {
+            foreignAccesses++;
+        }
+    }
+
+    public synchronized int getForeignAccesses() {
+        return foreignAccesses;
+    }
+
+    public void write(Persistable p) throws StorageFullException {
+        accessed();
+        super.write(p);
+    }
+
+    public Case read(int id) {
+        accessed();
+        return super.read(id);
+    }
+
+    public Case getRecordForValue(String fieldName, Object value) {
+        accessed();
+        return super.getRecordForValue(fieldName, value);
+    }
+}
@@ -0,0 +1,90 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.commcare.cases.util.RecordBitmap;
+import org.junit.Test;
+
+
+public class RecordBitmapTests {
+
+    @Test
+    public void testAddContains() {
+        RecordBitmap set = new RecordBitmap();
+        set.add(5);
+        set.add(70000);
+        set.add(5);
+        set.add(0);
+
+        assertEquals(3, set.cardinality());
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(5));
+        assertTrue(set.contains(70000));
+        assertFalse(set.contains(6));
+        assertFalse(set.contains(-1));
+        assertArrayEquals(new int[] {0, 5, 70000}, set.toArray());
+    }
+
+    @Test
+    public void testSparseOperations() {
+        compareAgainstBruteForce(200000, 0.001, 0.002);
+    }
+
+    @Test
+    public void testDenseOperations() {
+        //Dense enough that chunks switch over to bitmaps
+        compareAgainstBruteForce(200000, 0.3, 0.6);
+    }
+
+    @Test
+    public void testMixedOperations() {
+        compareAgainstBruteForce(200000, 0.01, 0.5);
+    }
+
+    private void compareAgainstBruteForce(int universe, double densityA, double densityB) {
+        Random random = new Random(universe);
+        boolean[] inA = new boolean[universe];
+        boolean[] inB = new boolean[universe];
+        RecordBitmap a = new RecordBitmap();
+        RecordBitmap b = new RecordBitmap();
+        for(int i = 0 ; i < universe; ++i) {
+            if(random.nextDouble() < densityA) {
+                inA[i] = true;
+                a.add(i);
+            }
+            if(random.nextDouble() < densityB) {
+                inB[i] = true;
+                b.add(i);
+            }
+        }
+
+        assertArrayEquals(expected(inA, inB, AND), a.and(b).toArray());
+        assertArrayEquals(expected(inA, inB, OR), a.or(b).toArray());
+        assertArrayEquals(expected(inA, inB, AND_NOT), a.andNot(b).toArray());
+        assertArrayEquals(expected(inB, inA, AND_NOT), b.andNot(a).toArray());
+        assertEquals(expected(inA, inB, AND).length, a.and(b).cardinality());
+    }
+
+    private static final int AND = 0;
+    private static final int OR = 1;
+    private static final int AND_NOT = 2;
+
+    private int[] expected(boolean[] a, boolean[] b, int op) {
+        int count = 0;
+        int[] buffer = new int[a.length];
+        for(int i = 0 ; i < a.length; ++i) {
+            boolean in = op == AND ? a[i] && b[i] : op == OR ? a[i] || b[i] : a[i] && !b[i];
+            if(in) {
+                buffer[count++] = i;
+            }
+        }
+        int[] ret = new int[count];
+        System.arraycopy(buffer, 0, ret, 0, count);
+        return ret;
+    }
+}
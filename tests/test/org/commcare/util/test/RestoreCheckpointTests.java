@@ -0,0 +1,373 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.commcare.cases.ledger.Ledger;
+import org.commcare.cases.ledger.LedgerWriteCache;
+import org.commcare.cases.model.Case;
+import org.commcare.cases.util.CaseWriteCache;
+import org.commcare.data.xml.DataModelPullParser;
+import org.commcare.data.xml.RestoreCheckpoint;
+import org.commcare.data.xml.TransactionParser;
+import org.commcare.data.xml.TransactionParserFactory;
+import org.commcare.xml.CaseXmlParser;
+import org.commcare.xml.LedgerXmlParsers;
+import org.commcare.xml.util.InvalidStructureException;
+import org.javarosa.core.services.storage.Persistable;
+import org.javarosa.core.services.storage.StorageFullException;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+
+
+public class RestoreCheckpointTests {
+
+    private static final int INTERVAL = 7;
+
+    /**
+     * Stands in for the app being killed part way through a restore
+     */
+    private static class Killed extends Error {
+    }
+
+    /**
+     * Stands in for the case parsers: each <item> block sets a record's
+     * value, and the records are held until the next checkpoint, like the
+     * write caches hold modified cases.
+     */
+    private static class ItemFactory implements TransactionParserFactory {
+        final Hashtable<String, String> storage;
+        final Hashtable<String, String> pending = new Hashtable<String, String>();
+        final int killAt;
+        int parsed;
+
+        ItemFactory(Hashtable<String, String> storage, int killAt) {
+            this.storage = storage;
+            this.killAt = killAt;
+        }
+
+        public TransactionParser getParser(String name, String namespace, KXmlParser parser) {
+            if (!"item".equals(name)) {
+                return null;
+            }
+            return new TransactionParser<String[]>(parser, name, namespace) {
+                public String[] parse() throws InvalidStructureException {
+                    if (parsed++ == killAt) {
+                        throw new Killed();
+                    }
+                    String[] item = new String[] {this.parser.getAttributeValue(null, "id"), this.parser.getAttributeValue(null, "value")};
+                    if ("bad".equals(item[1])) {
+                        throw new InvalidStructureException("Bad item", this.parser);
+                    }
+                    commit(item);
+                    return item;
+                }
+
+                public void commit(String[] item) {
+                    pending.put(item[0], item[1]);
+                }
+            };
+        }
+
+        void flush() {
+            for (Enumeration en = pending.keys(); en.hasMoreElements(); ) {
+                String id = (String)en.nextElement();
+                storage.put(id, pending.get(id));
+            }
+            pending.clear();
+        }
+    }
+
+    private static byte[] makePayload(int items, boolean withError) {
+        StringBuffer payload = new StringBuffer("<OpenRosaResponse>");
+        Random random = new Random(items);
+        for (int i = 0; i < items; ++i) {
+            //Records are updated many times over the payload
+            String value = withError && i == items / 3 ? "bad" : "v" + i;
+            payload.append("<item id=\"r" + random.nextInt(items / 4) + "\" value=\"" + value + "\"/>");
+        }
+        payload.append("</OpenRosaResponse>");
+        return payload.toString().getBytes();
+    }
+
+    /**
+     * Parses the payload into storage, as the restorer does, until the kill
+     * point (if any) is reached.
+     *
+     * @param saved Holds the last saved checkpoint, which is resumed from
+     *              and updated as new checkpoints are saved
+     * @return True if the restore finished
+     */
+    private static boolean restore(byte[] payload, Hashtable<String, String> storage, final String[] saved, int killAt, boolean[] result) throws Exception {
+        final ItemFactory factory = new ItemFactory(storage, killAt);
+        DataModelPullParser parser = new DataModelPullParser(new ByteArrayInputStream(payload), factory);
+        parser.setCheckpointing(new DataModelPullParser.CheckpointHandler() {
+            public void checkpoint(int blocks, int errors) throws IOException {
+                factory.flush();
+                saved[0] = new RestoreCheckpoint(blocks, errors, "restore-id", "user", "jr://restore").serialize();
+            }
+        }, INTERVAL, RestoreCheckpoint.deserialize(saved[0]));
+        try {
+            result[0] = parser.parse().booleanValue();
+        } catch (Killed e) {
+            //Whatever was held but not written is lost
+            return false;
+        }
+        factory.flush();
+        saved[0] = null;
+        return true;
+    }
+
+    private void testKilledRestores(boolean withError) throws Exception {
+        byte[] payload = makePayload(200, withError);
+
+        Hashtable<String, String> clean = new Hashtable<String, String>();
+        boolean[] cleanResult = new boolean[1];
+        assertTrue(restore(payload, clean, new String[1], -1, cleanResult));
+        assertEquals(!withError, cleanResult[0]);
+
+        Random random = new Random(42);
+        for (int run = 0; run < 20; ++run) {
+            Hashtable<String, String> storage = new Hashtable<String, String>();
+            boolean[] result = new boolean[1];
+            String[] checkpoint = new String[1];
+            int attempts = 0;
+            //Kill the restore at random points, resuming each time, until
+            //it runs to the end
+            while (!restore(payload, storage, checkpoint, attempts < 3 ? random.nextInt(120) : -1, result)) {
+                attempts++;
+                if (checkpoint[0] != null) {
+                    assertEquals(0, RestoreCheckpoint.deserialize(checkpoint[0]).getBlocks() % INTERVAL);
+                }
+            }
+            assertEquals(clean, storage);
+            assertEquals(cleanResult[0], result[0]);
+        }
+    }
+
+    @Test
+    public void testKilledRestoresMatchCleanRun() throws Exception {
+        testKilledRestores(false);
+    }
+
+    @Test
+    public void testErrorsBeforeCheckpointAreKept() throws Exception {
+        testKilledRestores(true);
+    }
+
+    /**
+     * Ledger storage which stands in for the app being killed part way
+     * through writing ledgers
+     */
+    private static class KillableLedgers extends DummyIndexedStorageUtility<Ledger> {
+        int writesLeft = -1;
+
+        KillableLedgers() {
+            super(Ledger.class);
+        }
+
+        public void write(Persistable p) throws StorageFullException {
+            if (writesLeft-- == 0) {
+                throw new Killed();
+            }
+            super.write(p);
+        }
+    }
+
+    private static final String[] ENTITIES = new String[] {"e0", "e1", "e2", "e3"};
+    private static final int PRODUCTS = 3;
+
+    private static byte[] makeStockPayload(int blocks) {
+        StringBuffer payload = new StringBuffer("<OpenRosaResponse>");
+        Random random = new Random(blocks);
+        for (int i = 0; i < blocks; ++i) {
+            int kind = random.nextInt(4);
+            if (kind == 0) {
+                payload.append("<case xmlns=\"" + CaseXmlParser.CASE_XML_NAMESPACE + "\" case_id=\"c" + random.nextInt(10) + "\" date_modified=\"2014-01-01T00:00:00.000\">" +
+                        "<create><case_type>t</case_type><case_name>n</case_name><owner_id>u1</owner_id></create>" +
+                        "<update><n>" + i + "</n></update></case>");
+            } else {
+                String entity = ENTITIES[random.nextInt(ENTITIES.length)];
+                String other = ENTITIES[random.nextInt(ENTITIES.length)];
+                String block = kind == 1 ? "balance" : "transfer";
+                payload.append("<" + block + " xmlns=\"" + LedgerXmlParsers.STOCK_XML_NAMESPACE + "\" date=\"2014-01-01\" section-id=\"stock\" ");
+                payload.append(kind == 1 ? "entity-id=\"" + entity + "\">" : "src=\"" + entity + "\" dest=\"" + other + "\">");
+                payload.append("<entry id=\"p" + random.nextInt(PRODUCTS) + "\" quantity=\"" + random.nextInt(50) + "\"/>");
+                payload.append("</" + block + ">");
+            }
+        }
+        payload.append("</OpenRosaResponse>");
+        return payload.toString().getBytes();
+    }
+
+    /**
+     * Parses the payload with the real case and ledger parsers, holding
+     * records and checkpointing the way the restorer does: ledgers are only
+     * written at checkpoints, and the saved checkpoint is marked as having
+     * writes in flight while they are.
+     *
+     * @param killBlock The block to kill the restore at, or -1
+     * @param killWrite The ledger write to kill the restore at, or -1
+     * @return True if the restore finished
+     */
+    private static boolean restoreStock(byte[] payload, final DummyIndexedStorageUtility<Case> cases, final KillableLedgers ledgers, final String[] saved, final int killBlock, int killWrite) throws Exception {
+        final CaseWriteCache caseCache = new CaseWriteCache(cases);
+        final LedgerWriteCache ledgerCache = new LedgerWriteCache(ledgers, 5);
+        ledgerCache.setHoldUntilFlushed(true);
+        TransactionParserFactory factory = new TransactionParserFactory() {
+            int parsed;
+
+            public TransactionParser getParser(String name, String namespace, KXmlParser parser) {
+                if (parsed++ == killBlock) {
+                    throw new Killed();
+                }
+                if ("case".equals(name)) {
+                    return new CaseXmlParser(parser, new int[3], true, cases, caseCache);
+                } else if (LedgerXmlParsers.STOCK_XML_NAMESPACE.equals(namespace)) {
+                    return new LedgerXmlParsers(parser, ledgers, ledgerCache);
+                }
+                return null;
+            }
+        };
+        DataModelPullParser parser = new DataModelPullParser(new ByteArrayInputStream(payload), factory);
+        parser.setCheckpointing(new DataModelPullParser.CheckpointHandler() {
+            public void checkpoint(int blocks, int errors) throws IOException {
+                flush(caseCache, ledgerCache, saved);
+                saved[0] = new RestoreCheckpoint(blocks, errors, "restore-id", "user", "jr://restore").serialize();
+            }
+        }, INTERVAL, RestoreCheckpoint.deserialize(saved[0]));
+        ledgers.writesLeft = killWrite;
+        try {
+            parser.parse();
+            flush(caseCache, ledgerCache, saved);
+        } catch (Killed e) {
+            return false;
+        } finally {
+            ledgers.writesLeft = -1;
+        }
+        saved[0] = null;
+        return true;
+    }
+
+    private static void flush(CaseWriteCache caseCache, LedgerWriteCache ledgerCache, String[] saved) throws IOException {
+        RestoreCheckpoint checkpoint = RestoreCheckpoint.deserialize(saved[0]);
+        if (checkpoint != null && ledgerCache.getPendingCount() > 0) {
+            saved[0] = checkpoint.withWritesInFlight().serialize();
+        }
+        caseCache.flush();
+        ledgerCache.flush();
+    }
+
+    private static void assertSameStock(KillableLedgers expected, KillableLedgers actual) {
+        assertEquals(expected.getNumRecords(), actual.getNumRecords());
+        for (int i = 0; i < ENTITIES.length; ++i) {
+            Ledger e = expected.getRecordForValue(Ledger.INDEX_ENTITY_ID, ENTITIES[i]);
+            Ledger a = actual.getRecordForValue(Ledger.INDEX_ENTITY_ID, ENTITIES[i]);
+            for (int j = 0; j < PRODUCTS; ++j) {
+                assertEquals(e.getEntry("stock", "p" + j), a.getEntry("stock", "p" + j));
+            }
+        }
+    }
+
+    @Test
+    public void testKilledStockRestoresMatchCleanRun() throws Exception {
+        byte[] payload = makeStockPayload(150);
+
+        DummyIndexedStorageUtility<Case> cleanCases = new DummyIndexedStorageUtility<Case>(Case.class);
+        KillableLedgers cleanLedgers = new KillableLedgers();
+        assertTrue(restoreStock(payload, cleanCases, cleanLedgers, new String[1], -1, -1));
+
+        Random random = new Random(7);
+        int resumed = 0;
+        int refused = 0;
+        for (int run = 0; run < 40; ++run) {
+            DummyIndexedStorageUtility<Case> cases = new DummyIndexedStorageUtility<Case>(Case.class);
+            KillableLedgers ledgers = new KillableLedgers();
+            String[] checkpoint = new String[1];
+            int attempts = 0;
+            //Kill the restore part way through parsing or through writing its
+            //ledgers, resuming each time it's safe to, until it runs to the
+            //end
+            while (true) {
+                boolean kill = attempts++ < 3;
+                boolean atWrite = random.nextBoolean();
+                int killBlock = kill && !atWrite ? random.nextInt(120) : -1;
+                int killWrite = kill && atWrite ? random.nextInt(40) : -1;
+                if (restoreStock(payload, cases, ledgers, checkpoint, killBlock, killWrite)) {
+                    break;
+                }
+                RestoreCheckpoint saved = RestoreCheckpoint.deserialize(checkpoint[0]);
+                if (saved == null || saved.hasWritesInFlight()) {
+                    //Not resumable, so start over, as the recovery restore
+                    //following the normal sync would
+                    if (saved != null) {
+                        refused++;
+                    }
+                    cases = new DummyIndexedStorageUtility<Case>(Case.class);
+                    ledgers = new KillableLedgers();
+                    checkpoint[0] = null;
+                } else {
+                    resumed++;
+                }
+            }
+            assertSameStock(cleanLedgers, ledgers);
+            assertEquals(cleanCases.getNumRecords(), cases.getNumRecords());
+        }
+        //Some of the kills could be resumed from, and some landed while
+        //ledgers were being written
+        assertTrue(resumed > 0);
+        assertTrue(refused > 0);
+    }
+
+    @Test
+    public void testWritesInFlightAreSerialized() {
+        RestoreCheckpoint checkpoint = RestoreCheckpoint.deserialize(new RestoreCheckpoint(14, 2, "abc", "user", "jr://restore", true).serialize());
+        assertTrue(checkpoint.hasWritesInFlight());
+        assertEquals(14, checkpoint.getBlocks());
+        assertEquals(2, checkpoint.getErrors());
+        assertEquals("abc", checkpoint.getRestoreId());
+        assertTrue(checkpoint.isFor("user", "jr://restore"));
+        assertFalse(RestoreCheckpoint.deserialize("14 2 user jr://restore abc").hasWritesInFlight());
+        assertTrue(RestoreCheckpoint.deserialize("14 2 user jr://restore abc").withWritesInFlight().hasWritesInFlight());
+    }
+
+    @Test
+    public void testSerialization() {
+        RestoreCheckpoint checkpoint = RestoreCheckpoint.deserialize(new RestoreCheckpoint(12, 1, "abc def", "first last", "http://host/a%20b?x=1", false).serialize());
+        assertEquals(12, checkpoint.getBlocks());
+        assertEquals(1, checkpoint.getErrors());
+        assertEquals("abc def", checkpoint.getRestoreId());
+        assertTrue(checkpoint.isFor("first last", "http://host/a%20b?x=1"));
+
+        assertNull(RestoreCheckpoint.deserialize(new RestoreCheckpoint(3, 0, null, "user", "uri").serialize()).getRestoreId());
+        assertNull(RestoreCheckpoint.deserialize(""));
+        assertNull(RestoreCheckpoint.deserialize(null));
+        assertNull(RestoreCheckpoint.deserialize("x y"));
+        assertEquals(2, RestoreCheckpoint.deserialize("5 2  uri").getErrors());
+        //Checkpoints saved before they recorded whose payload they were for
+        assertNull(RestoreCheckpoint.deserialize("5 2"));
+        assertNull(RestoreCheckpoint.deserialize("14 2 abc"));
+    }
+
+    @Test
+    public void testOwnerMismatch() {
+        RestoreCheckpoint checkpoint = RestoreCheckpoint.deserialize(new RestoreCheckpoint(8, 0, "abc", "user", "jr://restore").serialize());
+        assertFalse(checkpoint.isFor("other", "jr://restore"));
+        assertFalse(checkpoint.isFor("user", "jr://other"));
+        assertFalse(checkpoint.isFor(null, "jr://restore"));
+
+        //Restores before anyone logs in have no user
+        checkpoint = RestoreCheckpoint.deserialize(new RestoreCheckpoint(8, 0, "abc", null, "jr://restore").serialize());
+        assertTrue(checkpoint.isFor(null, "jr://restore"));
+        assertFalse(checkpoint.isFor("user", "jr://restore"));
+    }
+}
@@ -0,0 +1,88 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+
+import org.commcare.data.xml.DataModelPullParser;
+import org.commcare.data.xml.RestoreProfile;
+import org.commcare.data.xml.TransactionParser;
+import org.commcare.data.xml.TransactionParserFactory;
+import org.commcare.xml.util.InvalidStructureException;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+
+
+public class RestoreProfileTests {
+
+    @Test
+    public void testCounts() {
+        RestoreProfile profile = new RestoreProfile();
+        //More kinds of element than the profile starts out with room for
+        for (int i = 0; i < 20; ++i) {
+            for (int j = 0; j <= i; ++j) {
+                profile.blockParsed("element" + i, 2, j == 0);
+            }
+        }
+        profile.recordsWritten(10, 5);
+        profile.recordsWritten(4, 1);
+        profile.finish();
+
+        assertEquals(20, profile.getElementNames().length);
+        assertEquals("element0", profile.getElementNames()[0]);
+        assertEquals(20, profile.getCount("element19"));
+        assertEquals(40, profile.getParseTime("element19"));
+        assertEquals(1, profile.getFailures("element19"));
+        assertEquals(0, profile.getCount("missing"));
+        assertEquals(14, profile.getRecordsWritten());
+        assertEquals(6, profile.getWriteTime());
+
+        String report = profile.getReport();
+        assertTrue(report.startsWith("total="));
+        assertTrue(report.indexOf(" written=14 write=6 element0=1/1/2 ") != -1);
+        assertTrue(report.endsWith(" element19=20/1/40"));
+    }
+
+    @Test
+    public void testParserProfile() throws Exception {
+        StringBuffer payload = new StringBuffer("<OpenRosaResponse>");
+        for (int i = 0; i < 30; ++i) {
+            payload.append(i % 10 == 0 ? "<bad/>" : "<item/>");
+        }
+        payload.append("<other><item/></other></OpenRosaResponse>");
+        byte[] bytes = payload.toString().getBytes();
+
+        TransactionParserFactory factory = new TransactionParserFactory() {
+            public TransactionParser getParser(String name, String namespace, KXmlParser parser) {
+                if ("other".equals(name)) {
+                    return null;
+                }
+                return new TransactionParser<String>(parser, name, namespace) {
+                    public String parse() throws InvalidStructureException {
+                        if ("bad".equals(this.parser.getName())) {
+                            throw new InvalidStructureException("Bad element", this.parser);
+                        }
+                        return null;
+                    }
+
+                    public void commit(String parsed) {
+                    }
+                };
+            }
+        };
+
+        RestoreProfile profile = new RestoreProfile();
+        DataModelPullParser parser = new DataModelPullParser(new ByteArrayInputStream(bytes), factory);
+        parser.setProfile(profile);
+        parser.parse();
+
+        assertEquals(27, profile.getCount("item"));
+        assertEquals(0, profile.getFailures("item"));
+        assertEquals(3, profile.getCount("bad"));
+        assertEquals(3, profile.getFailures("bad"));
+        //Elements without a parser are skipped, and counted as themselves
+        assertEquals(1, profile.getCount("other"));
+        assertEquals(bytes.length, profile.getBytesRead());
+    }
+}
@@ -0,0 +1,83 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.commcare.data.xml.ShardDependencies;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ShardDependenciesTests {
+
+    Vector<Hashtable<String, String>> written;
+    Vector<Hashtable<String, String>> referenced;
+
+    @Before
+    public void setUp() {
+        written = new Vector<Hashtable<String, String>>();
+        referenced = new Vector<Hashtable<String, String>>();
+    }
+
+    private void addShard(String[] writes, String[] references) {
+        Hashtable<String, String> w = new Hashtable<String, String>();
+        for (int i = 0; i < writes.length; ++i) {
+            w.put(writes[i], writes[i]);
+        }
+        Hashtable<String, String> r = new Hashtable<String, String>();
+        for (int i = 0; i < references.length; ++i) {
+            r.put(references[i], references[i]);
+        }
+        written.addElement(w);
+        referenced.addElement(r);
+    }
+
+    private static void assertDependencies(int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    @Test
+    public void testIndependentShards() {
+        addShard(new String[] {"case:a", "case:b"}, new String[0]);
+        addShard(new String[] {"case:c"}, new String[0]);
+        addShard(new String[] {"ledger:x"}, new String[0]);
+
+        int[][] dependencies = ShardDependencies.compute(written, referenced);
+        for (int i = 0; i < dependencies.length; ++i) {
+            assertEquals(0, dependencies[i].length);
+        }
+    }
+
+    @Test
+    public void testSharedRecordsChain() {
+        addShard(new String[] {"case:a"}, new String[0]);
+        addShard(new String[] {"case:a", "case:b"}, new String[0]);
+        addShard(new String[] {"case:a"}, new String[0]);
+        addShard(new String[] {"case:b", "case:c"}, new String[0]);
+
+        int[][] dependencies = ShardDependencies.compute(written, referenced);
+        assertDependencies(new int[0], dependencies[0]);
+        assertDependencies(new int[] {0}, dependencies[1]);
+        //Only the last earlier writer needs to be waited for
+        assertDependencies(new int[] {1}, dependencies[2]);
+        assertDependencies(new int[] {1}, dependencies[3]);
+    }
+
+    @Test
+    public void testIndicesWaitForTheirTargets() {
+        addShard(new String[] {"case:parent"}, new String[0]);
+        addShard(new String[] {"case:other"}, new String[0]);
+        addShard(new String[] {"case:child"}, new String[] {"case:parent"});
+        //An index to a case no earlier shard writes doesn't hold anything up
+        addShard(new String[] {"case:orphan"}, new String[] {"case:missing"});
+
+        int[][] dependencies = ShardDependencies.compute(written, referenced);
+        assertDependencies(new int[] {0}, dependencies[2]);
+        assertDependencies(new int[0], dependencies[3]);
+    }
+}
@@ -0,0 +1,198 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Vector;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseIndex;
+import org.commcare.cases.util.CaseLocator;
+import org.commcare.cases.util.CaseWriteCache;
+import org.commcare.cases.util.WriteQueue;
+import org.commcare.data.xml.DataModelPullParser;
+import org.commcare.data.xml.ShardedRestoreParser;
+import org.commcare.data.xml.TransactionParser;
+import org.commcare.data.xml.TransactionParserFactory;
+import org.commcare.xml.CaseXmlParser;
+import org.javarosa.core.reference.Reference;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Before;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+
+
+public class ShardedRestoreTests {
+
+    private static final int SHARDS = 8;
+    private static final int CASES_PER_SHARD = 30;
+
+    Vector<Reference> shards;
+
+    /**
+     * A shard held in memory
+     */
+    private static class ShardReference implements Reference {
+        private final byte[] payload;
+
+        ShardReference(String payload) {
+            this.payload = payload.getBytes();
+        }
+
+        public boolean doesBinaryExist() {
+            return true;
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Shards are read only");
+        }
+
+        public InputStream getStream() {
+            return new ByteArrayInputStream(payload);
+        }
+
+        public String getURI() {
+            return "jr://shard";
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public void remove() throws IOException {
+            throw new IOException("Shards are read only");
+        }
+
+        public String getLocalURI() {
+            return getURI();
+        }
+
+        public Reference[] probeAlternativeReferences() {
+            return new Reference[0];
+        }
+    }
+
+    private static void appendCase(StringBuffer payload, String caseId, boolean create, String property, String value, String parent) {
+        payload.append("<case xmlns=\"" + CaseXmlParser.CASE_XML_NAMESPACE + "\" case_id=\"" + caseId + "\" date_modified=\"2014-01-01T00:00:00.000\">");
+        if (create) {
+            payload.append("<create><case_type>t</case_type><case_name>" + caseId + "</case_name><owner_id>u1</owner_id></create>");
+        }
+        payload.append("<update><" + property + ">" + value + "</" + property + "></update>");
+        if (parent != null) {
+            payload.append("<index><parent case_type=\"t\">" + parent + "</parent></index>");
+        }
+        payload.append("</case>");
+    }
+
+    /**
+     * Each shard creates its own cases, and most also update cases from the
+     * shard before them, index a case from the first shard, or update a case
+     * every shard touches, so some shards can be parsed at the same time and
+     * some have to wait for others. Like a real payload, every shard also
+     * has a message and a sync token.
+     */
+    @Before
+    public void setUp() {
+        shards = new Vector<Reference>();
+        for (int shard = 0; shard < SHARDS; ++shard) {
+            StringBuffer payload = new StringBuffer("<OpenRosaResponse>");
+            payload.append("<message nature=\"ota_restore_success\">Successfully restored account u1!</message>");
+            payload.append("<Sync xmlns=\"http://commcarehq.org/sync\"><restore_id>token</restore_id></Sync>");
+            for (int i = 0; i < CASES_PER_SHARD; ++i) {
+                String parent = shard > 0 && i % 10 == 0 ? "s0-" + i : null;
+                appendCase(payload, "s" + shard + "-" + i, true, "n", String.valueOf(i), parent);
+            }
+            if (shard > 0 && shard % 2 == 0) {
+                appendCase(payload, "s" + (shard - 1) + "-5", false, "n", "updated by " + shard, null);
+            }
+            if (shard % 3 == 0) {
+                appendCase(payload, "shared", shard == 0, "last", String.valueOf(shard), null);
+            }
+            payload.append("</OpenRosaResponse>");
+            shards.addElement(new ShardReference(payload.toString()));
+        }
+    }
+
+    private static TransactionParserFactory makeFactory(final IStorageUtilityIndexed<Case> storage, final CaseWriteCache cache) {
+        return new TransactionParserFactory() {
+            public TransactionParser getParser(String name, String namespace, KXmlParser parser) {
+                if (!"case".equals(name)) {
+                    return null;
+                }
+                return new CaseXmlParser(parser, new int[3], true, storage, cache);
+            }
+        };
+    }
+
+    private static void assertSameCases(IStorageUtilityIndexed<Case> expected, IStorageUtilityIndexed<Case> actual, String caseId) {
+        Case e = expected.getRecordForValue(Case.INDEX_CASE_ID, caseId);
+        Case a = actual.getRecordForValue(Case.INDEX_CASE_ID, caseId);
+        assertEquals(e.getName(), a.getName());
+        assertEquals(e.getUserId(), a.getUserId());
+        assertEquals(e.getPropertyString("n"), a.getPropertyString("n"));
+        assertEquals(e.getPropertyString("last"), a.getPropertyString("last"));
+        Vector<CaseIndex> indices = e.getIndices();
+        assertEquals(indices.size(), a.getIndices().size());
+        for (int i = 0; i < indices.size(); ++i) {
+            assertEquals(indices.elementAt(i).getTarget(), a.getIndices().elementAt(i).getTarget());
+        }
+    }
+
+    @Test
+    public void testParallelIngestMatchesSerial() throws Exception {
+        //One shard after another, writing each case as it's parsed
+        DummyIndexedStorageUtility<Case> serial = new DummyIndexedStorageUtility<Case>(Case.class);
+        for (int i = 0; i < SHARDS; ++i) {
+            new DataModelPullParser(shards.elementAt(i).getStream(), makeFactory(serial, null), true, false).parse();
+        }
+
+        //Independent shards at once, with storage only touched on this thread
+        final OwnedStorage parallel = new OwnedStorage();
+        WriteQueue queue = new WriteQueue();
+        CaseLocator locator = new CaseLocator(parallel, true);
+        locator.seed();
+        final CaseWriteCache[] caches = new CaseWriteCache[SHARDS];
+        for (int i = 0; i < SHARDS; ++i) {
+            caches[i] = new CaseWriteCache(parallel, 10, locator);
+            caches[i].setWriteQueue(queue);
+        }
+        ShardedRestoreParser parser = new ShardedRestoreParser(shards, new ShardedRestoreParser.ShardHandler() {
+            public TransactionParserFactory getFactory(int shard) {
+                return makeFactory(parallel, caches[shard]);
+            }
+
+            public void shardParsed(int shard) throws IOException {
+                caches[shard].flush();
+            }
+        }, 4, true);
+        parser.setWriteQueue(queue);
+        assertTrue(parser.parse());
+        queue.close();
+
+        //Shards which only index cases from the first shard don't wait for
+        //anything else
+        int[][] dependencies = parser.getDependencies();
+        assertEquals(0, dependencies[0].length);
+        int[] independent = new int[] {1, 5, 7};
+        for (int i = 0; i < independent.length; ++i) {
+            assertEquals(1, dependencies[independent[i]].length);
+            assertEquals(0, dependencies[independent[i]][0]);
+        }
+
+        assertEquals(0, parallel.getForeignAccesses());
+        assertEquals(serial.getNumRecords(), parallel.getNumRecords());
+        assertEquals(SHARDS * CASES_PER_SHARD + 1, parallel.getNumRecords());
+        for (int shard = 0; shard < SHARDS; ++shard) {
+            for (int i = 0; i < CASES_PER_SHARD; ++i) {
+                assertSameCases(serial, parallel, "s" + shard + "-" + i);
+            }
+        }
+        assertSameCases(serial, parallel, "shared");
+        assertEquals("6", parallel.getRecordForValue(Case.INDEX_CASE_ID, "shared").getPropertyString("last"));
+    }
+}
@@ -0,0 +1,51 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.commcare.cases.util.SortedNumericIndex;
+import org.junit.Test;
+
+
+public class SortedNumericIndexTests {
+
+    @Test
+    public void testRangeMatches() {
+        Random random = new Random(7);
+        int records = 5000;
+        double[] values = new double[records];
+        SortedNumericIndex index = new SortedNumericIndex();
+        for(int i = 0 ; i < records; ++i) {
+            //Lots of duplicates, and a few values which aren't numbers at all
+            values[i] = i % 97 == 0 ? Double.NaN : random.nextInt(400);
+            index.add(i, values[i]);
+        }
+        index.seal();
+
+        double[] bounds = new double[] {-1, 0, 17, 199.5, 200, 399, 400};
+        for(double bound : bounds) {
+            for(int op = SortedNumericIndex.LESS_THAN; op <= SortedNumericIndex.GREATER_THAN_OR_EQUAL; ++op) {
+                assertArrayEquals("op " + op + " bound " + bound, expected(values, op, bound), index.getMatches(op, bound).toArray());
+            }
+        }
+        assertArrayEquals(new int[0], index.getMatches(SortedNumericIndex.LESS_THAN, Double.NaN).toArray());
+    }
+
+    private int[] expected(double[] values, int op, double bound) {
+        int count = 0;
+        int[] buffer = new int[values.length];
+        for(int i = 0 ; i < values.length; ++i) {
+            double v = values[i];
+            boolean in = op == SortedNumericIndex.LESS_THAN ? v < bound :
+                    op == SortedNumericIndex.LESS_THAN_OR_EQUAL ? v <= bound :
+                    op == SortedNumericIndex.GREATER_THAN ? v > bound : v >= bound;
+            if(in) {
+                buffer[count++] = i;
+            }
+        }
+        int[] ret = new int[count];
+        System.arraycopy(buffer, 0, ret, 0, count);
+        return ret;
+    }
+}
@@ -0,0 +1,111 @@
+package org.commcare.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.Vector;
+
+import org.commcare.cases.util.StripedRecordCache;
+import org.junit.Test;
+
+
+public class StripedRecordCacheTests {
+
+    private static final int RECORDS = 2000;
+    private static final int THREADS = 8;
+    private static final int LOOKUPS_PER_THREAD = 20000;
+
+    /**
+     * Counts how many times each record was built
+     */
+    private static class CountingBuilder implements StripedRecordCache.RecordBuilder<String> {
+        int[] builds = new int[RECORDS];
+
+        public String build(int recordId) {
+            synchronized (this) {
+                builds[recordId]++;
+            }
+            //give other threads a chance to pile up on the same record
+            Thread.yield();
+            return "record" + recordId;
+        }
+    }
+
+    @Test
+    public void testConcurrentBuildsHappenOnce() throws Exception {
+        //Big enough that nothing is evicted
+        StripedRecordCache<String> cache = new StripedRecordCache<String>(RECORDS * 2);
+        CountingBuilder builder = new CountingBuilder();
+
+        Vector<String> errors = runThreads(cache, builder);
+        if(errors.size() > 0) {
+            fail(errors.firstElement());
+        }
+
+        for(int i = 0 ; i < RECORDS; ++i) {
+            if(cache.isCached(i)) {
+                assertEquals("Record " + i + " was built more than once", 1, builder.builds[i]);
+            }
+        }
+        assertEquals(THREADS * LOOKUPS_PER_THREAD, cache.getHits() + cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testConcurrentEviction() throws Exception {
+        StripedRecordCache<String> cache = new StripedRecordCache<String>(RECORDS / 10, 4);
+        CountingBuilder builder = new CountingBuilder();
+
+        Vector<String> errors = runThreads(cache, builder);
+        if(errors.size() > 0) {
+            fail(errors.firstElement());
+        }
+        if(cache.size() > cache.getMaxEntries()) {
+            fail("Cache holds " + cache.size() + " entries with a budget of " + cache.getMaxEntries());
+        }
+    }
+
+    @Test
+    public void testFailedBuildIsRetried() {
+        StripedRecordCache<String> cache = new StripedRecordCache<String>(10);
+        try {
+            cache.retrieve(1, new StripedRecordCache.RecordBuilder<String>() {
+                public String build(int recordId) {
+                    throw new RuntimeException("storage unavailable");
+                }
+            });
+            fail("Builder exception was swallowed");
+        } catch(RuntimeException e) {
+            //expected
+        }
+        assertEquals("record1", cache.retrieve(1, new CountingBuilder()));
+    }
+
+    private Vector<String> runThreads(final StripedRecordCache<String> cache, final CountingBuilder builder) throws InterruptedException {
+        final Vector<String> errors = new Vector<String>();
+        Thread[] threads = new Thread[THREADS];
+        for(int t = 0 ; t < THREADS; ++t) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for(int i = 0 ; i < LOOKUPS_PER_THREAD; ++i) {
+                        int record = random.nextInt(RECORDS);
+                        String value = cache.retrieve(record, builder);
+                        if(!("record" + record).equals(value)) {
+                            errors.addElement("Got " + value + " for record " + record);
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        return errors;
+    }
+}
@@ -10,6 +10,7 @@ import java.util.Hashtable;
 import java.util.Vector;
 
 import org.commcare.cases.CaseManagementModule;
+import org.commcare.cases.fixture.FixtureItem;
 import org.commcare.resources.model.Resource;
 import org.commcare.resources.model.ResourceInitializationException;
 import org.commcare.resources.model.ResourceLocation;
@@ -133,6 +134,7 @@ public class CommCareConfigEngine {
         StorageManager.registerStorage(Suite.STORAGE_KEY, Suite.class);
         StorageManager.registerStorage(FormDef.STORAGE_KEY, Suite.class);
         StorageManager.registerStorage("fixture", FormInstance.class);
+        StorageManager.registerStorage(FixtureItem.STORAGE_KEY, FixtureItem.class);
         //StorageManager.registerStorage(Suite.STORAGE_KEY, Suite.class);
     }
 